@@ -0,0 +1,180 @@
+package com.apr1129.kzk.rcclient;
+
+// Bounds the move commands which have been written but not yet acknowledged by the robot
+// (BinaryCommandEncoder.FLAG_ACK / OP_ACK), so a congested link cannot fill the socket send
+// buffer with stale commands. While the window is full the sender writes nothing, and the newest
+// command goes out once an ACK makes room.
+//
+// The window adapts delay based, like TCP Vegas/LEDBAT: each ACK gives an RTT sample, and the
+// queuing delay is its excess over the lowest RTT seen on the connection. Above the target the
+// window is halved, at most once per RTT, otherwise it grows by one per window of ACKs. So
+// commands never queue much longer than the target.
+//
+// A robot which sends no ACK within UNSUPPORTED_TIMEOUT of the first command on a connection
+// counts as not supporting them, and the window is no longer enforced on that connection.
+// Until then it holds back at most INITIAL_WINDOW commands.
+//
+// Commands are recorded by the sender thread and ACKs by the reader thread. The clock is
+// System.nanoTime().
+public class AckWindow {
+
+    public static final int MIN_WINDOW = 1;
+    public static final int MAX_WINDOW = 32;
+    public static final int INITIAL_WINDOW = 4;
+    public static final long DEFAULT_QUEUE_TARGET = 20; // ms
+    public static final long DEFAULT_STALL_TIMEOUT = 2000; // ms without an ACK for the oldest command
+    public static final long UNSUPPORTED_TIMEOUT = 1000; // ms
+
+    private static final int MAX_OUTSTANDING = 64; // commands remembered, oldest forgotten first
+
+    private final long mQueueTargetNanos;
+    private final long mStallTimeoutNanos;
+
+    // Ring of unacknowledged commands, oldest at mHead
+    private final int[] mSeq = new int[MAX_OUTSTANDING];
+    private final long[] mSentNanos = new long[MAX_OUTSTANDING];
+    private int mHead = 0;
+    private int mCount = 0;
+
+    private boolean mAcked = false;
+    private boolean mUnsupported = false;
+    private boolean mHasSent = false;
+    private long mFirstSentNanos = 0;
+    private int mWindow = INITIAL_WINDOW;
+    private int mIncreaseCredit = 0;
+    private long mLastDecreaseNanos = 0;
+    private long mMinRttNanos = Long.MAX_VALUE;
+    private long mSrttNanos = 0;
+    private long mLastRttNanos = 0;
+    private long mAckCount = 0;
+    private long mDecreases = 0;
+
+    public AckWindow() {
+        this(DEFAULT_QUEUE_TARGET, DEFAULT_STALL_TIMEOUT);
+    }
+
+    public AckWindow(long queue_target_ms, long stall_timeout_ms) {
+        mQueueTargetNanos = queue_target_ms * 1000000L;
+        mStallTimeoutNanos = stall_timeout_ms * 1000000L;
+    }
+
+    // A new connection was opened. Keeps the window size, the robot is probably the same.
+    public synchronized void reset() {
+        mHead = 0;
+        mCount = 0;
+        mAcked = false;
+        mUnsupported = false;
+        mHasSent = false;
+        mIncreaseCredit = 0;
+        mMinRttNanos = Long.MAX_VALUE;
+        mSrttNanos = 0;
+    }
+
+    public synchronized void onSent(int seq, long now_nanos) {
+        if (mUnsupported) {
+            return;
+        }
+        if (!mHasSent) {
+            mHasSent = true;
+            mFirstSentNanos = now_nanos;
+        }
+        if (mCount == MAX_OUTSTANDING) {
+            mHead = (mHead + 1) % MAX_OUTSTANDING;
+            mCount--;
+        }
+        int slot = (mHead + mCount) % MAX_OUTSTANDING;
+        mSeq[slot] = seq;
+        mSentNanos[slot] = now_nanos;
+        mCount++;
+    }
+
+    // TCP delivers in order, so an ACK also covers every older command. Returns false for an
+    // unknown or repeated sequence number.
+    public synchronized boolean onAck(int seq, long now_nanos) {
+        int acked = -1;
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mHead + i) % MAX_OUTSTANDING;
+            if (mSeq[slot] == seq) {
+                acked = i;
+                break;
+            }
+        }
+        if (acked < 0) {
+            return false;
+        }
+
+        long rtt = now_nanos - mSentNanos[(mHead + acked) % MAX_OUTSTANDING];
+        mHead = (mHead + acked + 1) % MAX_OUTSTANDING;
+        mCount -= acked + 1;
+        mAcked = true;
+        mUnsupported = false;
+        mAckCount++;
+
+        mLastRttNanos = rtt;
+        mMinRttNanos = Math.min(mMinRttNanos, rtt);
+        mSrttNanos = mSrttNanos == 0 ? rtt : mSrttNanos + (rtt - mSrttNanos) / 8;
+
+        if (rtt - mMinRttNanos > mQueueTargetNanos) {
+            if (now_nanos - mLastDecreaseNanos > mSrttNanos) {
+                mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+                mIncreaseCredit = 0;
+                mLastDecreaseNanos = now_nanos;
+                mDecreases++;
+            }
+        } else if (++mIncreaseCredit >= mWindow) {
+            mWindow = Math.min(MAX_WINDOW, mWindow + 1);
+            mIncreaseCredit = 0;
+        }
+        return true;
+    }
+
+    // True if another command may be written now
+    public synchronized boolean canSend(long now_nanos) {
+        if (!mAcked && mHasSent && now_nanos - mFirstSentNanos > UNSUPPORTED_TIMEOUT * 1000000L) {
+            mUnsupported = true;
+            mCount = 0;
+        }
+        return mUnsupported || mCount < mWindow;
+    }
+
+    // True if the oldest command has waited for its ACK longer than the stall timeout: the link
+    // is dead or hopelessly congested, and reconnecting drops what is queued
+    public synchronized boolean isStalled(long now_nanos) {
+        return mAcked && mCount > 0 && now_nanos - mSentNanos[mHead] > mStallTimeoutNanos;
+    }
+
+    // No ACK arrived within UNSUPPORTED_TIMEOUT of the first command on this connection
+    public synchronized boolean isUnsupported() {
+        return mUnsupported;
+    }
+
+    public synchronized int window() {
+        return mWindow;
+    }
+
+    public synchronized int inFlight() {
+        return mCount;
+    }
+
+    public synchronized long smoothedRttMicros() {
+        return mSrttNanos / 1000;
+    }
+
+    public synchronized long lastRttMicros() {
+        return mLastRttNanos / 1000;
+    }
+
+    // Lowest RTT on the connection, 0 before the first ACK
+    public synchronized long minRttMicros() {
+        return mMinRttNanos == Long.MAX_VALUE ? 0 : mMinRttNanos / 1000;
+    }
+
+    public synchronized long ackCount() {
+        return mAckCount;
+    }
+
+    // Times the window was halved because of queuing
+    public synchronized long decreaseCount() {
+        return mDecreases;
+    }
+}
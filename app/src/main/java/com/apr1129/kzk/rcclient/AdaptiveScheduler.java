@@ -0,0 +1,29 @@
+package com.apr1129.kzk.rcclient;
+
+// Sends on change like OnChangeScheduler and repeats the last command as a keepalive:
+// every active interval while the robot is driving and every idle interval while it is stopped.
+public class AdaptiveScheduler extends OnChangeScheduler {
+
+    private final long mActiveInterval;
+    private final long mIdleInterval;
+
+    public AdaptiveScheduler(long min_interval_ms, long active_interval_ms, long idle_interval_ms) {
+        super(min_interval_ms);
+        mActiveInterval = active_interval_ms;
+        mIdleInterval = idle_interval_ms;
+    }
+
+    @Override
+    public boolean shouldSend(long now, boolean changed, boolean idle) {
+        return changed || now - lastSent() >= keepaliveInterval(idle);
+    }
+
+    @Override
+    public long nextDelay(long now, boolean idle) {
+        return Math.max(0, lastSent() + keepaliveInterval(idle) - now);
+    }
+
+    private long keepaliveInterval(boolean idle) {
+        return idle ? mIdleInterval : mActiveInterval;
+    }
+}
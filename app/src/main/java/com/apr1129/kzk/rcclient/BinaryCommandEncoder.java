@@ -0,0 +1,215 @@
+package com.apr1129.kzk.rcclient;
+
+/*
+ * Fixed size binary frame (big endian):
+ *
+ *   offset  size  field
+ *   0       1     opcode
+ *   1       1     flags (OP_MOVE only, 0 otherwise)
+ *   2       2     sequence number (unsigned, wraps around)
+ *   4       2     left power (signed)
+ *   6       2     right power (signed)
+ *   8       4     timestamp in ms since the encoder was created (unsigned, wraps around)
+ *
+ * OP_PING has the same layout with zero powers and its own sequence numbers. The robot
+ * answers with OP_PONG:
+ *
+ *   0       1     OP_PONG
+ *   1       1     reserved (0)
+ *   2       2     sequence number of the ping
+ *   4       4     time the ping was received, ms in the robot's clock (unsigned, wraps around)
+ *   8       4     time the pong was sent, ms in the robot's clock (unsigned, wraps around)
+ *
+ * A move frame with FLAG_ACK set asks the robot to answer with OP_ACK as soon as it has read
+ * the frame (see AckWindow):
+ *
+ *   0       1     OP_ACK
+ *   1       1     reserved (0)
+ *   2       2     sequence number of the move frame
+ *   4       4     time the frame was read, ms in the robot's clock (unsigned, wraps around)
+ *   8       4     reserved (0)
+ *
+ * The robot sends its readings with OP_TELEMETRY whenever it likes (see Telemetry):
+ *
+ *   0       1     OP_TELEMETRY
+ *   1       1     reserved (0)
+ *   2       2     sequence number of the reading (unsigned, wraps around)
+ *   4       2     left speed, mm/s (signed)
+ *   6       2     right speed, mm/s (signed)
+ *   8       2     battery voltage, mV (unsigned)
+ *   10      2     range to the nearest obstacle, mm (unsigned, 0xffff if none)
+ */
+public class BinaryCommandEncoder implements CommandEncoder {
+
+    public static final int FRAME_SIZE = 12;
+    public static final byte OP_MOVE = 0x01;
+    public static final byte OP_PING = 0x02;
+    public static final byte OP_PONG = 0x03;
+    public static final byte OP_ACK = 0x04;
+    public static final byte OP_TELEMETRY = 0x05;
+    public static final int FLAG_ACK = 0x01;
+
+    private final byte[] mBuffer = new byte[FRAME_SIZE];
+    private final long mBaseNanos;
+    private int mSequence = 0;
+    private boolean mAckRequested = false;
+
+    public BinaryCommandEncoder() {
+        mBaseNanos = System.nanoTime();
+    }
+
+    @Override
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public int encodeMove(int left_power, int right_power) {
+        int timestamp = (int)((System.nanoTime() - mBaseNanos) / 1000000L);
+        mSequence = (mSequence + 1) & 0xffff;
+        int len = encode(mBuffer, 0, OP_MOVE, mSequence, left_power, right_power, timestamp);
+        if (mAckRequested) {
+            mBuffer[1] = FLAG_ACK;
+        }
+        return len;
+    }
+
+    // Set FLAG_ACK in the move frames encoded from now on
+    public void setAckRequested(boolean requested) {
+        mAckRequested = requested;
+    }
+
+    @Override
+    public int encodePing(int seq) {
+        int timestamp = (int)((System.nanoTime() - mBaseNanos) / 1000000L);
+        return encode(mBuffer, 0, OP_PING, seq & 0xffff, 0, 0, timestamp);
+    }
+
+    // Sequence number of the last encoded move frame
+    public int lastSequence() {
+        return mSequence;
+    }
+
+    static int encode(byte[] buf, int off, byte opcode, int seq, int left_power, int right_power, int timestamp) {
+        int left = clamp16(left_power);
+        int right = clamp16(right_power);
+        buf[off] = opcode;
+        buf[off + 1] = 0;
+        buf[off + 2] = (byte)(seq >> 8);
+        buf[off + 3] = (byte)seq;
+        buf[off + 4] = (byte)(left >> 8);
+        buf[off + 5] = (byte)left;
+        buf[off + 6] = (byte)(right >> 8);
+        buf[off + 7] = (byte)right;
+        buf[off + 8] = (byte)(timestamp >> 24);
+        buf[off + 9] = (byte)(timestamp >> 16);
+        buf[off + 10] = (byte)(timestamp >> 8);
+        buf[off + 11] = (byte)timestamp;
+        return FRAME_SIZE;
+    }
+
+    static int encodePong(byte[] buf, int off, int seq, long receive_ms, long transmit_ms) {
+        buf[off] = OP_PONG;
+        buf[off + 1] = 0;
+        buf[off + 2] = (byte)(seq >> 8);
+        buf[off + 3] = (byte)seq;
+        putInt32(buf, off + 4, receive_ms);
+        putInt32(buf, off + 8, transmit_ms);
+        return FRAME_SIZE;
+    }
+
+    static int encodeAck(byte[] buf, int off, int seq, long receive_ms) {
+        buf[off] = OP_ACK;
+        buf[off + 1] = 0;
+        buf[off + 2] = (byte)(seq >> 8);
+        buf[off + 3] = (byte)seq;
+        putInt32(buf, off + 4, receive_ms);
+        putInt32(buf, off + 8, 0);
+        return FRAME_SIZE;
+    }
+
+    static int encodeTelemetry(byte[] buf, int off, int seq, int left_speed, int right_speed,
+                               int battery_mv, int range_mm) {
+        int left = clamp16(left_speed);
+        int right = clamp16(right_speed);
+        buf[off] = OP_TELEMETRY;
+        buf[off + 1] = 0;
+        buf[off + 2] = (byte)(seq >> 8);
+        buf[off + 3] = (byte)seq;
+        buf[off + 4] = (byte)(left >> 8);
+        buf[off + 5] = (byte)left;
+        buf[off + 6] = (byte)(right >> 8);
+        buf[off + 7] = (byte)right;
+        buf[off + 8] = (byte)(battery_mv >> 8);
+        buf[off + 9] = (byte)battery_mv;
+        buf[off + 10] = (byte)(range_mm >> 8);
+        buf[off + 11] = (byte)range_mm;
+        return FRAME_SIZE;
+    }
+
+    private static void putInt32(byte[] buf, int off, long value) {
+        buf[off] = (byte)(value >> 24);
+        buf[off + 1] = (byte)(value >> 16);
+        buf[off + 2] = (byte)(value >> 8);
+        buf[off + 3] = (byte)value;
+    }
+
+    private static int clamp16(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    // Accessors for the receiving side
+
+    public static int opcodeOf(byte[] frame, int off) {
+        return frame[off] & 0xff;
+    }
+
+    public static int flagsOf(byte[] frame, int off) {
+        return frame[off + 1] & 0xff;
+    }
+
+    public static int sequenceOf(byte[] frame, int off) {
+        return ((frame[off + 2] & 0xff) << 8) | (frame[off + 3] & 0xff);
+    }
+
+    public static int leftPowerOf(byte[] frame, int off) {
+        return (short)(((frame[off + 4] & 0xff) << 8) | (frame[off + 5] & 0xff));
+    }
+
+    public static int rightPowerOf(byte[] frame, int off) {
+        return (short)(((frame[off + 6] & 0xff) << 8) | (frame[off + 7] & 0xff));
+    }
+
+    public static long timestampOf(byte[] frame, int off) {
+        return uint32(frame, off + 8);
+    }
+
+    // Robot clock fields of an OP_PONG frame
+    public static long pongReceiveTimeOf(byte[] frame, int off) {
+        return uint32(frame, off + 4);
+    }
+
+    public static long pongTransmitTimeOf(byte[] frame, int off) {
+        return uint32(frame, off + 8);
+    }
+
+    // Fields of an OP_TELEMETRY frame. The speeds are at the offsets of leftPowerOf()/rightPowerOf().
+    public static int batteryOf(byte[] frame, int off) {
+        return ((frame[off + 8] & 0xff) << 8) | (frame[off + 9] & 0xff);
+    }
+
+    public static int rangeOf(byte[] frame, int off) {
+        return ((frame[off + 10] & 0xff) << 8) | (frame[off + 11] & 0xff);
+    }
+
+    private static long uint32(byte[] frame, int off) {
+        return ((frame[off] & 0xffL) << 24) | ((frame[off + 1] & 0xff) << 16)
+                | ((frame[off + 2] & 0xff) << 8) | (frame[off + 3] & 0xff);
+    }
+
+    // True if sequence number a was issued after b, taking wrap around into account
+    public static boolean isNewer(int a, int b) {
+        int diff = (a - b) & 0xffff;
+        return diff != 0 && diff < 0x8000;
+    }
+}
@@ -0,0 +1,45 @@
+package com.apr1129.kzk.rcclient;
+
+import android.graphics.Bitmap;
+
+// Bitmaps to be reused through BitmapFactory.Options.inBitmap. Released from the UI thread and
+// acquired from the decode thread.
+public class BitmapPool {
+
+    private final Bitmap[] mFree;
+    private int mCount = 0;
+
+    public BitmapPool(int capacity) {
+        mFree = new Bitmap[capacity];
+    }
+
+    // Returns null if the pool is empty
+    public synchronized Bitmap acquire() {
+        if (mCount == 0) {
+            return null;
+        }
+        Bitmap bitmap = mFree[--mCount];
+        mFree[mCount] = null;
+        return bitmap;
+    }
+
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (mCount < mFree.length) {
+            mFree[mCount++] = bitmap;
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    // Drops all bitmaps, e.g. when the stream changes resolution
+    public synchronized void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mFree[i].recycle();
+            mFree[i] = null;
+        }
+        mCount = 0;
+    }
+}
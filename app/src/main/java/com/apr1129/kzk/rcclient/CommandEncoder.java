@@ -0,0 +1,14 @@
+package com.apr1129.kzk.rcclient;
+
+public interface CommandEncoder {
+
+    // Buffer which holds the last encoded command. It is reused for every command.
+    byte[] buffer();
+
+    // Encodes a move command into buffer() and returns the number of bytes written
+    int encodeMove(int left_power, int right_power);
+
+    // Encodes a link probe into buffer() and returns the number of bytes written.
+    // A robot which supports it answers with a PONG for the same seq (see LinkProbe).
+    int encodePing(int seq);
+}
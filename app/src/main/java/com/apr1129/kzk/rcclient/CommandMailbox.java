@@ -0,0 +1,43 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single slot holding the latest move command. Writers overwrite it, the sender drains it.
+// Both powers are packed with a "full" flag into one long, so post() and take() are a single atomic operation.
+public class CommandMailbox {
+
+    public static final long EMPTY = 0;
+    private static final long FULL = 1L << 32;
+
+    private final AtomicLong mSlot = new AtomicLong(EMPTY);
+
+    // Powers are clamped to 16 bits. Returns true if the slot was empty,
+    // i.e. the caller has to wake up the sender.
+    public boolean post(int left_power, int right_power) {
+        return mSlot.getAndSet(pack(left_power, right_power)) == EMPTY;
+    }
+
+    // Returns the latest command and empties the slot, or EMPTY if nothing was posted since the last call
+    public long take() {
+        return mSlot.getAndSet(EMPTY);
+    }
+
+    // Returns the latest command without emptying the slot
+    public long peek() {
+        return mSlot.get();
+    }
+
+    static long pack(int left_power, int right_power) {
+        int left = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, left_power));
+        int right = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, right_power));
+        return FULL | ((left & 0xffffL) << 16) | (right & 0xffffL);
+    }
+
+    public static int leftPowerOf(long command) {
+        return (short)(command >>> 16);
+    }
+
+    public static int rightPowerOf(long command) {
+        return (short)command;
+    }
+}
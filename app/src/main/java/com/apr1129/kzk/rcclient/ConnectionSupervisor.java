@@ -0,0 +1,77 @@
+package com.apr1129.kzk.rcclient;
+
+// Connection state of a client. Failures never end the control loop: the supervisor
+// hands out the delay until the next connection attempt instead.
+// All methods are called on the sender thread.
+public class ConnectionSupervisor {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_RECONNECTING = 3;
+
+    public interface Listener {
+        // elapsed_ms: for STATE_CONNECTED, the time since start() or since the connection was lost. Otherwise 0.
+        void onStateChanged(int state, long elapsed_ms);
+    }
+
+    private final ReconnectBackoff mBackoff;
+    private final Listener mListener;
+    private int mState = STATE_DISCONNECTED;
+    private long mSince = 0;
+    private int mFailures = 0;
+
+    public ConnectionSupervisor(ReconnectBackoff backoff, Listener listener) {
+        mBackoff = backoff;
+        mListener = listener;
+    }
+
+    public void start(long now) {
+        mBackoff.reset();
+        mFailures = 0;
+        mSince = now;
+        setState(STATE_CONNECTING, 0);
+    }
+
+    public void stop() {
+        setState(STATE_DISCONNECTED, 0);
+    }
+
+    // Returns the time it took to (re)connect
+    public long onConnected(long now) {
+        mBackoff.reset();
+        mFailures = 0;
+        long elapsed_ms = now - mSince;
+        setState(STATE_CONNECTED, elapsed_ms);
+        return elapsed_ms;
+    }
+
+    // Connect or write failed. Returns the delay until the next connection attempt.
+    public long onFailure(long now) {
+        mFailures++;
+        if (mState == STATE_CONNECTED) {
+            mSince = now;
+            setState(STATE_RECONNECTING, 0);
+        }
+        return mBackoff.nextDelay();
+    }
+
+    public int state() {
+        return mState;
+    }
+
+    // Failures since the last successful connection
+    public int consecutiveFailures() {
+        return mFailures;
+    }
+
+    private void setState(int state, long elapsed_ms) {
+        if (mState == state) {
+            return;
+        }
+        mState = state;
+        if (mListener != null) {
+            mListener.onStateChanged(state, elapsed_ms);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+
+// Connection, encoding and dispatch timing of move commands. Not thread safe:
+// everything except the setters runs on the sender thread.
+public class ControlSender {
+
+    // While the ack window is full, look for room this often
+    private static final long ACK_RETRY = 5; // ms
+
+    private final Transport mTransport;
+    private final boolean mDatagram;
+    private CommandEncoder mEncoder = new TextCommandEncoder();
+    private DispatchScheduler mScheduler;
+    private boolean mBinaryProtocolEnabled = false;
+
+    // Last command written
+    private boolean mHasSent = false;
+    private int mLastLeftPower = 0;
+    private int mLastRightPower = 0;
+    private boolean mSentOnLastTick = false;
+
+    // PING/PONG link probing, null while disabled
+    private LinkProbe mProbe;
+    private int mPingSeq = 0;
+    private long mNextPing = 0;
+
+    // Acknowledged commands, null while disabled. mAcking: in use on the current connection.
+    private AckWindow mAckWindow;
+    private boolean mAcking = false;
+
+    // Telemetry readings from the robot, null while disabled
+    private Telemetry mTelemetry;
+
+    // Reads the connection: mProbe, or mPlainReader without pings, for ACKs and telemetry only.
+    // null if nothing is read.
+    private LinkProbe mReader;
+    private LinkProbe mPlainReader;
+
+    private FlightRecorder mRecorder;
+    private SendSavings mSavings;
+
+    // Set by retire() from another thread
+    private volatile boolean mRetired = false;
+
+    // datagram: the transport may lose or reorder commands (UdpTransport)
+    public ControlSender(Transport transport, boolean datagram, DispatchScheduler scheduler) {
+        mTransport = transport;
+        mDatagram = datagram;
+        mScheduler = scheduler;
+    }
+
+    public void setScheduler(DispatchScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    // Offer the binary protocol on the next connection. Falls back to text if the server does not answer.
+    public void setBinaryProtocolEnabled(boolean enabled) {
+        mBinaryProtocolEnabled = enabled;
+    }
+
+    // Send a PING every LinkProbe.interval() and read the answers on a background thread.
+    // Takes effect on the next connection. null to disable.
+    public void setLinkProbe(LinkProbe probe) {
+        mProbe = probe;
+    }
+
+    public LinkProbe linkProbe() {
+        return mProbe;
+    }
+
+    // Bound the commands in flight by acknowledgments on binary TCP connections (AckWindow).
+    // Takes effect on the next connection. null to disable.
+    public void setAckWindow(AckWindow window) {
+        mAckWindow = window;
+    }
+
+    public AckWindow ackWindow() {
+        return mAckWindow;
+    }
+
+    // Read the robot's telemetry into telemetry. Takes effect on the next connection. null to disable.
+    public void setTelemetry(Telemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    // Record each command and how long its write took. null to stop recording.
+    public void setFlightRecorder(FlightRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    // Count the commands written against a fixed rate sender. null to disable.
+    public void setSendSavings(SendSavings savings) {
+        mSavings = savings;
+    }
+
+    public Transport transport() {
+        return mTransport;
+    }
+
+    public CommandEncoder encoder() {
+        return mEncoder;
+    }
+
+    public boolean isConnected() {
+        return mTransport.isConnected();
+    }
+
+    // Opens the connection if it is not open. Returns true if a new connection was opened.
+    public boolean ensureConnected(String address, int port) throws IOException {
+        if (mTransport.isConnected()) {
+            return false;
+        }
+
+        // The reader of the last connection must be gone before the next one is opened
+        if (mReader != null) {
+            mReader.stop();
+            mReader = null;
+        }
+
+        mTransport.connect(address, port);
+        if (mDatagram) {
+            // Datagrams can be lost or reordered. Binary frames carry the sequence number
+            // the receiver needs to drop stale ones.
+            mEncoder = new BinaryCommandEncoder();
+        } else if (mBinaryProtocolEnabled) {
+            mEncoder = ProtocolNegotiator.negotiate(mTransport, ProtocolNegotiator.DEFAULT_TIMEOUT);
+        } else {
+            mEncoder = new TextCommandEncoder();
+        }
+        mHasSent = false;
+        if (mRetired) {
+            // Replaced while connecting. The telemetry belongs to the next sender now.
+            return true;
+        }
+
+        // Acknowledgments need the sequence numbers of binary frames. Datagrams do not queue up.
+        boolean binary = mEncoder instanceof BinaryCommandEncoder;
+        AckWindow window = mAckWindow;
+        mAcking = window != null && binary && !mDatagram;
+        if (mAcking) {
+            window.reset();
+            ((BinaryCommandEncoder)mEncoder).setAckRequested(true);
+        }
+
+        Telemetry telemetry = mTelemetry;
+        if (telemetry != null) {
+            telemetry.reset();
+        }
+        LinkProbe probe = mProbe;
+        if (probe == null && (mAcking || telemetry != null)) {
+            if (mPlainReader == null) {
+                mPlainReader = new LinkProbe(new RttEstimator(), null);
+            }
+            probe = mPlainReader;
+        }
+        if (probe != null) {
+            probe.setAckWindow(mAcking ? window : null);
+            probe.setTelemetry(telemetry);
+            probe.start(mTransport, binary);
+            mReader = probe;
+            mNextPing = 0;
+        }
+        return true;
+    }
+
+    // Writes the command if the scheduler wants it sent.
+    // Returns the delay until the next tick or DispatchScheduler.NO_TICK.
+    public long tick(long now, int left_power, int right_power) throws IOException {
+        boolean idle = left_power == 0 && right_power == 0;
+        boolean changed = !mHasSent || left_power != mLastLeftPower || right_power != mLastRightPower;
+        mSentOnLastTick = false;
+        SendSavings savings = mSavings;
+        if (savings != null) {
+            savings.onTick(now);
+        }
+
+        // With the ack window full, the command waits here rather than in the socket buffer, and
+        // the newest one is written once there is room
+        boolean blocked = false;
+        if (mAcking) {
+            long now_nanos = System.nanoTime();
+            if (mAckWindow.isStalled(now_nanos)) {
+                throw new IOException("Acknowledgment timed out");
+            }
+            blocked = !mAckWindow.canSend(now_nanos);
+        }
+
+        if (!blocked && mScheduler.shouldSend(now, changed, idle)) {
+            writeMove(now, left_power, right_power);
+
+            mHasSent = true;
+            mLastLeftPower = left_power;
+            mLastRightPower = right_power;
+            mScheduler.onSent(now);
+            mSentOnLastTick = true;
+        }
+
+        long delay = mScheduler.nextDelay(now, idle);
+        if (blocked && (delay == DispatchScheduler.NO_TICK || delay > ACK_RETRY)) {
+            delay = ACK_RETRY;
+        }
+        LinkProbe probe = mProbe;
+        if (probe != null) {
+            if (now >= mNextPing) {
+                mPingSeq = (mPingSeq + 1) & 0xffff;
+                int len = mEncoder.encodePing(mPingSeq);
+                mTransport.write(mEncoder.buffer(), 0, len);
+                probe.estimator().onPingSent(mPingSeq, System.nanoTime());
+                mNextPing = now + probe.interval();
+            }
+
+            // Wake up for the next ping even if the scheduler has nothing to send
+            long ping_delay = mNextPing - now;
+            if (delay == DispatchScheduler.NO_TICK || ping_delay < delay) {
+                delay = ping_delay;
+            }
+        }
+        return delay;
+    }
+
+    // True if the last tick() wrote a command
+    public boolean sentOnLastTick() {
+        return mSentOnLastTick;
+    }
+
+    // Writes a zero-power command right away, e.g. first thing after a reconnect
+    public void sendStop(long now) throws IOException {
+        writeMove(now, 0, 0);
+
+        mHasSent = true;
+        mLastLeftPower = 0;
+        mLastRightPower = 0;
+        mScheduler.onSent(now);
+    }
+
+    // Delay after which the sender should run to send a change, or DispatchScheduler.NO_TICK
+    public long wakeDelay(long now) {
+        return mScheduler.wakeDelay(now);
+    }
+
+    private void writeMove(long now, int left_power, int right_power) throws IOException {
+        int len = mEncoder.encodeMove(left_power, right_power);
+        FlightRecorder recorder = mRecorder;
+        if (recorder == null) {
+            mTransport.write(mEncoder.buffer(), 0, len);
+        } else {
+            recorder.recordCommand(left_power, right_power, len);
+            long start = System.nanoTime();
+            mTransport.write(mEncoder.buffer(), 0, len);
+            recorder.recordWrite(len, (System.nanoTime() - start) / 1000);
+        }
+
+        SendSavings savings = mSavings;
+        if (savings != null) {
+            savings.onSent(now, len);
+        }
+        if (mAcking) {
+            mAckWindow.onSent(((BinaryCommandEncoder)mEncoder).lastSequence(), System.nanoTime());
+        }
+    }
+
+    // Safe to call from any thread. A connection which is still being opened is not set up
+    // any further: no reader is started and the telemetry is left alone. The caller closes it.
+    public void retire() {
+        mRetired = true;
+    }
+
+    // Safe to call from any thread. A LinkProbe reader ends by itself once the transport is closed.
+    public void close() {
+        mTransport.close();
+    }
+}
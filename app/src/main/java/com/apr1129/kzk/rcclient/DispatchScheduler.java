@@ -0,0 +1,23 @@
+package com.apr1129.kzk.rcclient;
+
+// Decides when the sender thread runs and whether it writes the current command.
+// All times are in ms on the same monotonic clock.
+public interface DispatchScheduler {
+
+    // Returned by nextDelay()/wakeDelay() when no tick needs to be scheduled
+    long NO_TICK = -1;
+
+    // Called on the sender thread with the command of this tick.
+    // changed: the command differs from the last one sent. idle: the command is a stop (0, 0).
+    boolean shouldSend(long now, boolean changed, boolean idle);
+
+    // Called on the sender thread after a command was written
+    void onSent(long now);
+
+    // Called on the sender thread at the end of each tick. Returns the delay until the next tick or NO_TICK.
+    long nextDelay(long now, boolean idle);
+
+    // Called on the sender thread after touchEvent() reported a change. Returns the delay after
+    // which the sender should run or NO_TICK if the next regular tick is soon enough.
+    long wakeDelay(long now);
+}
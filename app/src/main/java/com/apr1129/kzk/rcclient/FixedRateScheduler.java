@@ -0,0 +1,30 @@
+package com.apr1129.kzk.rcclient;
+
+// Sends the current command every interval whether or not it changed
+public class FixedRateScheduler implements DispatchScheduler {
+
+    private final long mInterval;
+
+    public FixedRateScheduler(long interval_ms) {
+        mInterval = interval_ms;
+    }
+
+    @Override
+    public boolean shouldSend(long now, boolean changed, boolean idle) {
+        return true;
+    }
+
+    @Override
+    public void onSent(long now) {
+    }
+
+    @Override
+    public long nextDelay(long now, boolean idle) {
+        return mInterval;
+    }
+
+    @Override
+    public long wakeDelay(long now) {
+        return NO_TICK;
+    }
+}
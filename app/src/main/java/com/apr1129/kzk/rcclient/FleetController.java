@@ -0,0 +1,703 @@
+package com.apr1129.kzk.rcclient;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives several robots over TCP from a single I/O thread with one Selector, instead of an
+// RcClient2 with a thread and a blocking socket per robot.
+//
+// Each robot has a CommandMailbox. post() overwrites its latest command from any thread and
+// wakes the I/O thread, which writes the new commands of all robots in one pass. An unchanged
+// command is resent every interval as a keepalive. A robot is written to only once its last
+// frame has left the socket, so a stalled link holds one frame and then sends the newest command.
+//
+// Connects, the binary handshake and writes never block. Host names are looked up on a thread
+// of their own and reused by reconnects, like TcpTransport does. Every robot has its own
+// ConnectionSupervisor and backoff. After each (re)connect it is sent a stop and stays stopped
+// until the next post().
+public class FleetController {
+
+    private static final String TAG = "FleetController";
+    public static final long DEFAULT_INTERVAL = 100; // ms between keepalives
+    public static final int DEFAULT_CONNECT_TIMEOUT = TcpTransport.DEFAULT_CONNECT_TIMEOUT; // ms
+    public static final int DEFAULT_WRITE_TIMEOUT = TcpTransport.DEFAULT_WRITE_TIMEOUT; // ms
+    private static final int BUFFER_SIZE = 256;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final String[] STATE_NAMES = {"disconnected", "connecting", "connected", "reconnecting"};
+
+    public interface Listener {
+        // Called on the I/O thread. state is one of ConnectionSupervisor.STATE_*. For
+        // STATE_CONNECTED, elapsed_ms is the time it took to (re)connect.
+        void onStateChanged(Robot robot, int state, long elapsed_ms);
+
+        // Called on the I/O thread for the first failure after a robot was connected or added.
+        // Retries are visible through the connection state.
+        void onError(Robot robot, IOException e);
+    }
+
+    // One endpoint. The getters can be called from any thread.
+    public static class Robot {
+        private final int mId;
+        private final String mAddress;
+        private final int mPort;
+        private final boolean mBinaryOffered;
+        private final CommandMailbox mMailbox = new CommandMailbox();
+        private final AtomicLong mPostNanos = new AtomicLong(0); // oldest post not yet written
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final LinkProbe mProbe; // null without pings
+        private final long mPingInterval;
+        private volatile boolean mRemoved = false;
+
+        // Set by the lookup thread. mResolved is reused by reconnects until a connect fails.
+        private volatile InetSocketAddress mResolved;
+        private volatile IOException mResolveError;
+
+        // Written by the I/O thread
+        private volatile int mState = ConnectionSupervisor.STATE_DISCONNECTED;
+        private volatile boolean mBinary = false;
+        private volatile long mConnects = 0;
+        private volatile long mFailures = 0;
+        private volatile long mCommands = 0;
+        private volatile long mBytes = 0;
+        private volatile long mStalls = 0;
+
+        // I/O thread only
+        private ConnectionSupervisor mSupervisor;
+        private boolean mStarted = false;
+        private boolean mResolving = false; // a lookup thread runs
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private CommandEncoder mEncoder; // null until the connection is ready for commands
+        private int mHandshake = -1; // bytes of HELLO_ACK received, -1 if not negotiating
+        private final ByteBuffer mOut = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer mIn = ByteBuffer.allocate(BUFFER_SIZE);
+        private long mDeadline = NO_DEADLINE; // connect, handshake or stalled write
+        private long mRetryAt = 0;
+        private long mNextSend = 0;
+        private long mNextPing = 0;
+        private int mPingSeq = 0;
+        private long mWriteNanos = 0; // post time of the frame being written, 0 if none
+        private int mLeftPower = 0;
+        private int mRightPower = 0;
+
+        private Robot(int id, String address, int port, boolean binary_offered, long ping_interval_ms) {
+            mId = id;
+            mAddress = address;
+            mPort = port;
+            mBinaryOffered = binary_offered;
+            mPingInterval = ping_interval_ms;
+            mProbe = ping_interval_ms > 0 ? new LinkProbe(new RttEstimator(), ping_interval_ms, null) : null;
+            mOut.limit(0);
+        }
+
+        public int id() {
+            return mId;
+        }
+
+        public String address() {
+            return mAddress;
+        }
+
+        public int port() {
+            return mPort;
+        }
+
+        // One of ConnectionSupervisor.STATE_*
+        public int state() {
+            return mState;
+        }
+
+        // The current connection uses BinaryCommandEncoder frames
+        public boolean isBinary() {
+            return mBinary;
+        }
+
+        // Successful connections, including the first
+        public long connects() {
+            return mConnects;
+        }
+
+        // Failed connects and lost connections
+        public long failures() {
+            return mFailures;
+        }
+
+        // Move commands written, including keepalives and stops
+        public long commandsSent() {
+            return mCommands;
+        }
+
+        public long bytesSent() {
+            return mBytes;
+        }
+
+        // Writes which did not fit into the send buffer and had to wait
+        public long stalls() {
+            return mStalls;
+        }
+
+        // post() -> command written to the socket, us
+        public LatencyHistogram latency() {
+            return mLatency;
+        }
+
+        // RTT, jitter and clock offset, null if pings are disabled
+        public RttEstimator link() {
+            return mProbe != null ? mProbe.estimator() : null;
+        }
+    }
+
+    private final long mInterval;
+    private final int mConnectTimeout;
+    private final int mWriteTimeout;
+    private final Listener mListener;
+    private final Object mLock = new Object();
+    private volatile Robot[] mRobots = new Robot[0];
+    private int mNextId = 0;
+    private long mPingInterval = 0;
+
+    private volatile Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+
+    public FleetController(Listener listener) {
+        this(DEFAULT_INTERVAL, DEFAULT_CONNECT_TIMEOUT, DEFAULT_WRITE_TIMEOUT, listener);
+    }
+
+    // interval_ms: keepalive period of an unchanged command
+    public FleetController(long interval_ms, int connect_timeout_ms, int write_timeout_ms, Listener listener) {
+        mInterval = interval_ms;
+        mConnectTimeout = connect_timeout_ms;
+        mWriteTimeout = write_timeout_ms;
+        mListener = listener;
+    }
+
+    // Measure RTT, jitter and clock offset with PING/PONG every interval_ms on robots added
+    // afterwards. 0 disables. The robots have to answer pings.
+    public void setPingInterval(long interval_ms) {
+        synchronized (mLock) {
+            mPingInterval = interval_ms;
+        }
+    }
+
+    // binary_offered: offer the binary protocol, falling back to text if the robot does not answer.
+    // Can be called before or after start().
+    public Robot addRobot(String address, int port, boolean binary_offered) {
+        final Robot robot;
+        synchronized (mLock) {
+            robot = new Robot(mNextId++, address, port, binary_offered, mPingInterval);
+            robot.mSupervisor = new ConnectionSupervisor(new ReconnectBackoff(), new ConnectionSupervisor.Listener() {
+                @Override
+                public void onStateChanged(int state, long elapsed_ms) {
+                    robot.mState = state;
+                    if (mListener != null) {
+                        mListener.onStateChanged(robot, state, elapsed_ms);
+                    }
+                }
+            });
+
+            Robot[] robots = new Robot[mRobots.length + 1];
+            System.arraycopy(mRobots, 0, robots, 0, mRobots.length);
+            robots[mRobots.length] = robot;
+            mRobots = robots;
+        }
+        wakeup();
+        return robot;
+    }
+
+    // The connection is closed by the I/O thread
+    public void removeRobot(Robot robot) {
+        synchronized (mLock) {
+            robot.mRemoved = true;
+            if (mThread == null) {
+                drop(robot);
+            }
+        }
+        wakeup();
+    }
+
+    public Robot[] robots() {
+        return mRobots.clone();
+    }
+
+    // Latest command for one robot. Any thread.
+    public void post(Robot robot, int left_power, int right_power) {
+        robot.mPostNanos.compareAndSet(0, System.nanoTime());
+        if (robot.mMailbox.post(left_power, right_power)) {
+            wakeup();
+        }
+    }
+
+    // The same command for every robot, written in one pass
+    public void postAll(int left_power, int right_power) {
+        long now_nanos = System.nanoTime();
+        boolean wake = false;
+        for (Robot robot : mRobots) {
+            robot.mPostNanos.compareAndSet(0, now_nanos);
+            wake |= robot.mMailbox.post(left_power, right_power);
+        }
+        if (wake) {
+            wakeup();
+        }
+    }
+
+    public void stopAll() {
+        postAll(0, 0);
+    }
+
+    public void start() throws IOException {
+        stop();
+
+        mSelector = Selector.open();
+        mRunning = true;
+        synchronized (mLock) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "FleetController");
+        }
+        mThread.start();
+    }
+
+    // Closes every connection. The robots stay added for the next start().
+    public void stop() {
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (mLock) {
+            mThread = null;
+            for (Robot robot : mRobots) {
+                close(robot);
+                robot.mSupervisor.stop();
+                robot.mStarted = false;
+                if (robot.mRemoved) {
+                    drop(robot);
+                }
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception in Selector#close", e);
+        }
+        mSelector = null;
+    }
+
+    // One line per robot: state, commands, stalls, failures, post-to-wire p50/p99 and RTT. Allocates.
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Robot robot : mRobots) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            LatencyHistogram latency = robot.mLatency;
+            sb.append(String.format(Locale.US, "#%-3d %s:%d %-12s sent=%-6d stalls=%-4d failures=%-4d p50=%5.1f p99=%5.1f ms",
+                    robot.mId, robot.mAddress, robot.mPort, STATE_NAMES[robot.mState], robot.mCommands,
+                    robot.mStalls, robot.mFailures, latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0));
+            RttEstimator link = robot.link();
+            if (link != null && link.samples() > 0) {
+                sb.append(String.format(Locale.US, " rtt=%.1f ms", link.smoothedRttMicros() / 1000.0));
+            }
+        }
+        return sb.toString();
+    }
+
+    private void wakeup() {
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // Called with mLock held
+    private void drop(Robot robot) {
+        Robot[] robots = mRobots;
+        for (int i = 0; i < robots.length; i++) {
+            if (robots[i] == robot) {
+                Robot[] rest = new Robot[robots.length - 1];
+                System.arraycopy(robots, 0, rest, 0, i);
+                System.arraycopy(robots, i + 1, rest, i, rest.length - i);
+                mRobots = rest;
+                return;
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private void loop() {
+        Selector selector = mSelector;
+        while (mRunning) {
+            long now = now();
+            long next = NO_DEADLINE;
+            for (Robot robot : mRobots) {
+                next = Math.min(next, service(robot, now));
+            }
+
+            try {
+                if (next == NO_DEADLINE) {
+                    selector.select();
+                } else if (next > now) {
+                    selector.select(next - now);
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Exception in Selector#select", e);
+                return;
+            }
+
+            now = now();
+            for (SelectionKey key : selector.selectedKeys()) {
+                onReady((Robot)key.attachment(), key, now);
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    // Connects, writes the robot's new command or keepalive and enforces deadlines.
+    // Returns the time the robot needs to be serviced again.
+    private long service(Robot robot, long now) {
+        if (robot.mRemoved) {
+            close(robot);
+            robot.mSupervisor.stop();
+            synchronized (mLock) {
+                drop(robot);
+            }
+            return NO_DEADLINE;
+        }
+        if (!robot.mStarted) {
+            robot.mStarted = true;
+            robot.mSupervisor.start(now);
+            robot.mRetryAt = now;
+        }
+
+        if (robot.mChannel == null) {
+            if (now < robot.mRetryAt) {
+                return robot.mRetryAt;
+            }
+            if (!resolve(robot, now)) {
+                // The lookup thread wakes up the selector
+                return robot.mResolving ? NO_DEADLINE : robot.mRetryAt;
+            }
+            connect(robot, now);
+        }
+        if (robot.mChannel != null && robot.mEncoder == null && now >= robot.mDeadline) {
+            if (robot.mHandshake >= 0) {
+                // The robot does not know the handshake
+                ready(robot, new TextCommandEncoder(), now);
+            } else {
+                fail(robot, now, new SocketTimeoutException("Connect timed out"));
+            }
+        }
+        if (robot.mChannel == null) {
+            return robot.mRetryAt;
+        }
+        if (robot.mEncoder == null) {
+            // Connecting or negotiating
+            return robot.mDeadline;
+        }
+
+        try {
+            if (robot.mOut.hasRemaining()) {
+                if (now >= robot.mDeadline) {
+                    throw new SocketTimeoutException("Write timed out");
+                }
+                return robot.mDeadline;
+            }
+
+            // Take the post time before the command, so a command is never written without it
+            long post_nanos = robot.mPostNanos.getAndSet(0);
+            long command = robot.mMailbox.take();
+            if (command != CommandMailbox.EMPTY) {
+                robot.mLeftPower = CommandMailbox.leftPowerOf(command);
+                robot.mRightPower = CommandMailbox.rightPowerOf(command);
+                writeMove(robot, post_nanos, now);
+            } else {
+                if (post_nanos != 0) {
+                    robot.mPostNanos.compareAndSet(0, post_nanos);
+                }
+                if (now >= robot.mNextSend) {
+                    writeMove(robot, 0, now);
+                }
+            }
+
+            if (robot.mProbe != null && now >= robot.mNextPing && !robot.mOut.hasRemaining()) {
+                robot.mPingSeq = (robot.mPingSeq + 1) & 0xffff;
+                int len = robot.mEncoder.encodePing(robot.mPingSeq);
+                write(robot, len, 0, now);
+                robot.mProbe.estimator().onPingSent(robot.mPingSeq, System.nanoTime());
+                robot.mNextPing = now + robot.mPingInterval;
+            }
+        } catch (IOException e) {
+            fail(robot, now, e);
+            return robot.mRetryAt;
+        }
+
+        if (robot.mOut.hasRemaining()) {
+            return robot.mDeadline;
+        }
+        long next = robot.mNextSend;
+        if (robot.mProbe != null) {
+            next = Math.min(next, robot.mNextPing);
+        }
+        return next;
+    }
+
+    private void onReady(Robot robot, SelectionKey key, long now) {
+        if (robot.mKey != key || !key.isValid()) {
+            // Closed earlier in this pass
+            return;
+        }
+
+        try {
+            if (key.isConnectable()) {
+                if (robot.mChannel.finishConnect()) {
+                    onOpened(robot, now);
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read(robot, now);
+            }
+            if (robot.mKey == key && key.isValid() && key.isWritable()) {
+                flush(robot, now);
+            }
+        } catch (IOException e) {
+            fail(robot, now, e);
+        }
+    }
+
+    // True once the robot's address is resolved. Otherwise looks it up on a thread of its own,
+    // since a DNS lookup can take seconds, or fails the connect if the lookup failed.
+    private boolean resolve(final Robot robot, long now) {
+        if (robot.mResolved != null) {
+            robot.mResolving = false;
+            return true;
+        }
+        if (robot.mResolving) {
+            IOException e = robot.mResolveError;
+            if (e != null) {
+                robot.mResolveError = null;
+                robot.mResolving = false;
+                fail(robot, now, e);
+            }
+            return false;
+        }
+
+        robot.mResolving = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InetSocketAddress address = new InetSocketAddress(robot.mAddress, robot.mPort);
+                if (address.isUnresolved()) {
+                    robot.mResolveError = new UnknownHostException(robot.mAddress);
+                } else {
+                    robot.mResolved = address;
+                }
+                wakeup();
+            }
+        }, "FleetController-resolve").start();
+        return false;
+    }
+
+    private void connect(Robot robot, long now) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            robot.mChannel = channel;
+            channel.configureBlocking(false);
+            // Commands are a few bytes long. Don't let Nagle hold them back.
+            channel.socket().setTcpNoDelay(true);
+            robot.mKey = channel.register(mSelector, 0, robot);
+            robot.mDeadline = now + mConnectTimeout;
+            if (channel.connect(robot.mResolved)) {
+                onOpened(robot, now);
+            } else {
+                robot.mKey.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            fail(robot, now, e);
+        }
+    }
+
+    // Reads from now on, so a connection closed by the robot is noticed right away
+    private void onOpened(Robot robot, long now) throws IOException {
+        robot.mKey.interestOps(SelectionKey.OP_READ);
+        if (robot.mProbe != null) {
+            robot.mProbe.reset();
+        }
+        if (!robot.mBinaryOffered) {
+            ready(robot, new TextCommandEncoder(), now);
+            return;
+        }
+
+        robot.mHandshake = 0;
+        robot.mOut.clear();
+        robot.mOut.put(ProtocolNegotiator.HELLO);
+        robot.mOut.flip();
+        flush(robot, now);
+        if (!robot.mOut.hasRemaining()) {
+            // Otherwise flush() sets the deadline of the stalled write, and this one once it is out
+            robot.mDeadline = now + ProtocolNegotiator.DEFAULT_TIMEOUT;
+        }
+    }
+
+    // The connection takes commands
+    private void ready(Robot robot, CommandEncoder encoder, long now) {
+        robot.mHandshake = -1;
+        robot.mDeadline = NO_DEADLINE;
+        robot.mEncoder = encoder;
+        robot.mBinary = encoder instanceof BinaryCommandEncoder;
+        robot.mConnects++;
+        robot.mSupervisor.onConnected(now);
+
+        // Drop what was posted while disconnected. The robot stops until the next post().
+        robot.mMailbox.take();
+        robot.mPostNanos.set(0);
+        robot.mLeftPower = 0;
+        robot.mRightPower = 0;
+        robot.mNextPing = now;
+        try {
+            writeMove(robot, 0, now);
+        } catch (IOException e) {
+            fail(robot, now, e);
+        }
+    }
+
+    private void read(Robot robot, long now) throws IOException {
+        ByteBuffer in = robot.mIn;
+        in.clear();
+        int n = robot.mChannel.read(in);
+        if (n < 0) {
+            throw new EOFException("Connection closed by the robot");
+        }
+
+        int off = 0;
+        if (robot.mHandshake >= 0) {
+            off = handshake(robot, in.array(), n, now);
+        }
+        if (robot.mProbe != null && robot.mEncoder != null && off < n) {
+            robot.mProbe.feed(in.array(), off, n - off, robot.mBinary, System.nanoTime());
+        }
+    }
+
+    // Matches received bytes against the handshake answer. Returns the number of bytes consumed.
+    private int handshake(Robot robot, byte[] buf, int n, long now) {
+        byte[] ack = ProtocolNegotiator.HELLO_ACK;
+        for (int i = 0; i < n; i++) {
+            if (buf[i] != ack[robot.mHandshake]) {
+                ready(robot, new TextCommandEncoder(), now);
+                return n;
+            }
+            if (++robot.mHandshake == ack.length) {
+                ready(robot, new BinaryCommandEncoder(), now);
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    private void writeMove(Robot robot, long post_nanos, long now) throws IOException {
+        int len = robot.mEncoder.encodeMove(robot.mLeftPower, robot.mRightPower);
+        write(robot, len, post_nanos, now);
+        robot.mCommands++;
+        robot.mNextSend = now + mInterval;
+    }
+
+    // Appends behind what is still unsent, which is at most the tail of the HELLO
+    private void write(Robot robot, int len, long post_nanos, long now) throws IOException {
+        robot.mOut.compact();
+        robot.mOut.put(robot.mEncoder.buffer(), 0, len);
+        robot.mOut.flip();
+        robot.mWriteNanos = post_nanos;
+        flush(robot, now);
+    }
+
+    private void flush(Robot robot, long now) throws IOException {
+        ByteBuffer out = robot.mOut;
+        robot.mBytes += robot.mChannel.write(out);
+        SelectionKey key = robot.mKey;
+        if (out.hasRemaining()) {
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                // Send buffer is full. Wait for room, but not longer than the write timeout.
+                robot.mStalls++;
+                robot.mDeadline = now + mWriteTimeout;
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (robot.mEncoder != null) {
+                robot.mDeadline = NO_DEADLINE;
+            } else if (robot.mHandshake >= 0) {
+                // The HELLO is out. Wait for the answer.
+                robot.mDeadline = now + ProtocolNegotiator.DEFAULT_TIMEOUT;
+            }
+        }
+        if (robot.mWriteNanos != 0) {
+            robot.mLatency.recordNanos(System.nanoTime() - robot.mWriteNanos);
+            robot.mWriteNanos = 0;
+        }
+    }
+
+    private void fail(Robot robot, long now, IOException e) {
+        if (robot.mEncoder == null) {
+            // The connect failed. Look the robot up again, in case it moved.
+            robot.mResolved = null;
+        }
+        close(robot);
+        robot.mFailures++;
+        robot.mRetryAt = now + robot.mSupervisor.onFailure(now);
+        if (robot.mSupervisor.consecutiveFailures() == 1 && mListener != null) {
+            mListener.onError(robot, e);
+        }
+    }
+
+    private static void close(Robot robot) {
+        SocketChannel channel = robot.mChannel;
+        robot.mChannel = null;
+        robot.mKey = null;
+        robot.mEncoder = null;
+        robot.mHandshake = -1;
+        robot.mDeadline = NO_DEADLINE;
+        robot.mOut.limit(0);
+        robot.mWriteNanos = 0;
+        if (channel != null) {
+            try {
+                // Also cancels the key
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception in SocketChannel#close", e);
+            }
+        }
+    }
+}
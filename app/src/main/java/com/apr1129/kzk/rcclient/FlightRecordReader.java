@@ -0,0 +1,171 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads a FlightRecorder file, oldest record first. Pure Java, so it also runs on a PC:
+//   java -cp classes com.apr1129.kzk.rcclient.FlightRecordReader flight.rec > flight.csv
+public class FlightRecordReader {
+
+    public static final String CSV_HEADER = "index,wall_ms,elapsed_us,type,flags,a,b,c";
+
+    public static class Record {
+        public final long index;
+        public final long nanos;
+        public final int type;
+        public final int flags;
+        public final int a;
+        public final int b;
+        public final int c;
+
+        Record(long index, long nanos, int type, int flags, int a, int b, int c) {
+            this.index = index;
+            this.nanos = nanos;
+            this.type = type;
+            this.flags = flags;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+    }
+
+    private final long mStartWallMillis;
+    private final long mStartNanos;
+    private final long mCount;
+    private final List<Record> mRecords = new ArrayList<>();
+
+    public FlightRecordReader(File file) throws IOException {
+        ByteBuffer buffer;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = ByteBuffer.allocate((int)channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < FlightRecorder.HEADER_SIZE || buffer.getInt(0) != FlightRecorder.MAGIC) {
+            throw new IOException("Not a flight recording: " + file);
+        }
+        if (buffer.getInt(4) != FlightRecorder.VERSION) {
+            throw new IOException("Unsupported flight recording version " + buffer.getInt(4));
+        }
+        int record_size = buffer.getInt(8);
+        int capacity = buffer.getInt(12);
+        if (record_size != FlightRecorder.RECORD_SIZE
+                || FlightRecorder.HEADER_SIZE + (long)capacity * record_size > buffer.capacity()) {
+            throw new IOException("Truncated flight recording: " + file);
+        }
+        mStartWallMillis = buffer.getLong(16);
+        mStartNanos = buffer.getLong(24);
+        // Records written concurrently may have left the count in the header a few behind
+        long count = buffer.getLong(FlightRecorder.HEADER_COUNT);
+        for (int slot = 0; slot < capacity; slot++) {
+            count = Math.max(count, buffer.getLong(FlightRecorder.HEADER_SIZE + slot * record_size) + 1);
+        }
+        mCount = count;
+
+        // Slots overwritten since, or torn by a crash, carry another index and are skipped
+        for (long i = Math.max(0, mCount - capacity); i < mCount; i++) {
+            int pos = FlightRecorder.HEADER_SIZE + (int)(i % capacity) * record_size;
+            if (buffer.getLong(pos) != i) {
+                continue;
+            }
+            mRecords.add(new Record(i, buffer.getLong(pos + 8), buffer.getShort(pos + 16) & 0xffff,
+                    buffer.getShort(pos + 18) & 0xffff, buffer.getInt(pos + 20), buffer.getInt(pos + 24),
+                    buffer.getInt(pos + 28)));
+        }
+    }
+
+    public long startWallMillis() {
+        return mStartWallMillis;
+    }
+
+    // Records written in total, including those overwritten by the ring
+    public long count() {
+        return mCount;
+    }
+
+    // The records still in the file, oldest first
+    public List<Record> records() {
+        return mRecords;
+    }
+
+    public static String typeName(int type) {
+        switch (type) {
+            case FlightRecorder.TYPE_TOUCH:
+                return "touch";
+            case FlightRecorder.TYPE_COMMAND:
+                return "command";
+            case FlightRecorder.TYPE_WRITE:
+                return "write";
+            case FlightRecorder.TYPE_CONNECT:
+                return "connect";
+            case FlightRecorder.TYPE_DISCONNECT:
+                return "disconnect";
+            case FlightRecorder.TYPE_HISTORY:
+                return "history";
+            default:
+                return Integer.toString(type);
+        }
+    }
+
+    // One line per record. Touch coordinates are written as floats.
+    public void writeCsv(Writer writer) throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        out.print(CSV_HEADER);
+        out.print('\n');
+        for (Record record : mRecords) {
+            long elapsed_us = (record.nanos - mStartNanos) / 1000;
+            out.print(record.index);
+            out.print(',');
+            out.print(mStartWallMillis + elapsed_us / 1000);
+            out.print(',');
+            out.print(elapsed_us);
+            out.print(',');
+            out.print(typeName(record.type));
+            out.print(',');
+            out.print(record.flags);
+            out.print(',');
+            out.print(record.a);
+            out.print(',');
+            if (record.type == FlightRecorder.TYPE_TOUCH || record.type == FlightRecorder.TYPE_HISTORY) {
+                out.print(Float.intBitsToFloat(record.b));
+                out.print(',');
+                out.print(Float.intBitsToFloat(record.c));
+            } else {
+                out.print(record.b);
+                out.print(',');
+                out.print(record.c);
+            }
+            out.print('\n');
+        }
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Failed to write CSV");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: FlightRecordReader <recording>");
+            System.exit(2);
+        }
+        new FlightRecordReader(new File(args[0])).writeCsv(new OutputStreamWriter(System.out, "UTF-8"));
+    }
+}
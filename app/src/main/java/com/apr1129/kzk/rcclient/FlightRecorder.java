@@ -0,0 +1,191 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ring buffer of fixed-size binary records in a memory-mapped file. Recording a sample is a few
+// stores into the mapping: no allocation, no syscall, no lock. Each record reserves its slot
+// with an atomic increment, so the UI thread and the sender thread never wait for each other.
+// The kernel writes the pages back, so the last records survive a crash of the app. Convert a
+// recording with FlightRecordReader.
+//
+// File layout, little endian:
+//   header (HEADER_SIZE bytes)
+//     0  int   MAGIC
+//     4  int   VERSION
+//     8  int   RECORD_SIZE
+//     12 int   capacity in records
+//     16 long  wall clock at open, ms
+//     24 long  System.nanoTime() at open
+//     32 long  number of records written, updated after each record. Concurrent records may
+//              leave it a few behind; the reader also goes by the indices in the slots.
+//   capacity records (RECORD_SIZE bytes), record i in slot i % capacity
+//     0  long  index i, -1 while the record is written
+//     8  long  System.nanoTime()
+//     16 short TYPE_*
+//     18 short flags
+//     20 int   a
+//     24 int   b
+//     28 int   c
+//
+//   TYPE_TOUCH       flags (unsigned): MotionEvent action | pointer index << 8 | action index << 12,
+//                    a: pointer id, b/c: x/y as float bits. One record per pointer, index 0 starts
+//                    an event.
+//   TYPE_HISTORY     flags (unsigned): age | pointer index << 8, a/b/c as TYPE_TOUCH. A sample
+//                    batched into the event before, age ms older than it, capped at 255. They
+//                    follow the records of their event, oldest first, one record per pointer.
+//   TYPE_COMMAND     a/b: left/right power, c: bytes written
+//   TYPE_WRITE       a: bytes, b: duration of the write, us
+//   TYPE_CONNECT     flags: 1 for the binary protocol, a: time to (re)connect, ms
+//   TYPE_DISCONNECT  a: consecutive failures
+public class FlightRecorder {
+
+    public static final int MAGIC = 0x52434652; // "RCFR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_CAPACITY = 1 << 17; // 4 MB, several minutes of driving
+
+    public static final int TYPE_TOUCH = 1;
+    public static final int TYPE_COMMAND = 2;
+    public static final int TYPE_WRITE = 3;
+    public static final int TYPE_CONNECT = 4;
+    public static final int TYPE_DISCONNECT = 5;
+    public static final int TYPE_HISTORY = 6;
+
+    static final int HEADER_COUNT = 32;
+
+    private final File mFile;
+    private final int mCapacity;
+    private RandomAccessFile mRaf;
+    private volatile MappedByteBuffer mBuffer;
+    private final AtomicLong mCount = new AtomicLong();
+
+    // An existing recording is kept as <file>.prev, so the one of a crashed session survives the restart
+    public FlightRecorder(File file, int capacity) throws IOException {
+        mFile = file;
+        mCapacity = capacity;
+
+        if (file.exists()) {
+            File prev = previousOf(file);
+            prev.delete();
+            if (!file.renameTo(prev)) {
+                throw new IOException("Failed to keep the previous recording " + prev);
+            }
+        }
+
+        long size = HEADER_SIZE + (long)capacity * RECORD_SIZE;
+        mRaf = new RandomAccessFile(file, "rw");
+        try {
+            mRaf.setLength(size);
+            mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            mRaf.close();
+            throw e;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(8, RECORD_SIZE);
+        mBuffer.putInt(12, capacity);
+        mBuffer.putLong(16, System.currentTimeMillis());
+        mBuffer.putLong(24, System.nanoTime());
+        mBuffer.putLong(HEADER_COUNT, 0);
+        // Empty slots must not read as record 0, the reader looks at every slot
+        for (int i = 0; i < capacity; i++) {
+            mBuffer.putLong(HEADER_SIZE + i * RECORD_SIZE, -1);
+        }
+    }
+
+    public static File previousOf(File file) {
+        return new File(file.getPath() + ".prev");
+    }
+
+    public File file() {
+        return mFile;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public long count() {
+        return mCount.get();
+    }
+
+    // action: masked MotionEvent action. Indices up to PointerTracker.MAX_POINTERS.
+    public void recordTouch(int action, int action_index, int pointer_index, int pointer_id, float x, float y) {
+        record(TYPE_TOUCH, (action & 0xff) | (pointer_index & 0xf) << 8 | (action_index & 0xf) << 12, pointer_id,
+                Float.floatToRawIntBits(x), Float.floatToRawIntBits(y));
+    }
+
+    // A historical sample of the last recordTouch() event, age_ms before it
+    public void recordHistory(int pointer_index, int pointer_id, float x, float y, long age_ms) {
+        record(TYPE_HISTORY, (int)Math.max(0, Math.min(age_ms, 0xff)) | (pointer_index & 0xf) << 8, pointer_id,
+                Float.floatToRawIntBits(x), Float.floatToRawIntBits(y));
+    }
+
+    public void recordCommand(int left_power, int right_power, int bytes) {
+        record(TYPE_COMMAND, 0, left_power, right_power, bytes);
+    }
+
+    public void recordWrite(int bytes, long micros) {
+        record(TYPE_WRITE, 0, bytes, (int)Math.min(micros, Integer.MAX_VALUE), 0);
+    }
+
+    public void recordConnect(boolean binary, long elapsed_ms) {
+        record(TYPE_CONNECT, binary ? 1 : 0, (int)Math.min(elapsed_ms, Integer.MAX_VALUE), 0, 0);
+    }
+
+    public void recordDisconnect(int consecutive_failures) {
+        record(TYPE_DISCONNECT, 0, consecutive_failures, 0, 0);
+    }
+
+    // Safe to call from any thread, without locking: threads write to slots of their own, with
+    // absolute stores only. Does nothing once closed.
+    public void record(int type, int flags, int a, int b, int c) {
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            return;
+        }
+        long index = mCount.getAndIncrement();
+
+        // Invalidate the slot first, so a record torn by a crash is not read as the old one
+        int pos = HEADER_SIZE + (int)(index % mCapacity) * RECORD_SIZE;
+        buffer.putLong(pos, -1);
+        buffer.putLong(pos + 8, System.nanoTime());
+        buffer.putShort(pos + 16, (short)type);
+        buffer.putShort(pos + 18, (short)flags);
+        buffer.putInt(pos + 20, a);
+        buffer.putInt(pos + 24, b);
+        buffer.putInt(pos + 28, c);
+        buffer.putLong(pos, index);
+        buffer.putLong(HEADER_COUNT, index + 1);
+    }
+
+    // Writes the mapping back to the file. Not needed for a crash of the app, only of the device.
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    public synchronized void close() {
+        if (mBuffer == null) {
+            return;
+        }
+        mBuffer.force();
+        mBuffer = null;
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        mRaf = null;
+    }
+}
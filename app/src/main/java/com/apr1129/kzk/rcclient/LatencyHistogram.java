@@ -0,0 +1,113 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed bucket histogram of latencies in microseconds. Each power of two is split into
+// SUB_BUCKETS linear buckets, so a value is known within 1/SUB_BUCKETS (12.5%).
+// record() does not allocate or lock and can be called from any thread.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 36; // ~19 hours, larger values go to the last bucket
+    public static final int BUCKET_COUNT = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong(0);
+    private final AtomicLong mSum = new AtomicLong(0);
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    public void record(long value_us) {
+        if (value_us < 0) {
+            value_us = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(value_us));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value_us);
+
+        long max = mMax.get();
+        while (value_us > max && !mMax.compareAndSet(max, value_us)) {
+            max = mMax.get();
+        }
+    }
+
+    public void recordNanos(long value_ns) {
+        record(value_ns / 1000);
+    }
+
+    public long count() {
+        return mCount.get();
+    }
+
+    public long max() {
+        return mMax.get();
+    }
+
+    public long mean() {
+        long count = mCount.get();
+        return count > 0 ? mSum.get() / count : 0;
+    }
+
+    // Upper bound of the bucket holding the p-th value (0 < p <= 1), capped by the maximum
+    public long percentile(double p) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    // Copies the bucket counts into dst, which must hold BUCKET_COUNT values
+    public void copyCounts(long[] dst) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            dst[i] = mCounts.get(i);
+        }
+    }
+
+    // Not atomic with concurrent record() calls: a sample may be lost
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb >= MAX_BITS) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = msb - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((value >> shift) - SUB_BUCKETS);
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long)(bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return lowerBoundOf(bucket) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,61 @@
+package com.apr1129.kzk.rcclient;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.TextView;
+
+// Shows LatencyStats.summary() on top of the camera view, refreshed while visible
+public class LatencyOverlay extends TextView {
+
+    private static final int REFRESH_INTERVAL = 500; // ms
+
+    private LatencyStats mStats;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mStats != null) {
+                setText(mStats.summary());
+            }
+            postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    public LatencyOverlay(Context context) {
+        this(context, null);
+    }
+
+    public LatencyOverlay(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public void setStats(LatencyStats stats) {
+        mStats = stats;
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changed_view, int visibility) {
+        super.onVisibilityChanged(changed_view, visibility);
+        updateRefresh();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateRefresh();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mRefreshRunnable);
+        super.onDetachedFromWindow();
+    }
+
+    private void updateRefresh() {
+        removeCallbacks(mRefreshRunnable);
+        if (isShown()) {
+            post(mRefreshRunnable);
+        }
+    }
+}
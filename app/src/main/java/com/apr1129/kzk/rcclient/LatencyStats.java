@@ -0,0 +1,97 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Latency of each stage between the operator's thumb and the robot, and between the camera
+// and the screen. Recording does not allocate, so it can stay enabled.
+//
+// Touch timestamps are handed from stage to stage: the newest touch dispatched and not yet
+// enqueued, and the oldest touch enqueued and not yet written.
+public class LatencyStats {
+
+    public static final int STAGE_INPUT = 0; // MotionEvent event time -> dispatchTouchEvent (ms resolution)
+    public static final int STAGE_ENQUEUE = 1; // dispatchTouchEvent -> command published to the sender thread
+    public static final int STAGE_WIRE = 2; // dispatchTouchEvent -> socket write completed
+    public static final int STAGE_FRAME_DECODE = 3; // MJPEG frame received -> decoded
+    public static final int STAGE_FRAME_DISPLAY = 4; // MJPEG frame received -> posted to the screen
+    public static final int STAGE_RENDER = 5; // drawing of one frame
+    public static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "input", "enqueue", "touch-to-wire", "frame decode", "frame-to-display", "render"
+    };
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLong mInputNanos = new AtomicLong(0);
+    private final AtomicLong mTouchNanos = new AtomicLong(0);
+
+    public LatencyStats() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram histogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    public static String stageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void record(int stage, long nanos) {
+        mHistograms[stage].recordNanos(nanos);
+    }
+
+    // UI thread, when a MotionEvent arrives. event_time_ms and now_ms are SystemClock.uptimeMillis() based.
+    public void onInput(long event_time_ms, long now_ms, long now_nanos) {
+        mHistograms[STAGE_INPUT].record((now_ms - event_time_ms) * 1000);
+        mInputNanos.set(now_nanos);
+    }
+
+    // After the command of the last input was published to the sender
+    public void onEnqueued(long now_nanos) {
+        long input = mInputNanos.getAndSet(0);
+        if (input == 0) {
+            return;
+        }
+        mHistograms[STAGE_ENQUEUE].recordNanos(now_nanos - input);
+
+        // Keep the oldest touch until a command goes out
+        mTouchNanos.compareAndSet(0, input);
+    }
+
+    // Sender thread, before it reads the command to send. Returns 0 if no touch is waiting.
+    public long takeTouch() {
+        return mTouchNanos.getAndSet(0);
+    }
+
+    // Sender thread, after the write of a command which reflects the touch from takeTouch()
+    public void onWire(long touch_nanos, long now_nanos) {
+        if (touch_nanos != 0) {
+            mHistograms[STAGE_WIRE].recordNanos(now_nanos - touch_nanos);
+        }
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    // One line per stage: count, p50, p99 and max in ms. Allocates.
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(String.format(Locale.US, "%-16s n=%-6d p50=%6.1f p99=%6.1f max=%6.1f ms",
+                    STAGE_NAMES[i], histogram.count(), histogram.percentile(0.5) / 1000.0,
+                    histogram.percentile(0.99) / 1000.0, histogram.max() / 1000.0));
+        }
+        return sb.toString();
+    }
+}
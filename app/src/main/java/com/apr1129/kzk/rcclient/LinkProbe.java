@@ -0,0 +1,209 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+
+// Reads PONG answers from the control connection on a thread of its own and feeds them to an
+// RttEstimator. Everything is parsed in place from one reused buffer, without allocating.
+//
+// Answers are BinaryCommandEncoder.OP_PONG frames on binary connections and
+// "PONG <seq> <receive ms> <transmit ms>\n" lines on text connections. OP_ACK frames go to the
+// AckWindow and telemetry readings to the Telemetry, if they are set.
+public class LinkProbe {
+
+    public static final long DEFAULT_INTERVAL = 1000; // ms between pings
+    private static final int READ_TIMEOUT = 200; // ms, how quickly stop() is noticed
+    private static final int MAX_LINE_LENGTH = 64;
+
+    public interface Listener {
+        // Called on the reader thread after each answered ping
+        void onPong(RttEstimator estimator);
+    }
+
+    private final RttEstimator mEstimator;
+    private final long mInterval;
+    private final Listener mListener;
+    private volatile AckWindow mAckWindow;
+    private volatile Telemetry mTelemetry;
+    private volatile Thread mThread;
+    private volatile boolean mRunning = false;
+
+    // Reader thread, or the caller of feed(), only
+    private final byte[] mBuffer = new byte[256];
+    private final byte[] mFrame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+    private int mFrameLength = 0;
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    private int mLineLength = 0;
+    private final long[] mValues = new long[3];
+
+    public LinkProbe(RttEstimator estimator, Listener listener) {
+        this(estimator, DEFAULT_INTERVAL, listener);
+    }
+
+    public LinkProbe(RttEstimator estimator, long interval_ms, Listener listener) {
+        mEstimator = estimator;
+        mInterval = interval_ms;
+        mListener = listener;
+    }
+
+    public RttEstimator estimator() {
+        return mEstimator;
+    }
+
+    // Hand OP_ACK frames to window. null to ignore them.
+    public void setAckWindow(AckWindow window) {
+        mAckWindow = window;
+    }
+
+    // Hand telemetry readings to telemetry. null to ignore them.
+    public void setTelemetry(Telemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    // Time between pings, ms
+    public long interval() {
+        return mInterval;
+    }
+
+    // Starts reading a connection which has just been opened. binary: the connection
+    // uses BinaryCommandEncoder frames.
+    public void start(final Transport transport, final boolean binary) {
+        stop();
+
+        reset();
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(transport, binary);
+            }
+        }, "LinkProbe");
+        mThread.start();
+    }
+
+    // Waits for the reader thread so it cannot read from the next connection of the transport
+    public void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            try {
+                mThread.join(READ_TIMEOUT * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    private void readLoop(Transport transport, boolean binary) {
+        while (mRunning) {
+            int n;
+            try {
+                n = transport.read(mBuffer, 0, mBuffer.length, READ_TIMEOUT);
+            } catch (IOException e) {
+                // Closed. The sender notices on its next write and reconnects.
+                return;
+            }
+            if (n < 0) {
+                return;
+            }
+
+            feed(mBuffer, 0, n, binary, System.nanoTime());
+        }
+    }
+
+    // Forgets a partly received answer. Call when a connection which is read with feed() was opened.
+    public void reset() {
+        mFrameLength = 0;
+        mLineLength = 0;
+    }
+
+    // Parses bytes read from the connection by the caller, for a caller which reads the
+    // connection itself instead of start()ing a reader thread (FleetController)
+    public void feed(byte[] buf, int off, int n, boolean binary, long now_nanos) {
+        if (binary) {
+            feedBinary(buf, off, n, now_nanos);
+        } else {
+            feedText(buf, off, n, now_nanos);
+        }
+    }
+
+    private void feedBinary(byte[] buf, int off, int n, long now) {
+        for (int i = off; i < off + n; i++) {
+            mFrame[mFrameLength++] = buf[i];
+            if (mFrameLength == mFrame.length) {
+                mFrameLength = 0;
+                int opcode = BinaryCommandEncoder.opcodeOf(mFrame, 0);
+                if (opcode == BinaryCommandEncoder.OP_PONG) {
+                    onPong(BinaryCommandEncoder.sequenceOf(mFrame, 0),
+                            BinaryCommandEncoder.pongReceiveTimeOf(mFrame, 0),
+                            BinaryCommandEncoder.pongTransmitTimeOf(mFrame, 0), now);
+                } else if (opcode == BinaryCommandEncoder.OP_ACK) {
+                    AckWindow window = mAckWindow;
+                    if (window != null) {
+                        window.onAck(BinaryCommandEncoder.sequenceOf(mFrame, 0), now);
+                    }
+                } else if (opcode == BinaryCommandEncoder.OP_TELEMETRY) {
+                    Telemetry telemetry = mTelemetry;
+                    if (telemetry != null) {
+                        telemetry.onFrame(mFrame, 0, now);
+                    }
+                }
+            }
+        }
+    }
+
+    private void feedText(byte[] buf, int off, int n, long now) {
+        for (int i = off; i < off + n; i++) {
+            byte b = buf[i];
+            if (b == '\n') {
+                parseLine(now);
+                mLineLength = 0;
+            } else if (mLineLength < mLine.length) {
+                mLine[mLineLength++] = b;
+            }
+        }
+    }
+
+    // "PONG <seq> <receive ms> <transmit ms>" or "TM ...", anything else is ignored
+    private void parseLine(long now) {
+        int length = mLineLength;
+        if (length > 0 && mLine[length - 1] == '\r') {
+            length--;
+        }
+        if (length >= 3 && mLine[0] == 'T' && mLine[1] == 'M' && mLine[2] == ' ') {
+            Telemetry telemetry = mTelemetry;
+            if (telemetry != null) {
+                telemetry.onLine(mLine, 3, length, now);
+            }
+            return;
+        }
+        if (length < 5 || mLine[0] != 'P' || mLine[1] != 'O' || mLine[2] != 'N' || mLine[3] != 'G' || mLine[4] != ' ') {
+            return;
+        }
+
+        long[] values = mValues;
+        int count = 0;
+        long value = -1;
+        for (int i = 5; i <= length && count < values.length; i++) {
+            byte b = i < length ? mLine[i] : (byte)' ';
+            if (b >= '0' && b <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (b - '0');
+            } else if (b == ' ') {
+                if (value >= 0) {
+                    values[count++] = value;
+                }
+                value = -1;
+            } else {
+                return;
+            }
+        }
+        if (count == 3) {
+            onPong((int)values[0], values[1] & 0xffffffffL, values[2] & 0xffffffffL, now);
+        }
+    }
+
+    private void onPong(int seq, long receive_ms, long transmit_ms, long now) {
+        if (mEstimator.onPong(seq, receive_ms, transmit_ms, now) && mListener != null) {
+            mListener.onPong(mEstimator);
+        }
+    }
+}
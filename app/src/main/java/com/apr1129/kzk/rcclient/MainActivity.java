@@ -4,26 +4,29 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.graphics.Color;
-import android.graphics.Point;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
-import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.WindowManager;
-import android.webkit.WebView;
+import android.widget.CheckBox;
 import android.widget.EditText;
-import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 public class MainActivity extends AppCompatActivity {
 
     private static final String SHARED_PREF_KEY = "rc_client.shared_pref_key";
@@ -32,7 +35,21 @@ public class MainActivity extends AppCompatActivity {
     private static final String RC_PORT_KEY = "rc_port.key";
     private static final String IMG_SIZE_X_KEY = "img_size_x.key";
     private static final String IMG_SIZE_Y_KEY = "img_size_y.key";
+    private static final String LATENCY_OVERLAY_KEY = "latency_overlay.key";
+    private static final String LINK_PROBE_KEY = "link_probe.key";
+    private static final String TOUCH_FILTER_KEY = "touch_filter.key";
+    private static final String ACK_WINDOW_KEY = "ack_window.key";
+    private static final String RECORD_VIDEO_KEY = "record_video.key";
     private static final String TAG = "RcClient_main";
+    private static final String FLIGHT_RECORDING_FILE = "flight.rec";
+
+    // Repeat an unchanged command while driving (within the robot's watchdog timeout) and
+    // while stopped (ms)
+    private static final long KEEPALIVE_INTERVAL = RcClient2.DEFAULT_KEEPALIVE_INTERVAL;
+    private static final long IDLE_KEEPALIVE_INTERVAL = RcClient2.DEFAULT_IDLE_KEEPALIVE_INTERVAL;
+
+    // Frame rate of the best camera stream variant
+    private static final int CAMERA_FPS = 30;
 
     private RcClient2.Listener mListener = new RcClient2.Listener() {
             @Override
@@ -44,27 +61,120 @@ public class MainActivity extends AppCompatActivity {
             public void onConnected() {
                 Toast.makeText(getApplicationContext(), "Connected", Toast.LENGTH_SHORT).show();
             }
+
+            @Override
+            public void onConnectionStateChanged(int state, long elapsed_ms) {
+                if (state == ConnectionSupervisor.STATE_RECONNECTING) {
+                    Toast.makeText(getApplicationContext(), "Connection lost. Reconnecting...", Toast.LENGTH_SHORT).show();
+                } else if (state == ConnectionSupervisor.STATE_CONNECTED) {
+                    Log.d("debug", "Connected in " + elapsed_ms + " ms");
+                }
+            }
+
+            @Override
+            public void onLatencyReport(LatencyStats stats) {
+                Log.i(TAG, "latency\n" + stats.summary());
+                Log.i(TAG, "commands " + mClient.sendSavings().summary());
+            }
+
+            @Override
+            public void onLinkQuality(RttEstimator link) {
+                boolean degraded = link.isDegraded();
+                if (degraded && !mLinkDegraded) {
+                    Toast.makeText(getApplicationContext(), "Link degraded: RTT " + link.smoothedRttMicros() / 1000
+                            + " ms, jitter " + link.jitterMicros() / 1000 + " ms", Toast.LENGTH_SHORT).show();
+                }
+                mLinkDegraded = degraded;
+                Log.d(TAG, "rtt=" + link.smoothedRttMicros() + "us jitter=" + link.jitterMicros()
+                        + "us offset=" + link.clockOffsetMillis() + "ms lost=" + link.lostCount());
+            }
+
+            @Override
+            public void onFirstCommand(long elapsed_ms) {
+                Log.i(TAG, "First command " + elapsed_ms + " ms after start");
+            }
+        };
+
+    private MjpegView.Listener mCameraListener = new MjpegView.Listener() {
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(getApplicationContext(), "Error in camera: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onFrameRendered(long render_nanos) {
+            }
+        };
+
+    private VideoQualityController.Listener mQualityListener = new VideoQualityController.Listener() {
+            @Override
+            public void onVariantChanged(VideoQualityController.Variant variant, String url) {
+                Log.i(TAG, "Camera stream switched to " + variant);
+            }
         };
 
-    private WebView mCameraView;
+    private MjpegView mCameraView;
+    private LatencyOverlay mLatencyOverlay;
+    private TelemetryView mTelemetryView;
+    private final Telemetry mTelemetry = new Telemetry();
+    private final LatencyStats mLatencyStats = new LatencyStats();
+    private boolean mLinkDegraded = false;
     private String mLastUrl;
     private boolean mIsStopping = true;
-    private Point mScreenSize = new Point();
     private RcClient2 mClient;
 
+    // Settings the camera and the client were last started with, to keep their connections if
+    // they did not change
+    private String mCameraSettings;
+    private String mClientSettings;
+    private MjpegRecorder mVideoRecorder;
+
+    // Opened once per process: every open keeps only the last recording as .prev, so one per
+    // Activity would lose the recording of a crash after two recreations. Never closed, the
+    // kernel writes the mapping back.
+    private static FlightRecorder sRecorder;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Get screen size
-        WindowManager wm = (WindowManager)getSystemService(WINDOW_SERVICE);
-        Display disp = wm.getDefaultDisplay();
-        disp.getRealSize(mScreenSize);
-
         // Initialize fields
         mCameraView = findViewById(R.id.camera_view);
+        mCameraView.setListener(mCameraListener);
+        mCameraView.setLatencyStats(mLatencyStats);
+        mLatencyOverlay = findViewById(R.id.latency_overlay);
+        mLatencyOverlay.setStats(mLatencyStats);
+        mTelemetryView = findViewById(R.id.telemetry_view);
+        mTelemetryView.setTelemetry(mTelemetry);
         mClient = new RcClient2(getApplicationContext(), mListener);
+        mClient.setLatencyStats(mLatencyStats);
+        mClient.setTelemetry(mTelemetry);
+        mClient.setKeepaliveInterval(KEEPALIVE_INTERVAL, IDLE_KEEPALIVE_INTERVAL);
+
+        // Keep the last minutes of inputs for after an incident. Pull the file with adb and
+        // convert it with FlightRecordReader.
+        if (sRecorder == null) {
+            try {
+                sRecorder = new FlightRecorder(new File(getFilesDir(), FLIGHT_RECORDING_FILE),
+                        FlightRecorder.DEFAULT_CAPACITY);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open the flight recorder", e);
+            }
+        }
+        mClient.setFlightRecorder(sRecorder);
+
+        // Warm start: connect to the saved endpoints while the settings dialog is still up. OK
+        // keeps the connections unless the settings were changed.
+        final SharedPreferences pref = getSharedPreferences(SHARED_PREF_KEY, Context.MODE_PRIVATE);
+        String rc_addr = pref.getString(RC_ADDR_KEY, "");
+        if (!rc_addr.isEmpty()) {
+            applySettings(pref.getString(MJPEG_URL_KEY, ""), rc_addr, pref.getInt(RC_PORT_KEY, 9024),
+                    pref.getInt(IMG_SIZE_X_KEY, 640), pref.getInt(IMG_SIZE_Y_KEY, 480),
+                    pref.getBoolean(LATENCY_OVERLAY_KEY, false), pref.getBoolean(LINK_PROBE_KEY, false),
+                    pref.getBoolean(TOUCH_FILTER_KEY, false), pref.getBoolean(ACK_WINDOW_KEY, false),
+                    pref.getBoolean(RECORD_VIDEO_KEY, false));
+        }
 
         // Show Settings dialog
         showSettingsDialog();
@@ -72,6 +182,7 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public boolean dispatchTouchEvent(MotionEvent event) {
+        mLatencyStats.onInput(event.getEventTime(), SystemClock.uptimeMillis(), System.nanoTime());
         mClient.touchEvent(event);
         return super.dispatchTouchEvent(event);
     }
@@ -79,13 +190,13 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onResume() {
         super.onResume();
-        mCameraView.onResume();
         if (mIsStopping && mLastUrl != null && mLastUrl != "") {
-            mCameraView.loadUrl(mLastUrl);
+            mCameraView.start(mLastUrl);
             mIsStopping = false;
         }
 
-        mClient.restart();
+        // Reuses the connection kept open since onPause() if it is still alive
+        mClient.resume();
 
         // Setup SystemUI
         stickyImmersiveMode();
@@ -93,16 +204,20 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public void onPause() {
-        mCameraView.stopLoading();
-        mCameraView.onPause();
+        mCameraView.stop();
         mIsStopping = true;
-        mClient.stop();
+        mClient.pause();
+        if (sRecorder != null) {
+            sRecorder.flush();
+        }
         super.onPause();
     }
 
     @Override
-    public void onDestroy() {
-        mCameraView.destroy();
+    protected void onDestroy() {
+        mClient.stop();
+        mClient.setFlightRecorder(null);
+        setVideoRecording(false);
         super.onDestroy();
     }
 
@@ -157,6 +272,11 @@ public class MainActivity extends AppCompatActivity {
         final EditText rcPortEdit = layout.findViewById(R.id.rc_port_edit);
         final EditText imgXSizeEdit = layout.findViewById(R.id.img_size_x_edit);
         final EditText imgYSizeEdit = layout.findViewById(R.id.img_size_y_edit);
+        final CheckBox latencyOverlayCheck = layout.findViewById(R.id.latency_overlay_check);
+        final CheckBox linkProbeCheck = layout.findViewById(R.id.link_probe_check);
+        final CheckBox touchFilterCheck = layout.findViewById(R.id.touch_filter_check);
+        final CheckBox ackWindowCheck = layout.findViewById(R.id.ack_window_check);
+        final CheckBox recordVideoCheck = layout.findViewById(R.id.record_video_check);
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setCustomTitle(titleView);
@@ -173,6 +293,12 @@ public class MainActivity extends AppCompatActivity {
                 int img_size_x = Integer.valueOf(imgXSizeEdit.getText().toString());
                 int img_size_y = Integer.valueOf(imgYSizeEdit.getText().toString());
 
+                boolean latency_overlay = latencyOverlayCheck.isChecked();
+                boolean link_probe = linkProbeCheck.isChecked();
+                boolean touch_filter = touchFilterCheck.isChecked();
+                boolean ack_window = ackWindowCheck.isChecked();
+                boolean record_video = recordVideoCheck.isChecked();
+
                 // Update the last value
                 final SharedPreferences pref = getSharedPreferences(SHARED_PREF_KEY, Context.MODE_PRIVATE);
                 SharedPreferences.Editor edit = pref.edit();
@@ -181,15 +307,17 @@ public class MainActivity extends AppCompatActivity {
                 edit.putInt(RC_PORT_KEY, rcport);
                 edit.putInt(IMG_SIZE_X_KEY, img_size_x);
                 edit.putInt(IMG_SIZE_Y_KEY, img_size_y);
+                edit.putBoolean(LATENCY_OVERLAY_KEY, latency_overlay);
+                edit.putBoolean(LINK_PROBE_KEY, link_probe);
+                edit.putBoolean(TOUCH_FILTER_KEY, touch_filter);
+                edit.putBoolean(ACK_WINDOW_KEY, ack_window);
+                edit.putBoolean(RECORD_VIDEO_KEY, record_video);
                 if (!edit.commit()) {
                     Log.e(TAG, "[showSettingsDialog] failed to Editor#commit");
                 }
 
-                // Start camera
-                startCameraView(mjpgurl, img_size_x, img_size_y);
-
-                // Start RcClient
-                mClient.start(rcaddr, rcport);
+                applySettings(mjpgurl, rcaddr, rcport, img_size_x, img_size_y, latency_overlay, link_probe,
+                        touch_filter, ack_window, record_video);
             }
         });
 
@@ -200,6 +328,11 @@ public class MainActivity extends AppCompatActivity {
         final int rc_port_ref_val = pref.getInt(RC_PORT_KEY, 9024);
         final int img_size_x_ref_val = pref.getInt(IMG_SIZE_X_KEY, 640);
         final int img_size_y_ref_val = pref.getInt(IMG_SIZE_Y_KEY, 480);
+        final boolean latency_overlay_ref_val = pref.getBoolean(LATENCY_OVERLAY_KEY, false);
+        final boolean link_probe_ref_val = pref.getBoolean(LINK_PROBE_KEY, false);
+        final boolean touch_filter_ref_val = pref.getBoolean(TOUCH_FILTER_KEY, false);
+        final boolean ack_window_ref_val = pref.getBoolean(ACK_WINDOW_KEY, false);
+        final boolean record_video_ref_val = pref.getBoolean(RECORD_VIDEO_KEY, false);
 
         // Setup default values
         mjpgUrlEdit.setText(mjpeg_url_ref_val);
@@ -207,53 +340,91 @@ public class MainActivity extends AppCompatActivity {
         rcPortEdit.setText(String.valueOf(rc_port_ref_val));
         imgXSizeEdit.setText(String.valueOf(img_size_x_ref_val));
         imgYSizeEdit.setText(String.valueOf(img_size_y_ref_val));
+        latencyOverlayCheck.setChecked(latency_overlay_ref_val);
+        linkProbeCheck.setChecked(link_probe_ref_val);
+        touchFilterCheck.setChecked(touch_filter_ref_val);
+        ackWindowCheck.setChecked(ack_window_ref_val);
+        recordVideoCheck.setChecked(record_video_ref_val);
         builder.setView(layout);
 
         // Show Alert dialog
         builder.create().show();
     }
 
-    private void startCameraView(String url, int img_size_x, int _img_size_y) {
-        // load camera view
-        WebView cameraView = (WebView)findViewById(R.id.camera_view);
-        cameraView.setInitialScale(50);
-        cameraView.getSettings().setUseWideViewPort(true);
-        cameraView.getSettings().setLoadWithOverviewMode(true);
-        cameraView.loadUrl(url);
-        mLastUrl = url;
-        mIsStopping = false;
+    // Starts the camera and the client, unless they already run with these settings
+    private void applySettings(String mjpgurl, String rcaddr, int rcport, int img_size_x, int img_size_y,
+                               boolean latency_overlay, boolean link_probe, boolean touch_filter, boolean ack_window,
+                               boolean record_video) {
+        mLatencyOverlay.setVisibility(latency_overlay ? View.VISIBLE : View.GONE);
+        setVideoRecording(record_video);
+
+        // Start camera. A URL with {width}, {height} or {fps} in it is a template: the stream
+        // steps down to smaller or slower variants while the link cannot carry the image size.
+        String camera_settings = mjpgurl + " " + img_size_x + "x" + img_size_y;
+        if (mIsStopping || !camera_settings.equals(mCameraSettings)) {
+            VideoQualityController quality = null;
+            if (VideoQualityController.isTemplate(mjpgurl)) {
+                quality = new VideoQualityController(mjpgurl,
+                        VideoQualityController.ladder(img_size_x, img_size_y, CAMERA_FPS));
+                quality.setListener(mQualityListener);
+            }
+            mCameraView.client().setQualityController(quality);
+            startCameraView(mjpgurl);
+            mCameraSettings = camera_settings;
+        }
 
-        adjCameraView(cameraView, img_size_x, _img_size_y);
+        // Start RcClient
+        if (touch_filter) {
+            mClient.setTouchFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, TouchFilter.DEFAULT_PREDICTION);
+        } else {
+            mClient.clearTouchFilter();
+        }
+        String client_settings = rcaddr + ":" + rcport + " probe=" + link_probe + " ack=" + ack_window;
+        if (client_settings.equals(mClientSettings)) {
+            return;
+        }
+        mClient.setLinkProbeEnabled(link_probe);
+        // Acknowledgments need binary frames
+        mClient.setBinaryProtocolEnabled(ack_window);
+        mClient.setAckWindowEnabled(ack_window);
+        mClient.start(rcaddr, rcport);
+        mClientSettings = client_settings;
     }
 
-    public void adjCameraView(View camView, int img_size_x, int img_size_y) {
-        if (img_size_x <= 0 || img_size_y <= 0) {
-            Log.e(TAG, "[adjCameraView] invalid param: img_size_x="+img_size_x+
-            "img_size_y="+img_size_y);
+    // Tees the camera stream into a new file under the app's external files directory, to be
+    // pulled with adb. Its index shares the flight recording's clock.
+    private void setVideoRecording(boolean record) {
+        if (record == (mVideoRecorder != null)) {
             return;
         }
-
-        // calc aspect with each size
-        float realScreenAspect = (float)mScreenSize.x / (float)mScreenSize.y;
-        float imgAspect = (float)img_size_x / (float)img_size_y;
-
-        // init camera view size
-        int camViewWidth = mScreenSize.x;
-        int camViewHeight = mScreenSize.y;
-
-        // adjust size of camera view
-        if (realScreenAspect < imgAspect) {
-            camViewHeight = Math.min(
-                    mScreenSize.y,
-                    (int)Math.floor((double)camViewWidth / (double)imgAspect));
+        if (record) {
+            File dir = getExternalFilesDir(null);
+            if (dir == null) {
+                dir = getFilesDir();
+            }
+            String name = "camera-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".mjpg";
+            try {
+                mVideoRecorder = new MjpegRecorder(new File(dir, name), MjpegRecorder.DEFAULT_QUEUE_CAPACITY);
+                Log.i(TAG, "Recording camera to " + mVideoRecorder.file());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open the camera recording", e);
+                Toast.makeText(getApplicationContext(), "Cannot record camera: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+            mCameraView.client().setRecorder(mVideoRecorder);
         } else {
-            camViewWidth = Math.min(
-                    mScreenSize.x,
-                    (int)Math.floor((double)camViewHeight * (double)imgAspect));
+            mCameraView.client().setRecorder(null);
+            mVideoRecorder.close();
+            Log.i(TAG, "Recorded " + mVideoRecorder.writtenFrames() + " camera frames, "
+                    + mVideoRecorder.droppedFrames() + " dropped");
+            mVideoRecorder = null;
         }
+    }
 
-        // Apply ajusted size to camera view
-        LinearLayout.LayoutParams param = new LinearLayout.LayoutParams(camViewWidth, camViewHeight);
-        camView.setLayoutParams(param);
+    private void startCameraView(String url) {
+        // Decode the stream in-app instead of through a WebView, which buffers several frames.
+        // MjpegView scales each frame to fit, whatever its size.
+        mCameraView.start(url);
+        mLastUrl = url;
+        mIsStopping = false;
     }
 }
@@ -0,0 +1,371 @@
+package com.apr1129.kzk.rcclient;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// MJPEG over HTTP client.
+//
+// The receive thread reads the stream into a reusable buffer and splits it with MjpegParser.
+// Each frame is copied into one of three buffers which rotate between the receive thread,
+// a pending slot and the decode thread, so the decoder always picks up the newest frame and
+// frames which arrive while it is busy are dropped instead of queued.
+//
+// With a VideoQualityController the stream is opened at the controller's URL, and reopened
+// whenever it switches to another variant. The decode thread checks for a stalled stream every
+// STALL_CHECK_INTERVAL, since a read on a link which stopped delivering blocks until its timeout.
+//
+// With an MjpegRecorder each frame is also queued, as received, for recording to a file.
+//
+// Each start() runs on threads and buffers of its own. stop() does not wait for the receive
+// thread, which may be blocked in a connect: it finishes on its own buffers and delivers
+// nothing more. It waits for the decode thread to finish the frame it is decoding, if any.
+public class MjpegClient {
+
+    private static final String TAG = "MjpegClient";
+    private static final int CONNECT_TIMEOUT = 3000; // ms
+    private static final int READ_TIMEOUT = 5000; // ms
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int POOL_SIZE = 3; // shown, waiting to be shown, being decoded
+    private static final int DECODE_JOIN_TIMEOUT = 200; // ms, longer than decoding a frame takes
+    private static final int STALL_CHECK_INTERVAL = 250; // ms
+
+    public interface Listener {
+        // Called on the decode thread. Give the bitmap back with releaseFrame() once it is not shown anymore.
+        // received_nanos: System.nanoTime() when the last byte of the frame arrived
+        void onFrame(Bitmap bitmap, long received_nanos);
+
+        // Called on the receive thread. Reconnecting is automatic.
+        void onError(Exception e);
+    }
+
+    private static class FrameBuffer {
+        byte[] data = new byte[64 * 1024];
+        int length = 0; // 0 while empty
+        long receivedNanos;
+    }
+
+    // The threads and buffers of one start()
+    private class Session {
+        final VideoQualityController quality; // null without
+        volatile boolean running = true;
+        volatile HttpURLConnection connection;
+        Thread receiveThread;
+        HandlerThread decodeThread;
+        Handler decodeHandler;
+
+        final AtomicReference<FrameBuffer> pending = new AtomicReference<>(new FrameBuffer());
+        FrameBuffer receiving = new FrameBuffer(); // receive thread only
+        FrameBuffer decoding = new FrameBuffer(); // decode thread only
+        final AtomicBoolean decodePending = new AtomicBoolean(false);
+        final BitmapFactory.Options options = new BitmapFactory.Options(); // decode thread only
+
+        final MjpegParser.Listener parserListener = new MjpegParser.Listener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                onFrameReceived(Session.this, data, offset, length);
+            }
+        };
+
+        final Runnable decodeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                decodePending.set(false);
+                decodeLatest(Session.this);
+            }
+        };
+
+        final Runnable stallRunnable = new Runnable() {
+            @Override
+            public void run() {
+                checkStall(Session.this);
+            }
+        };
+
+        Session(VideoQualityController quality) {
+            this.quality = quality;
+            options.inMutable = true;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    private final Listener mListener;
+    private final BitmapPool mPool = new BitmapPool(POOL_SIZE);
+    private Session mSession; // UI thread
+    private volatile LatencyStats mStats;
+    private volatile VideoQualityController mQuality;
+    private volatile MjpegRecorder mRecorder;
+
+    // Statistics
+    private volatile long mReceived = 0;
+    private volatile long mDecoded = 0;
+    private volatile long mDropped = 0;
+
+    public MjpegClient(Listener listener) {
+        mListener = listener;
+    }
+
+    // Call on the UI thread, like stop()
+    public void start(final String url) {
+        stop();
+
+        final Session session = new Session(mQuality);
+        session.decodeThread = new HandlerThread("MjpegClient-decode");
+        session.decodeThread.start();
+        session.decodeHandler = new Handler(session.decodeThread.getLooper());
+        if (session.quality != null) {
+            session.decodeHandler.postDelayed(session.stallRunnable, STALL_CHECK_INTERVAL);
+        }
+
+        session.receiveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop(session, url);
+            }
+        }, "MjpegClient-receive");
+        session.receiveThread.start();
+        mSession = session;
+    }
+
+    public void stop() {
+        Session session = mSession;
+        if (session == null) {
+            return;
+        }
+        mSession = null;
+        session.running = false;
+        session.receiveThread.interrupt();
+
+        // No frame may be delivered after stop() returns
+        session.decodeHandler.removeCallbacks(session.decodeRunnable);
+        session.decodeHandler.removeCallbacks(session.stallRunnable);
+
+        // Unblock the read on the decode thread, closing the socket is I/O. quitSafely() still
+        // runs it. The receive thread ends by itself.
+        final HttpURLConnection connection = session.connection;
+        if (connection != null) {
+            session.decodeHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            });
+        }
+        session.decodeThread.quitSafely();
+        try {
+            session.decodeThread.join(DECODE_JOIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Record frame decode latency into stats. null to stop recording.
+    public void setLatencyStats(LatencyStats stats) {
+        mStats = stats;
+    }
+
+    // Choose the stream variant with quality, whose URL replaces the one given to start().
+    // Takes effect on the next start(). null to always use that one.
+    public void setQualityController(VideoQualityController quality) {
+        mQuality = quality;
+    }
+
+    // Record the frames with recorder, from the next one on. null to stop recording.
+    public void setRecorder(MjpegRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    // Hands a bitmap from Listener.onFrame() back for reuse. Any thread.
+    public void releaseFrame(Bitmap bitmap) {
+        mPool.release(bitmap);
+    }
+
+    public long receivedFrames() {
+        return mReceived;
+    }
+
+    public long decodedFrames() {
+        return mDecoded;
+    }
+
+    // Frames replaced by a newer one before the decoder got to them
+    public long droppedFrames() {
+        return mDropped;
+    }
+
+    private void receiveLoop(Session session, String url) {
+        ReconnectBackoff backoff = new ReconnectBackoff();
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+        boolean reported = false;
+        VideoQualityController quality = session.quality;
+
+        while (session.running) {
+            HttpURLConnection connection = null;
+            int variant = quality != null ? quality.variantIndex() : 0;
+            try {
+                String stream_url = quality != null ? quality.url() : url;
+                connection = (HttpURLConnection)new URL(stream_url).openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setUseCaches(false);
+                session.connection = connection;
+                if (!session.running) {
+                    break;
+                }
+
+                InputStream in = connection.getInputStream();
+                MjpegParser parser = new MjpegParser(MjpegParser.boundaryOf(connection.getContentType()),
+                        session.parserListener);
+                if (quality != null) {
+                    quality.onConnected();
+                }
+                boolean switched = false;
+                int n;
+                while (session.running && !switched && (n = in.read(buf)) >= 0) {
+                    parser.feed(buf, 0, n);
+                    if (parser.frameCount() > 0) {
+                        backoff.reset();
+                        reported = false;
+                    }
+                    switched = quality != null && quality.variantIndex() != variant;
+                }
+                if (session.running && !switched) {
+                    throw new IOException("Stream ended");
+                }
+            } catch (IOException e) {
+                if (!session.running) {
+                    break;
+                }
+                if (quality != null && quality.variantIndex() != variant) {
+                    // Disconnected by checkStall() for another variant
+                    continue;
+                }
+                // Inform the first failure only
+                if (!reported) {
+                    reported = true;
+                    mListener.onError(e);
+                }
+                Log.w(TAG, "receive failed: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff.nextDelay());
+                } catch (InterruptedException ie) {
+                    // stop()
+                    break;
+                }
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                session.connection = null;
+            }
+        }
+    }
+
+    // Decode thread
+    private void checkStall(Session session) {
+        if (!session.running) {
+            return;
+        }
+        if (session.quality.checkStall(System.nanoTime())) {
+            // Unblock the read. The receive loop reopens the stream at the new variant.
+            HttpURLConnection connection = session.connection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        session.decodeHandler.postDelayed(session.stallRunnable, STALL_CHECK_INTERVAL);
+    }
+
+    // Receive thread
+    private void onFrameReceived(Session session, byte[] data, int offset, int length) {
+        if (length == 0 || !session.running) {
+            return;
+        }
+        FrameBuffer frame = session.receiving;
+        if (frame.data.length < length) {
+            frame.data = new byte[length + length / 2];
+        }
+        System.arraycopy(data, offset, frame.data, 0, length);
+        frame.length = length;
+        frame.receivedNanos = System.nanoTime();
+        mReceived++;
+        VideoQualityController quality = session.quality;
+        if (quality != null) {
+            quality.onFrameReceived(frame.receivedNanos);
+        }
+        MjpegRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.offer(data, offset, length, frame.receivedNanos);
+        }
+
+        // Publish and take back whatever was pending
+        session.receiving = session.pending.getAndSet(frame);
+        if (session.receiving.length != 0) {
+            mDropped++;
+            session.receiving.length = 0;
+        }
+
+        if (session.decodePending.compareAndSet(false, true)) {
+            session.decodeHandler.post(session.decodeRunnable);
+        }
+    }
+
+    // Decode thread
+    private void decodeLatest(Session session) {
+        FrameBuffer frame = session.pending.getAndSet(session.decoding);
+        session.decoding = frame;
+        if (frame.length == 0 || !session.running) {
+            return;
+        }
+
+        Bitmap bitmap = decode(frame, session.options);
+        frame.length = 0;
+        if (bitmap == null) {
+            return;
+        }
+        mDecoded++;
+
+        long now = System.nanoTime();
+        LatencyStats stats = mStats;
+        if (stats != null) {
+            stats.record(LatencyStats.STAGE_FRAME_DECODE, now - frame.receivedNanos);
+        }
+        VideoQualityController quality = session.quality;
+        if (quality != null) {
+            quality.onFrameDecoded(now, now - frame.receivedNanos);
+        }
+        mListener.onFrame(bitmap, frame.receivedNanos);
+    }
+
+    private Bitmap decode(FrameBuffer frame, BitmapFactory.Options options) {
+        Bitmap reuse = mPool.acquire();
+        options.inBitmap = reuse;
+        try {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(frame.data, 0, frame.length, options);
+            if (bitmap == null) {
+                // Broken frame
+                mPool.release(reuse);
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // The frame size changed and the pooled bitmaps do not fit anymore
+            if (reuse != null) {
+                reuse.recycle();
+            }
+            mPool.clear();
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(frame.data, 0, frame.length, options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.apr1129.kzk.rcclient;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+ * Incremental parser for a multipart/x-mixed-replace MJPEG body as sent by mjpg-streamer:
+ *
+ *   --<boundary>\r\n
+ *   Content-Type: image/jpeg\r\n
+ *   Content-Length: <n>\r\n          (optional)
+ *   \r\n
+ *   <jpeg data>\r\n
+ *   --<boundary>\r\n
+ *   ...
+ *
+ * Bytes can be fed in chunks of any size. Frame data is collected in one reusable buffer, so the
+ * parser does not allocate once the buffer has grown to the largest frame.
+ * Not thread safe. Pure Java so it can be tested on the JVM.
+ */
+public class MjpegParser {
+
+    public interface Listener {
+        // data is only valid during the call
+        void onFrame(byte[] data, int offset, int length);
+    }
+
+    private static final int STATE_BOUNDARY = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_BOUNDARY_TAIL = 3; // rest of a boundary line found inside a body
+
+    private static final int MAX_LINE_LENGTH = 256;
+    private static final int INITIAL_FRAME_CAPACITY = 64 * 1024;
+    private static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+    private static final String CONTENT_LENGTH = "content-length:";
+
+    private final Listener mListener;
+    private byte[] mBoundary; // "--" + boundary, null until learned from the stream
+    private byte[] mDelimiter; // "\r\n--" + boundary
+
+    private int mState = STATE_BOUNDARY;
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    private int mLineLength = 0;
+    private byte[] mFrame = new byte[INITIAL_FRAME_CAPACITY];
+    private int mFrameLength = 0;
+    private int mContentLength = -1;
+    private int mScanned = 0; // bytes of mFrame already searched for the delimiter
+
+    private long mFrames = 0;
+    private long mSkippedBytes = 0;
+
+    // boundary: from the Content-Type header, with or without the leading "--". null to take it
+    // from the first line of the body which starts with "--".
+    public MjpegParser(String boundary, Listener listener) {
+        mListener = listener;
+        if (boundary != null) {
+            setBoundary(boundary.startsWith("--") ? boundary : "--" + boundary);
+        }
+    }
+
+    // Extracts the boundary from a Content-Type header value. Returns null if there is none.
+    public static String boundaryOf(String content_type) {
+        if (content_type == null) {
+            return null;
+        }
+        int index = content_type.toLowerCase(Locale.ROOT).indexOf("boundary=");
+        if (index < 0) {
+            return null;
+        }
+        String boundary = content_type.substring(index + "boundary=".length());
+        int end = boundary.indexOf(';');
+        if (end >= 0) {
+            boundary = boundary.substring(0, end);
+        }
+        boundary = boundary.trim();
+        if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary.isEmpty() ? null : boundary;
+    }
+
+    public void feed(byte[] buf, int off, int len) {
+        int end = off + len;
+        while (off < end) {
+            if (mState == STATE_BODY) {
+                off = feedBody(buf, off, end);
+            } else {
+                off = feedLine(buf, off, end);
+            }
+        }
+    }
+
+    // Drops a partially received part, e.g. after a reconnect
+    public void reset() {
+        mState = STATE_BOUNDARY;
+        mLineLength = 0;
+        mFrameLength = 0;
+        mContentLength = -1;
+        mScanned = 0;
+    }
+
+    public long frameCount() {
+        return mFrames;
+    }
+
+    // Bytes outside of any part, e.g. garbage before the first boundary
+    public long skippedBytes() {
+        return mSkippedBytes;
+    }
+
+    private int feedLine(byte[] buf, int off, int end) {
+        while (off < end) {
+            byte b = buf[off++];
+            if (b == '\n') {
+                int length = mLineLength;
+                if (length > 0 && mLine[length - 1] == '\r') {
+                    length--;
+                }
+                mLineLength = 0;
+                onLine(length);
+                if (mState == STATE_BODY) {
+                    break;
+                }
+            } else if (mLineLength < mLine.length) {
+                mLine[mLineLength++] = b;
+            } else if (mState == STATE_BOUNDARY) {
+                // Too long to be a boundary
+                mSkippedBytes += mLineLength;
+                mLineLength = 0;
+            }
+        }
+        return off;
+    }
+
+    private void onLine(int length) {
+        if (mState == STATE_BOUNDARY_TAIL) {
+            // "--" after the boundary ends the stream
+            mState = length == 2 && mLine[0] == '-' && mLine[1] == '-' ? STATE_BOUNDARY : STATE_HEADERS;
+        } else if (mState == STATE_BOUNDARY) {
+            if (isBoundaryLine(length)) {
+                mState = STATE_HEADERS;
+                mContentLength = -1;
+            } else {
+                mSkippedBytes += length;
+            }
+        } else if (length == 0) {
+            // End of part headers
+            mState = STATE_BODY;
+            mFrameLength = 0;
+            mScanned = 0;
+            if (mContentLength > mFrame.length) {
+                mFrame = Arrays.copyOf(mFrame, mContentLength);
+            }
+        } else if (startsWithIgnoreCase(mLine, length, CONTENT_LENGTH)) {
+            mContentLength = parseInt(mLine, CONTENT_LENGTH.length(), length);
+            if (mContentLength > MAX_FRAME_SIZE) {
+                // Not believable. Look for the delimiter instead.
+                mContentLength = -1;
+            }
+        }
+    }
+
+    private boolean isBoundaryLine(int length) {
+        if (mBoundary == null) {
+            if (length > 2 && mLine[0] == '-' && mLine[1] == '-') {
+                setBoundary(new String(mLine, 0, length, StandardCharsets.US_ASCII));
+                return true;
+            }
+            return false;
+        }
+
+        // The last boundary of the stream ends with "--"
+        if (length != mBoundary.length && length != mBoundary.length + 2) {
+            return false;
+        }
+        for (int i = 0; i < mBoundary.length; i++) {
+            if (mLine[i] != mBoundary[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setBoundary(String boundary) {
+        mBoundary = boundary.getBytes(StandardCharsets.US_ASCII);
+        mDelimiter = new byte[mBoundary.length + 2];
+        mDelimiter[0] = '\r';
+        mDelimiter[1] = '\n';
+        System.arraycopy(mBoundary, 0, mDelimiter, 2, mBoundary.length);
+    }
+
+    private int feedBody(byte[] buf, int off, int end) {
+        if (mContentLength >= 0) {
+            int n = Math.min(end - off, mContentLength - mFrameLength);
+            System.arraycopy(buf, off, mFrame, mFrameLength, n);
+            mFrameLength += n;
+            off += n;
+            if (mFrameLength == mContentLength) {
+                deliver(mFrameLength);
+                // The CRLF after the data is skipped as a non-boundary line
+                mState = STATE_BOUNDARY;
+            }
+            return off;
+        }
+
+        // No length: collect until the delimiter shows up
+        int n = end - off;
+        if (mFrameLength + n > MAX_FRAME_SIZE) {
+            // Lost the delimiter. Resynchronize on the next boundary.
+            mSkippedBytes += mFrameLength + n;
+            mFrameLength = 0;
+            mState = STATE_BOUNDARY;
+            return end;
+        }
+        if (mFrameLength + n > mFrame.length) {
+            mFrame = Arrays.copyOf(mFrame, Math.max(mFrame.length * 2, mFrameLength + n));
+        }
+        System.arraycopy(buf, off, mFrame, mFrameLength, n);
+        mFrameLength += n;
+
+        int found = indexOf(mFrame, mScanned, mFrameLength, mDelimiter);
+        if (found < 0) {
+            // The delimiter may start in the last bytes, so look at them again next time
+            mScanned = Math.max(0, mFrameLength - mDelimiter.length + 1);
+            return end;
+        }
+
+        deliver(found);
+
+        // Hand back the bytes after the delimiter: the rest of the boundary line and the next part.
+        // The delimiter ends in this chunk, otherwise it would have been found before.
+        int rest = mFrameLength - (found + mDelimiter.length);
+        mState = STATE_BOUNDARY_TAIL;
+        mContentLength = -1;
+        mFrameLength = 0;
+        mScanned = 0;
+        return end - rest;
+    }
+
+    private void deliver(int length) {
+        mFrames++;
+        mListener.onFrame(mFrame, 0, length);
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte[] pattern) {
+        int last = to - pattern.length;
+        byte first = pattern[0];
+        for (int i = from; i <= last; i++) {
+            if (buf[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && buf[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] line, int length, String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char)line[i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(byte[] line, int from, int to) {
+        int value = 0;
+        boolean digits = false;
+        for (int i = from; i < to; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits = true;
+            } else if (digits) {
+                break;
+            }
+        }
+        return digits ? value : -1;
+    }
+}
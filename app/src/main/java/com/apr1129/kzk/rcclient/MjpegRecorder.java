@@ -0,0 +1,275 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+// Records the camera stream as it arrives: the JPEG frames unchanged, one after the other, and
+// a frame index next to them. ffmpeg plays the video file with "-f mjpeg".
+//
+// offer() copies a frame into one of a fixed set of direct buffers and returns; a writer thread
+// writes them out with FileChannel. The queue is bounded: when storage cannot keep up, the
+// oldest queued frame is dropped, so a slow card never holds up the receive thread, and with it
+// the display. Once warmed up, recording does not allocate.
+//
+// Index file (<file>.idx), little endian:
+//   header (HEADER_SIZE bytes)
+//     0  int   MAGIC
+//     4  int   VERSION
+//     8  int   RECORD_SIZE
+//     12 int   0
+//     16 long  wall clock at open, ms
+//     24 long  System.nanoTime() at open
+//   a record (RECORD_SIZE bytes) for each frame written
+//     0  long  frame number, counting the dropped ones too
+//     8  long  System.nanoTime() when the frame arrived, the clock of FlightRecorder
+//     16 long  offset in the video file
+//     24 int   length
+//     28 int   0
+public class MjpegRecorder {
+
+    public static final int MAGIC = 0x52435649; // "RCVI"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_QUEUE_CAPACITY = 30; // a second of frames
+
+    private static final int INITIAL_FRAME_SIZE = 64 * 1024;
+    private static final long CLOSE_TIMEOUT = 2000; // ms to write out what is queued
+
+    private static class Slot {
+        ByteBuffer data = ByteBuffer.allocateDirect(INITIAL_FRAME_SIZE);
+        long number;
+        long receivedNanos;
+    }
+
+    private final File mFile;
+    private final WritableByteChannel mVideo;
+    private final WritableByteChannel mIndex;
+    private final ByteBuffer mRecord = ByteBuffer.allocateDirect(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread mWriteThread;
+
+    // Guarded by mLock. A slot is free, queued, being filled by offer() or being written.
+    private final Object mLock = new Object();
+    private final ArrayDeque<Slot> mFree;
+    private final ArrayDeque<Slot> mQueued;
+    private boolean mClosed = false;
+    private long mFrames = 0;
+    private long mDropped = 0;
+
+    // Write thread
+    private long mVideoPosition = 0;
+    private volatile long mWritten = 0;
+    private volatile long mWrittenBytes = 0;
+    private volatile IOException mError;
+
+    // Records to file and indexOf(file). Existing files are replaced.
+    public MjpegRecorder(File file, int queue_capacity) throws IOException {
+        this(file, new FileOutputStream(file).getChannel(), openIndex(file), queue_capacity);
+    }
+
+    MjpegRecorder(File file, WritableByteChannel video, WritableByteChannel index, int queue_capacity) throws IOException {
+        if (queue_capacity < 1) {
+            throw new IllegalArgumentException("queue_capacity " + queue_capacity);
+        }
+        mFile = file;
+        mVideo = video;
+        mIndex = index;
+
+        // One more than the queue holds, for the frame being written
+        mFree = new ArrayDeque<>(queue_capacity + 1);
+        mQueued = new ArrayDeque<>(queue_capacity + 1);
+        for (int i = 0; i < queue_capacity + 1; i++) {
+            mFree.add(new Slot());
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(RECORD_SIZE);
+        header.putInt(0);
+        header.putLong(System.currentTimeMillis());
+        header.putLong(System.nanoTime());
+        header.flip();
+        try {
+            writeFully(mIndex, header);
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+
+        mWriteThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "MjpegRecorder");
+        mWriteThread.start();
+    }
+
+    private static FileChannel openIndex(File file) throws IOException {
+        return new FileOutputStream(indexOf(file)).getChannel();
+    }
+
+    public static File indexOf(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    public File file() {
+        return mFile;
+    }
+
+    // Frames offered, written and dropped because the queue was full
+    public long frames() {
+        synchronized (mLock) {
+            return mFrames;
+        }
+    }
+
+    public long writtenFrames() {
+        return mWritten;
+    }
+
+    public long writtenBytes() {
+        return mWrittenBytes;
+    }
+
+    public long droppedFrames() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    // The write that stopped the recording, null while it runs
+    public IOException error() {
+        return mError;
+    }
+
+    // Queues a copy of a frame. Called from one thread at a time, the receive thread. Never
+    // waits for storage. Does nothing once closed or failed.
+    public void offer(byte[] data, int offset, int length, long received_nanos) {
+        Slot slot;
+        synchronized (mLock) {
+            if (mClosed || mError != null) {
+                return;
+            }
+            slot = mFree.poll();
+            if (slot == null) {
+                // Storage is behind: drop the oldest frame rather than wait
+                slot = mQueued.poll();
+                mDropped++;
+            }
+            slot.number = mFrames++;
+        }
+
+        if (slot.data.capacity() < length) {
+            slot.data = ByteBuffer.allocateDirect(length + length / 2);
+        }
+        slot.data.clear();
+        slot.data.put(data, offset, length);
+        slot.data.flip();
+        slot.receivedNanos = received_nanos;
+
+        synchronized (mLock) {
+            mQueued.add(slot);
+            mLock.notify();
+        }
+    }
+
+    // Writes out the queued frames, waiting up to CLOSE_TIMEOUT, and closes the files
+    public void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mLock.notify();
+        }
+        try {
+            mWriteThread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Slot slot;
+            synchronized (mLock) {
+                while (mQueued.isEmpty() && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Keep going until closed
+                    }
+                }
+                slot = mQueued.poll();
+            }
+            if (slot == null) {
+                // Closed, and everything queued is written
+                break;
+            }
+
+            try {
+                write(slot);
+            } catch (IOException e) {
+                mError = e;
+            }
+            synchronized (mLock) {
+                mFree.add(slot);
+                if (mError != null) {
+                    mFree.addAll(mQueued);
+                    mQueued.clear();
+                    break;
+                }
+            }
+        }
+        closeChannels();
+    }
+
+    private void write(Slot slot) throws IOException {
+        int length = slot.data.remaining();
+        long position = mVideoPosition;
+        writeFully(mVideo, slot.data);
+        mVideoPosition += length;
+
+        mRecord.clear();
+        mRecord.putLong(slot.number);
+        mRecord.putLong(slot.receivedNanos);
+        mRecord.putLong(position);
+        mRecord.putInt(length);
+        mRecord.putInt(0);
+        mRecord.flip();
+        writeFully(mIndex, mRecord);
+
+        mWritten++;
+        mWrittenBytes += length;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void closeChannels() {
+        close(mVideo);
+        close(mIndex);
+    }
+
+    private static void close(WritableByteChannel channel) {
+        try {
+            if (channel instanceof FileChannel) {
+                ((FileChannel)channel).force(false);
+            }
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.apr1129.kzk.rcclient;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Shows the newest frame of an MJPEG stream.
+//
+// Frames are drawn on a render thread of its own into the SurfaceView's buffer queue, which
+// double buffers, so the UI thread (touch input) and video never wait for each other. Frames
+// that are decoded faster than they can be drawn are skipped and counted.
+public class MjpegView extends SurfaceView implements SurfaceHolder.Callback {
+
+    private static final int RENDER_JOIN_TIMEOUT = 200; // ms, longer than drawing a frame takes
+
+    public interface Listener {
+        // Called on the UI thread
+        void onError(Exception e);
+
+        // Called on the render thread after each frame
+        void onFrameRendered(long render_nanos);
+    }
+
+    // A decoded frame on its way to the screen. Three of them rotate between the decode
+    // thread, the mNext slot and the render thread.
+    private static class Frame {
+        Bitmap bitmap; // null while empty
+        long receivedNanos;
+    }
+
+    private Listener mListener;
+    private final MjpegClient mClient;
+    private volatile LatencyStats mStats;
+    private final AtomicReference<Frame> mNext = new AtomicReference<>(new Frame());
+    private Frame mIncoming = new Frame(); // decode thread only
+    private final AtomicBoolean mRenderPending = new AtomicBoolean(false);
+    private HandlerThread mRenderThread;
+    private volatile Handler mRenderHandler;
+
+    // Render thread only
+    private Frame mSpare = new Frame();
+    private Bitmap mShown;
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Guarded by mSurfaceLock
+    private final Object mSurfaceLock = new Object();
+    private boolean mSurfaceReady = false;
+    private int mSurfaceWidth = 0;
+    private int mSurfaceHeight = 0;
+
+    // Statistics
+    private volatile long mRendered = 0;
+    private volatile long mSkipped = 0;
+    private volatile long mLastRenderNanos = 0;
+    private volatile long mMaxRenderNanos = 0;
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRenderPending.set(false);
+            Frame frame = mNext.getAndSet(mSpare);
+            mSpare = frame;
+            Bitmap bitmap = frame.bitmap;
+            if (bitmap == null) {
+                return;
+            }
+            frame.bitmap = null;
+
+            if (render(bitmap)) {
+                LatencyStats stats = mStats;
+                if (stats != null) {
+                    stats.record(LatencyStats.STAGE_FRAME_DISPLAY, System.nanoTime() - frame.receivedNanos);
+                }
+                if (mShown != null) {
+                    mClient.releaseFrame(mShown);
+                }
+                mShown = bitmap;
+            } else {
+                mClient.releaseFrame(bitmap);
+            }
+        }
+    };
+
+    // Last message of the render thread: hands the bitmaps it holds back to the pool. The
+    // decode thread is stopped by then, so nothing else touches the slot.
+    private final Runnable mShutdownRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mShown != null) {
+                mClient.releaseFrame(mShown);
+                mShown = null;
+            }
+            Frame frame = mNext.get();
+            mClient.releaseFrame(frame.bitmap);
+            frame.bitmap = null;
+        }
+    };
+
+    // Draws the last frame again after the surface was (re)created or resized
+    private final Runnable mRedrawRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mShown != null) {
+                render(mShown);
+            }
+        }
+    };
+
+    public MjpegView(Context context) {
+        this(context, null);
+    }
+
+    public MjpegView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        getHolder().addCallback(this);
+
+        mClient = new MjpegClient(new MjpegClient.Listener() {
+            @Override
+            public void onFrame(Bitmap bitmap, long received_nanos) {
+                Frame frame = mIncoming;
+                frame.bitmap = bitmap;
+                frame.receivedNanos = received_nanos;
+
+                mIncoming = mNext.getAndSet(frame);
+                if (mIncoming.bitmap != null) {
+                    // The render thread did not get to it
+                    mSkipped++;
+                    mClient.releaseFrame(mIncoming.bitmap);
+                    mIncoming.bitmap = null;
+                }
+                Handler handler = mRenderHandler;
+                if (handler != null && mRenderPending.compareAndSet(false, true)) {
+                    handler.post(mRenderRunnable);
+                }
+            }
+
+            @Override
+            public void onError(final Exception e) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mListener != null) mListener.onError(e);
+                    }
+                });
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // Record frame latency and render time into stats. null to stop recording.
+    public void setLatencyStats(LatencyStats stats) {
+        mStats = stats;
+        mClient.setLatencyStats(stats);
+    }
+
+    public void start(String url) {
+        stop();
+
+        mRenderThread = new HandlerThread("MjpegView-render");
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+        mClient.start(url);
+    }
+
+    public void stop() {
+        mClient.stop();
+
+        if (mRenderThread != null) {
+            mRenderHandler.removeCallbacksAndMessages(null);
+            mRenderHandler.post(mShutdownRunnable);
+            mRenderThread.quitSafely();
+            try {
+                mRenderThread.join(RENDER_JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mRenderThread = null;
+            mRenderHandler = null;
+            mRenderPending.set(false);
+        }
+    }
+
+    public MjpegClient client() {
+        return mClient;
+    }
+
+    public long renderedFrames() {
+        return mRendered;
+    }
+
+    // Decoded frames replaced by a newer one before they were drawn
+    public long skippedFrames() {
+        return mSkipped;
+    }
+
+    // Frames lost between the network and the screen, in the decoder or here
+    public long droppedFrames() {
+        return mClient.droppedFrames() + mSkipped;
+    }
+
+    public long lastRenderNanos() {
+        return mLastRenderNanos;
+    }
+
+    public long maxRenderNanos() {
+        return mMaxRenderNanos;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        synchronized (mSurfaceLock) {
+            mSurfaceReady = true;
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+        }
+        Handler handler = mRenderHandler;
+        if (handler != null) {
+            handler.post(mRedrawRunnable);
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // Blocks until a frame being drawn is posted
+        synchronized (mSurfaceLock) {
+            mSurfaceReady = false;
+        }
+    }
+
+    // Render thread. Returns false if there was no surface to draw on.
+    private boolean render(Bitmap bitmap) {
+        synchronized (mSurfaceLock) {
+            if (!mSurfaceReady) {
+                return false;
+            }
+
+            long start = System.nanoTime();
+            SurfaceHolder holder = getHolder();
+            Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    ? holder.getSurface().lockHardwareCanvas() : holder.lockCanvas();
+            if (canvas == null) {
+                return false;
+            }
+            try {
+                fitCenter(bitmap.getWidth(), bitmap.getHeight(), mSurfaceWidth, mSurfaceHeight);
+                canvas.drawColor(Color.BLACK);
+                canvas.drawBitmap(bitmap, mSrc, mDst, mPaint);
+            } finally {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    holder.getSurface().unlockCanvasAndPost(canvas);
+                } else {
+                    holder.unlockCanvasAndPost(canvas);
+                }
+            }
+
+            long render_nanos = System.nanoTime() - start;
+            mRendered++;
+            mLastRenderNanos = render_nanos;
+            if (render_nanos > mMaxRenderNanos) {
+                mMaxRenderNanos = render_nanos;
+            }
+            LatencyStats stats = mStats;
+            if (stats != null) {
+                stats.record(LatencyStats.STAGE_RENDER, render_nanos);
+            }
+            if (mListener != null) {
+                mListener.onFrameRendered(render_nanos);
+            }
+            return true;
+        }
+    }
+
+    // Largest rectangle with the aspect of the image which fits in the surface, centered
+    private void fitCenter(int image_width, int image_height, int width, int height) {
+        mSrc.set(0, 0, image_width, image_height);
+        if ((long)width * image_height > (long)height * image_width) {
+            int w = (int)((long)height * image_width / image_height);
+            mDst.set((width - w) / 2, 0, (width - w) / 2 + w, height);
+        } else {
+            int h = (int)((long)width * image_height / image_width);
+            mDst.set(0, (height - h) / 2, width, (height - h) / 2 + h);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.apr1129.kzk.rcclient;
+
+import android.view.MotionEvent;
+
+// TouchMapping.Samples over a MotionEvent, including its batched historical samples.
+// Reused for every event, so the input path does not allocate.
+public class MotionEventSamples implements TouchMapping.Samples {
+
+    private MotionEvent mEvent;
+
+    public MotionEventSamples set(MotionEvent event) {
+        mEvent = event;
+        return this;
+    }
+
+    // Don't hold on to the event after it was handled, the framework recycles it
+    public void clear() {
+        mEvent = null;
+    }
+
+    @Override
+    public int action() {
+        return mEvent.getActionMasked();
+    }
+
+    @Override
+    public int actionIndex() {
+        return mEvent.getActionIndex();
+    }
+
+    @Override
+    public int pointerCount() {
+        return mEvent.getPointerCount();
+    }
+
+    @Override
+    public int pointerId(int pointer) {
+        return mEvent.getPointerId(pointer);
+    }
+
+    @Override
+    public int historySize() {
+        return mEvent.getHistorySize();
+    }
+
+    @Override
+    public float x(int pointer, int h) {
+        return h < mEvent.getHistorySize() ? mEvent.getHistoricalX(pointer, h) : mEvent.getX(pointer);
+    }
+
+    @Override
+    public float y(int pointer, int h) {
+        return h < mEvent.getHistorySize() ? mEvent.getHistoricalY(pointer, h) : mEvent.getY(pointer);
+    }
+
+    // Event times have ms resolution
+    @Override
+    public long timeNanos(int h) {
+        long ms = h < mEvent.getHistorySize() ? mEvent.getHistoricalEventTime(h) : mEvent.getEventTime();
+        return ms * 1000000L;
+    }
+}
@@ -0,0 +1,40 @@
+package com.apr1129.kzk.rcclient;
+
+// Sends only when the command changed, at most once per min interval
+public class OnChangeScheduler implements DispatchScheduler {
+
+    private final long mMinInterval;
+    private long mLastSent = Long.MIN_VALUE / 2;
+
+    public OnChangeScheduler(long min_interval_ms) {
+        mMinInterval = min_interval_ms;
+    }
+
+    @Override
+    public boolean shouldSend(long now, boolean changed, boolean idle) {
+        return changed;
+    }
+
+    @Override
+    public void onSent(long now) {
+        mLastSent = now;
+    }
+
+    @Override
+    public long nextDelay(long now, boolean idle) {
+        return NO_TICK;
+    }
+
+    @Override
+    public long wakeDelay(long now) {
+        return Math.max(0, mLastSent + mMinInterval - now);
+    }
+
+    long lastSent() {
+        return mLastSent;
+    }
+
+    long minInterval() {
+        return mMinInterval;
+    }
+}
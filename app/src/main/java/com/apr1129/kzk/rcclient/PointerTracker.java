@@ -0,0 +1,125 @@
+package com.apr1129.kzk.rcclient;
+
+import android.view.MotionEvent;
+
+// Binds each finger to a control channel by pointer ID for as long as it is down.
+//
+// The channel is picked by the side of the screen the finger lands on, at ACTION_DOWN or
+// ACTION_POINTER_DOWN, and kept when the thumb drifts across the center. It is released only by
+// that pointer's own up event or a cancel. Pointer indices, which reshuffle when another finger
+// lifts, are only used to find a pointer within the current event.
+//
+// A finger landing on a side which is already driven is tracked but drives nothing, also after
+// the first finger lifts. Fixed capacity, allocation free. Input thread only.
+public class PointerTracker {
+
+    public static final int MAX_POINTERS = 16;
+    public static final int CHANNEL_NONE = -1;
+    public static final int CHANNEL_LEFT = 0;
+    public static final int CHANNEL_RIGHT = 1;
+    public static final int CHANNEL_COUNT = 2;
+
+    private static final int NO_POINTER = -1;
+
+    private final float mXCenter;
+    private final int[] mIds = new int[MAX_POINTERS];
+    private final int[] mChannels = new int[MAX_POINTERS];
+    private final int[] mOwners = new int[CHANNEL_COUNT];
+    private int mCount = 0;
+
+    public PointerTracker(float screen_width) {
+        mXCenter = screen_width / 2;
+        clear();
+    }
+
+    public void clear() {
+        mCount = 0;
+        for (int c = 0; c < CHANNEL_COUNT; c++) {
+            mOwners[c] = NO_POINTER;
+        }
+    }
+
+    // Binds or releases the pointer the event is about. Moves change nothing.
+    public void onEvent(TouchMapping.Samples samples) {
+        switch (samples.action()) {
+            case MotionEvent.ACTION_DOWN:
+                // First finger: anything still tracked missed its up event
+                clear();
+                down(samples, samples.actionIndex());
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                down(samples, samples.actionIndex());
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                up(samples.pointerId(samples.actionIndex()));
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                clear();
+                break;
+        }
+    }
+
+    private void down(TouchMapping.Samples samples, int index) {
+        int id = samples.pointerId(index);
+        up(id);
+        if (mCount == MAX_POINTERS) {
+            return;
+        }
+
+        int channel = samples.x(index, samples.historySize()) < mXCenter ? CHANNEL_LEFT : CHANNEL_RIGHT;
+        if (mOwners[channel] != NO_POINTER) {
+            channel = CHANNEL_NONE;
+        } else {
+            mOwners[channel] = id;
+        }
+        mIds[mCount] = id;
+        mChannels[mCount] = channel;
+        mCount++;
+    }
+
+    private void up(int id) {
+        for (int i = 0; i < mCount; i++) {
+            if (mIds[i] != id) {
+                continue;
+            }
+            if (mChannels[i] != CHANNEL_NONE) {
+                mOwners[mChannels[i]] = NO_POINTER;
+            }
+            mCount--;
+            mIds[i] = mIds[mCount];
+            mChannels[i] = mChannels[mCount];
+            return;
+        }
+    }
+
+    // Number of fingers down
+    public int count() {
+        return mCount;
+    }
+
+    // CHANNEL_NONE if the pointer is not down or drives nothing
+    public int channelOf(int pointer_id) {
+        for (int i = 0; i < mCount; i++) {
+            if (mIds[i] == pointer_id) {
+                return mChannels[i];
+            }
+        }
+        return CHANNEL_NONE;
+    }
+
+    // Index within the event of the pointer driving the channel, -1 if none. A pointer which just
+    // went up in this event no longer drives.
+    public int indexOf(TouchMapping.Samples samples, int channel) {
+        int id = mOwners[channel];
+        if (id == NO_POINTER) {
+            return -1;
+        }
+        for (int i = 0; i < samples.pointerCount(); i++) {
+            if (samples.pointerId(i) == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
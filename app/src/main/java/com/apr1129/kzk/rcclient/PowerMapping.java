@@ -0,0 +1,20 @@
+package com.apr1129.kzk.rcclient;
+
+// Touch position to motor power
+public class PowerMapping {
+
+    public static final int MAX_POWER = 1024;
+
+    // RcClient: distance from the vertical center of the display, always positive
+    public static int absolutePower(float y, int center_y) {
+        float dist = Math.abs(center_y - y);
+        float power_parcent = dist / (float)center_y;
+        return (int)Math.floor(MAX_POWER * power_parcent);
+    }
+
+    // RcClient2: above the vertical center is forward, below is backward
+    public static int signedPower(float y, float center_y) {
+        float dist = -(((y - center_y) / center_y) * (float)MAX_POWER);
+        return (int)dist;
+    }
+}
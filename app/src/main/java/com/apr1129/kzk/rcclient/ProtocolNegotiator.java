@@ -0,0 +1,48 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+
+/*
+ * Handshake sent right after the connection is opened:
+ *
+ *   client -> server  "HELLO BIN1\n"
+ *   server -> client  "OK BIN1\n"     (server accepts BinaryCommandEncoder frames)
+ *
+ * A server which only speaks the text protocol does not answer, so the client
+ * falls back to "MV <left> <right>\n" when no answer arrives within the timeout.
+ */
+public class ProtocolNegotiator {
+
+    public static final int DEFAULT_TIMEOUT = 300; // ms
+
+    static final byte[] HELLO = {'H', 'E', 'L', 'L', 'O', ' ', 'B', 'I', 'N', '1', '\n'};
+    static final byte[] HELLO_ACK = {'O', 'K', ' ', 'B', 'I', 'N', '1', '\n'};
+
+    // Returns the encoder to be used on the transport
+    public static CommandEncoder negotiate(Transport transport, int timeout_ms) throws IOException {
+        transport.write(HELLO, 0, HELLO.length);
+
+        byte[] ack = new byte[HELLO_ACK.length];
+        int received = 0;
+        long deadline = System.nanoTime() + timeout_ms * 1000000L;
+        while (received < ack.length) {
+            int remaining = (int)((deadline - System.nanoTime()) / 1000000L);
+            if (remaining <= 0) {
+                // The server does not know the handshake
+                return new TextCommandEncoder();
+            }
+
+            int n = transport.read(ack, received, ack.length - received, remaining);
+            if (n < 0) {
+                throw new IOException("Connection closed during handshake");
+            }
+            for (int i = received; i < received + n; i++) {
+                if (ack[i] != HELLO_ACK[i]) {
+                    return new TextCommandEncoder();
+                }
+            }
+            received += n;
+        }
+        return new BinaryCommandEncoder();
+    }
+}
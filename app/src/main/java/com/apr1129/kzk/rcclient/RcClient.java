@@ -2,27 +2,32 @@ package com.apr1129.kzk.rcclient;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
-import android.util.Log;
 import android.view.MotionEvent;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
 
 public class RcClient {
 
     private static final String TAG = "RcClient";
     private static final int WHAT_MAIN_ERROR = 0;
     private static final int WHAT_MAIN_CONNECTED = 1;
+    private static final int WHAT_MAIN_STATE = 2;
+    private static final int WHAT_MAIN_REPORT = 3;
+    private static final int WHAT_MAIN_LINK = 4;
+    private static final int LATENCY_REPORT_INTERVAL = 5000; // ms
 
     private static final int WHAT_SUB_CONNECT = 0;
     private static final int WHAT_SUB_TOUCH = 1;
+    private static final int WHAT_SUB_START = 2;
+    private static final int WHAT_SUB_STOP = 3;
+    private static final int WHAT_SUB_PING = 4;
 
     private volatile boolean mIsConnected = false;
 
-    private HandlerThread mThread;
+    private SenderThread mThread;
     private Handler mSubHandler;
     private Handler mMainHandler = new Handler() {
         @Override
@@ -39,53 +44,174 @@ public class RcClient {
                     }
                     mIsConnected = true;
                     break;
+                case WHAT_MAIN_STATE:
+                    if (msg.arg1 != ConnectionSupervisor.STATE_CONNECTED) {
+                        mIsConnected = false;
+                    }
+                    if (mListener != null) {
+                        mListener.onConnectionStateChanged(msg.arg1, msg.arg2);
+                    }
+                    break;
+                case WHAT_MAIN_REPORT:
+                    LatencyStats stats = mStats;
+                    if (stats != null && mListener != null) {
+                        mListener.onLatencyReport(stats);
+                    }
+                    sendEmptyMessageDelayed(WHAT_MAIN_REPORT, LATENCY_REPORT_INTERVAL);
+                    break;
+                case WHAT_MAIN_LINK:
+                    if (mListener != null) {
+                        mListener.onLinkQuality((RttEstimator)msg.obj);
+                    }
+                    break;
             }
         }
     };
 
+    // The sender thread of one start(), with its own connection. A thread which is still busy
+    // after stop() or the next start(), e.g. in a blocked connect, finishes on its own transport
+    // and supervisor and cannot touch the next thread's connection.
+    private class SenderThread extends HandlerThread {
+        final Transport transport;
+        final ConnectionSupervisor supervisor;
+        final LinkProbe probe; // null while link probing is off
+
+        // Delivers this thread's events on the UI thread until it is stopped
+        final Handler events;
+
+        // Set by stopThread(). Failures and events after it are dropped.
+        volatile boolean quitting = false;
+
+        // Sender thread only
+        CommandEncoder encoder = new TextCommandEncoder();
+        int pingSeq = 0;
+
+        SenderThread(Transport transport, boolean link_probe) {
+            super("RcClient");
+            this.transport = transport;
+            events = new Handler(Looper.getMainLooper()) {
+                @Override
+                public void dispatchMessage(Message msg) {
+                    if (!quitting) {
+                        mMainHandler.dispatchMessage(msg);
+                    }
+                }
+            };
+            supervisor = new ConnectionSupervisor(new ReconnectBackoff(), new ConnectionSupervisor.Listener() {
+                @Override
+                public void onStateChanged(int state, long elapsed_ms) {
+                    Message msg = events.obtainMessage(WHAT_MAIN_STATE, state, (int)Math.min(elapsed_ms, Integer.MAX_VALUE));
+                    events.sendMessage(msg);
+                }
+            });
+            probe = !link_probe ? null : new LinkProbe(new RttEstimator(), new LinkProbe.Listener() {
+                @Override
+                public void onPong(RttEstimator estimator) {
+                    if (!events.hasMessages(WHAT_MAIN_LINK)) {
+                        events.sendMessage(events.obtainMessage(WHAT_MAIN_LINK, estimator));
+                    }
+                }
+            });
+        }
+    }
+
     private String mSrvAddress;
     private int mSrvPort;
-    private Socket mSocket;
+    private Transport mNextTransport; // for the next start() only, null for a new TcpTransport
     private Listener mListener;
+    private volatile boolean mBinaryProtocolEnabled = false;
+    private boolean mLinkProbeEnabled = false;
 
-    private Object LOCK = new Object();
-
-    private volatile int mNumQueueItems = 0;
-    private volatile long mLastDispatchedTime = 0;
+    private final CommandMailbox mMailbox = new CommandMailbox();
+    private volatile LatencyStats mStats;
+    private volatile FlightRecorder mRecorder;
 
-    private final int DISPLAY_WIDTH;
-    private final int DISPLAY_WIDTH_CENTER;
-    private final int DISPLAY_HEIGHT;
-    private final int DISPLAY_HEIGHT_CENTER;
+    // UI thread only
+    private final MotionEventSamples mSamples = new MotionEventSamples();
+    private final TouchMapping mMapping;
 
     public interface Listener {
         void onError(Exception e);
         void onConnected();
+
+        // state is one of ConnectionSupervisor.STATE_*. For STATE_CONNECTED, elapsed_ms is the
+        // time it took to (re)connect.
+        void onConnectionStateChanged(int state, long elapsed_ms);
+
+        // Called periodically on the UI thread while started, if latency stats are set
+        void onLatencyReport(LatencyStats stats);
+
+        // Called on the UI thread after each answered ping, if link probing is enabled
+        void onLinkQuality(RttEstimator link);
     }
 
     public RcClient(Listener listener, int display_width, int display_height) {
         mListener = listener;
-        DISPLAY_WIDTH = display_width;
-        DISPLAY_WIDTH_CENTER = DISPLAY_WIDTH / 2;
-        DISPLAY_HEIGHT = display_height;
-        DISPLAY_HEIGHT_CENTER = DISPLAY_HEIGHT / 2;
+        mMapping = new TouchMapping(display_width, display_height, true);
+    }
+
+    // Record touch-to-wire latency into stats. null to stop recording.
+    public void setLatencyStats(LatencyStats stats) {
+        mStats = stats;
+    }
+
+    // Smooth touch input with a 1-euro filter over all batched samples and extrapolate
+    // prediction_ms ahead. Call on the UI thread.
+    public void setTouchFilter(double min_cutoff_hz, double beta, long prediction_ms) {
+        mMapping.setFilter(min_cutoff_hz, beta, prediction_ms);
+    }
+
+    // Use the current touch position only. Call on the UI thread.
+    public void clearTouchFilter() {
+        mMapping.clearFilter();
+    }
+
+    // Record touches, commands, write latencies and connection events. null to stop recording.
+    public void setFlightRecorder(FlightRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    // Measure RTT, jitter and clock offset with PING/PONG on the control connection.
+    // Takes effect on the next start(). The robot has to answer pings.
+    public void setLinkProbeEnabled(boolean enabled) {
+        mLinkProbeEnabled = enabled;
+    }
+
+    // Offer the binary protocol on the next connection. Falls back to text if the server does not answer.
+    public void setBinaryProtocolEnabled(boolean enabled) {
+        mBinaryProtocolEnabled = enabled;
+    }
+
+    // Connect the next start() on transport. Every start() has a transport of its own: the
+    // ones after it open a new TcpTransport.
+    public void setTransport(Transport transport) {
+        mNextTransport = transport;
     }
 
     public void start(String address, int port) {
         mSrvAddress = address;
         mSrvPort = port;
 
-        if (mThread != null && mThread.isAlive()) {
-            mThread.quit();
-        }
+        stopThread();
 
-        mThread = new HandlerThread("RcClient");
+        // A new connection for each start(). The previous thread closes its own.
+        Transport transport = mNextTransport != null ? mNextTransport : new TcpTransport();
+        mNextTransport = null;
+        mThread = new SenderThread(transport, mLinkProbeEnabled);
         mThread.start();
 
         mSubHandler = new Handler(mThread.getLooper()) {
             @Override
             public void dispatchMessage (Message msg) {
+                if (senderThread().quitting && msg.what != WHAT_SUB_STOP) {
+                    return;
+                }
                 switch (msg.what) {
+                    case WHAT_SUB_START:
+                        senderThread().supervisor.start(SystemClock.uptimeMillis());
+                        processConnect(msg);
+                        break;
+
                     case WHAT_SUB_CONNECT:
                         processConnect(msg);
                         break;
@@ -93,12 +219,24 @@ public class RcClient {
                     case WHAT_SUB_TOUCH:
                         processTouchEvent(msg);
                         break;
+
+                    case WHAT_SUB_PING:
+                        processPing(msg);
+                        break;
+
+                    case WHAT_SUB_STOP:
+                        senderThread().supervisor.stop();
+                        senderThread().transport.close();
+                        break;
                 }
             }
         };
 
-        Message msg = mSubHandler.obtainMessage(WHAT_SUB_CONNECT);
+        Message msg = mSubHandler.obtainMessage(WHAT_SUB_START);
         mSubHandler.sendMessage(msg);
+
+        mMainHandler.removeMessages(WHAT_MAIN_REPORT);
+        mMainHandler.sendEmptyMessageDelayed(WHAT_MAIN_REPORT, LATENCY_REPORT_INTERVAL);
     }
 
     void restart() {
@@ -108,118 +246,196 @@ public class RcClient {
     }
 
     public void stop() {
-        if (mThread != null) {
-            mThread.quit();
-        }
+        stopThread();
+        mMainHandler.removeMessages(WHAT_MAIN_REPORT);
+        mIsConnected = false;
 
-        if (mSocket != null) {
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to close socket", e);
-            }
+        // A command left in the slot would keep post() from waking the next sender thread
+        mMailbox.take();
+    }
 
-            mIsConnected = false;
+    private void stopThread() {
+        if (mThread != null) {
+            mThread.quitting = true;
+            mSubHandler.removeMessages(WHAT_SUB_CONNECT);
+            mSubHandler.removeMessages(WHAT_SUB_PING);
+            mSubHandler.sendMessageAtFrontOfQueue(mSubHandler.obtainMessage(WHAT_SUB_STOP));
+            mThread.quitSafely();
+            mThread = null;
+            mSubHandler = null;
         }
     }
 
     public void touchEvent(MotionEvent event) {
+        // Record even while disconnected, the inputs matter most around a connection loss
+        FlightRecorder recorder = mRecorder;
+        if (recorder != null) {
+            int action_masked = event.getActionMasked();
+            int action_index = event.getActionIndex();
+            for (int i = 0; i < event.getPointerCount(); i++) {
+                recorder.recordTouch(action_masked, action_index, i, event.getPointerId(i), event.getX(i), event.getY(i));
+            }
+            // The batched samples too, the filter sees every one of them
+            long event_time = event.getEventTime();
+            for (int h = 0; h < event.getHistorySize(); h++) {
+                long age = event_time - event.getHistoricalEventTime(h);
+                for (int i = 0; i < event.getPointerCount(); i++) {
+                    recorder.recordHistory(i, event.getPointerId(i), event.getHistoricalX(i, h),
+                            event.getHistoricalY(i, h), age);
+                }
+            }
+        }
+
+        // Fingers keep their side by pointer ID, also while disconnected
+        mSamples.set(event);
+        mMapping.update(mSamples);
+        mSamples.clear();
         if (mThread == null || mSubHandler == null || !mIsConnected) {
             return;
         }
 
-        long now = SystemClock.elapsedRealtime();
-        if (now - mLastDispatchedTime > 200 && numQueueItems() < 2) {
-            incrementNumQueueItems();
-
-            int left_power = 0;
-            int right_power = 0;
-
-            int count = event.getPointerCount();
-            for (int i = 0; i < count; i++) {
-                float x = event.getX(i);
-                float y = event.getY(i);
-
-                boolean inLeft = x < DISPLAY_WIDTH_CENTER;
-                boolean inTop = y < DISPLAY_HEIGHT_CENTER;
+        int left_power = mMapping.leftPower();
+        int right_power = mMapping.rightPower();
 
-                float dist = Math.abs(DISPLAY_HEIGHT_CENTER - y);
-                float power_parcent = dist / (float)DISPLAY_HEIGHT_CENTER;
-
-                if (inLeft) {
-                    left_power = (int)Math.floor(1024 * power_parcent);
-                } else {
-                    right_power = (int)Math.floor(1024 * power_parcent);
-                }
-
-            }
-
-
-            Message msg = mSubHandler.obtainMessage(WHAT_SUB_TOUCH, left_power, right_power);
-            mSubHandler.sendMessage(msg);
+        // Overwrite the pending command. Only wake the sender if it has nothing to send yet.
+        boolean wake = mMailbox.post(left_power, right_power);
+        LatencyStats stats = mStats;
+        if (stats != null) {
+            stats.onEnqueued(System.nanoTime());
+        }
+        if (wake) {
+            mSubHandler.sendEmptyMessage(WHAT_SUB_TOUCH);
         }
-
     }
 
     private void processTouchEvent(Message msg) {
         try {
             doProcessTouchEvent(msg);
         } catch (Exception e) {
-            Message errmsg = mMainHandler.obtainMessage(WHAT_MAIN_ERROR, e);
-            mMainHandler.sendMessage(errmsg);
+            onFailure(msg.getTarget(), e);
         }
-
-        decrementNumQueueItems();
     }
 
     private void doProcessTouchEvent(Message msg) throws IOException {
-        int left_power = msg.arg1;
-        int right_power = msg.arg2;
-        Log.d(TAG, "("+left_power+", " + right_power + ")");
+        SenderThread thread = senderThread();
 
-        String request = String.format("MV %d %d\n", left_power, right_power);
-        byte[] bytes = request.getBytes();
+        // Take the touch before the command, so the command written reflects it
+        LatencyStats stats = mStats;
+        long touch_nanos = stats != null ? stats.takeTouch() : 0;
+
+        long command = mMailbox.take();
+        if (command == CommandMailbox.EMPTY) {
+            return;
+        }
 
-        OutputStream out = mSocket.getOutputStream();
-        out.write(bytes);
-        out.flush();
+        int left_power = CommandMailbox.leftPowerOf(command);
+        int right_power = CommandMailbox.rightPowerOf(command);
+        int len = thread.encoder.encodeMove(left_power, right_power);
+        FlightRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordCommand(left_power, right_power, len);
+            long start = System.nanoTime();
+            thread.transport.write(thread.encoder.buffer(), 0, len);
+            recorder.recordWrite(len, (System.nanoTime() - start) / 1000);
+        } else {
+            thread.transport.write(thread.encoder.buffer(), 0, len);
+        }
+        if (stats != null) {
+            stats.onWire(touch_nanos, System.nanoTime());
+        }
     }
 
     private void processConnect(Message msg) {
         try {
             doProcessConnect(msg);
         } catch (Exception e) {
-            Message errmsg = mMainHandler.obtainMessage(WHAT_MAIN_ERROR, e);
-            mMainHandler.sendMessage(errmsg);
+            onFailure(msg.getTarget(), e);
         }
     }
 
-    private void doProcessConnect(Message msg) throws IOException {
-        if (mSocket == null || mSocket.isClosed()) {
-            mSocket = new Socket(mSrvAddress, mSrvPort);
+    // Close the connection and retry on the same thread with backoff
+    private void onFailure(Handler handler, Exception e) {
+        SenderThread thread = senderThread();
+        thread.transport.close();
+        if (thread.quitting) {
+            // Stopped or restarted meanwhile: the failure is not the next thread's
+            return;
+        }
+        long delay = thread.supervisor.onFailure(SystemClock.uptimeMillis());
+        FlightRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordDisconnect(thread.supervisor.consecutiveFailures());
+        }
 
-            Message connected_msg = mMainHandler.obtainMessage(WHAT_MAIN_CONNECTED);
-            mMainHandler.sendMessage(connected_msg);
+        // Inform the first failure only. Retries are visible through the connection state.
+        if (thread.supervisor.consecutiveFailures() == 1) {
+            Message errmsg = thread.events.obtainMessage(WHAT_MAIN_ERROR, e);
+            thread.events.sendMessage(errmsg);
         }
+
+        handler.removeMessages(WHAT_SUB_PING);
+        handler.removeMessages(WHAT_SUB_CONNECT);
+        handler.sendEmptyMessageDelayed(WHAT_SUB_CONNECT, delay);
     }
 
-    private int numQueueItems() {
-        int ret = 0;
-        synchronized (LOCK) {
-            ret = mNumQueueItems;
+    private void processPing(Message msg) {
+        SenderThread thread = senderThread();
+        LinkProbe probe = thread.probe;
+        if (probe == null || !thread.transport.isConnected()) {
+            return;
+        }
+        try {
+            thread.pingSeq = (thread.pingSeq + 1) & 0xffff;
+            int len = thread.encoder.encodePing(thread.pingSeq);
+            thread.transport.write(thread.encoder.buffer(), 0, len);
+            probe.estimator().onPingSent(thread.pingSeq, System.nanoTime());
+            msg.getTarget().sendEmptyMessageDelayed(WHAT_SUB_PING, probe.interval());
+        } catch (Exception e) {
+            onFailure(msg.getTarget(), e);
         }
-        return ret;
     }
 
-    private void decrementNumQueueItems() {
-        synchronized (LOCK) {
-            mNumQueueItems--;
+    private void doProcessConnect(Message msg) throws IOException {
+        SenderThread thread = senderThread();
+        Transport transport = thread.transport;
+        if (!transport.isConnected()) {
+            // The reader of the last connection must be gone before the next one is opened
+            LinkProbe probe = thread.probe;
+            if (probe != null) {
+                probe.stop();
+            }
+
+            transport.connect(mSrvAddress, mSrvPort);
+            if (mBinaryProtocolEnabled) {
+                thread.encoder = ProtocolNegotiator.negotiate(transport, ProtocolNegotiator.DEFAULT_TIMEOUT);
+            } else {
+                thread.encoder = new TextCommandEncoder();
+            }
+            if (thread.quitting) {
+                // Stopped or restarted while connecting. The stop message closes the connection.
+                return;
+            }
+
+            // Make sure the robot stops until the next touch
+            int len = thread.encoder.encodeMove(0, 0);
+            transport.write(thread.encoder.buffer(), 0, len);
+            long elapsed_ms = thread.supervisor.onConnected(SystemClock.uptimeMillis());
+            FlightRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.recordConnect(thread.encoder instanceof BinaryCommandEncoder, elapsed_ms);
+            }
+
+            if (probe != null) {
+                probe.start(transport, thread.encoder instanceof BinaryCommandEncoder);
+                msg.getTarget().sendEmptyMessage(WHAT_SUB_PING);
+            }
+
+            Message connected_msg = thread.events.obtainMessage(WHAT_MAIN_CONNECTED);
+            thread.events.sendMessage(connected_msg);
         }
     }
 
-    private void incrementNumQueueItems() {
-        synchronized (LOCK) {
-            mNumQueueItems++;
-        }
+    private static SenderThread senderThread() {
+        return (SenderThread)Thread.currentThread();
     }
 }
@@ -2,71 +2,202 @@ package com.apr1129.kzk.rcclient;
 
 import android.content.Context;
 import android.graphics.Point;
-import android.graphics.PointF;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
+import android.os.SystemClock;
 import android.view.Display;
 import android.view.MotionEvent;
 import android.view.WindowManager;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RcClient2 {
 
     private static final String TAG = "RcClient2";
-    private static final int POLLING_INTERVAL = 100; // ms
+    private static final int POLLING_INTERVAL = 100; // ms, full rate while changes keep coming
+    private static final long MIN_SEND_INTERVAL = 10; // ms between two changes
+    private static final int LATENCY_REPORT_INTERVAL = 5000; // ms
+    private static final int WARM_LINGER = 30000; // ms the connection stays open after pause()
     private static final int WHAT_ERROR = 0;
     private static final int WHAT_CONNECTED = 1;
+    private static final int WHAT_STATE = 2;
+    private static final int WHAT_LINK = 3;
+    private static final int WHAT_FIRST_COMMAND = 4;
+
+    public static final int TRANSPORT_TCP = 0;
+    public static final int TRANSPORT_UDP = 1;
+
+    // An unchanged command is repeated this often while the robot is driving: the polling
+    // cadence the robot has always seen, so its watchdog never stops it while driving. Only
+    // lengthen it with setKeepaliveInterval() for a robot whose watchdog timeout is known.
+    public static final long DEFAULT_KEEPALIVE_INTERVAL = POLLING_INTERVAL; // ms
+
+    // ... and this often while it is stopped
+    public static final long DEFAULT_IDLE_KEEPALIVE_INTERVAL = 1000; // ms
+
+    // Makes the scheduler of each start(). Schedulers keep state, so every sender thread has its own.
+    public interface SchedulerFactory {
+        DispatchScheduler create();
+    }
 
     public interface Listener {
         void onError(Exception e);
         void onConnected();
-    }
 
-    private final float SCREEN_HEIGHT;
-    private final float SCREEN_WIDTH;
-    private final float SCREEN_X_CENTER;
-    private final float SCREEN_Y_CENTER;
+        // state is one of ConnectionSupervisor.STATE_*. For STATE_CONNECTED, elapsed_ms is the
+        // time it took to (re)connect.
+        void onConnectionStateChanged(int state, long elapsed_ms);
+
+        // Called periodically on the UI thread while started, if latency stats are set
+        void onLatencyReport(LatencyStats stats);
+
+        // Called on the UI thread after each answered ping, if link probing is enabled
+        void onLinkQuality(RttEstimator link);
+
+        // Called on the UI thread once the first command after start() or resume() was written,
+        // with the time it took
+        void onFirstCommand(long elapsed_ms);
+    }
 
     private Listener mListener;
-    private volatile PointF mLeftTouchPos = new PointF(-1, -1);
-    private volatile PointF mRightTouchPos = new PointF(-1, -1);
-    private HandlerThread mPoolingHandlerThread;
-    private Handler mPoolingHandler;
+    private final TouchMapping mMapping;
+    private final MotionEventSamples mSamples = new MotionEventSamples();
+    private SenderThread mPoolingHandlerThread;
+    private volatile Handler mPoolingHandler;
     private Handler mMainHandler = new Handler() {
             @Override
             public void dispatchMessage(Message msg) {
-                switch (msg.what) {
-                    case WHAT_ERROR:
-                        if (mListener != null) mListener.onError((Exception)msg.obj);
-                        break;
-                    case WHAT_CONNECTED:
-                        if (mListener != null) mListener.onConnected();
-                        break;
-                }
+                dispatchEvent(msg);
             }
         };
 
-    private Socket mSocket;
+    // The sender thread of one start(), with its own connection, scheduler, link probe and ack
+    // window. A thread which is still busy after stop() or the next start(), e.g. in a blocked
+    // connect, finishes on its own objects and cannot touch the next thread's connection.
+    private class SenderThread extends HandlerThread {
+        final ControlSender sender;
+        final ConnectionSupervisor supervisor;
+
+        // Delivers this thread's events on the UI thread until it is stopped
+        final Handler events;
+
+        // Set by stopThread(). Events still on their way are dropped.
+        volatile boolean quitting = false;
+
+        // Sender thread only. firstCommandFrom: mStartedAt until the first command was written, -1 after.
+        // stopPending: write a stop on the open connection to check that it is still alive.
+        long firstCommandFrom = -1;
+        boolean stopPending = false;
+
+        SenderThread(ControlSender sender) {
+            super("RcClient2");
+            this.sender = sender;
+            events = new Handler(Looper.getMainLooper()) {
+                @Override
+                public void dispatchMessage(Message msg) {
+                    if (!quitting) {
+                        dispatchEvent(msg);
+                    }
+                }
+            };
+            supervisor = new ConnectionSupervisor(new ReconnectBackoff(), new ConnectionSupervisor.Listener() {
+                @Override
+                public void onStateChanged(int state, long elapsed_ms) {
+                    Message msg = events.obtainMessage(WHAT_STATE, state, (int)Math.min(elapsed_ms, Integer.MAX_VALUE));
+                    events.sendMessage(msg);
+                }
+            });
+        }
+    }
+
+    private int mTransportMode = TRANSPORT_TCP;
+    private boolean mBinaryProtocolEnabled = false;
+    private boolean mLinkProbeEnabled = false;
+    private boolean mAckWindowEnabled = false;
+    private SchedulerFactory mSchedulerFactory = adaptiveScheduler(
+            DEFAULT_KEEPALIVE_INTERVAL, DEFAULT_IDLE_KEEPALIVE_INTERVAL);
+    private final SendSavings mSavings = new SendSavings(POLLING_INTERVAL);
+    private final AtomicBoolean mWakePending = new AtomicBoolean(false);
+    private volatile LatencyStats mStats;
+    private volatile FlightRecorder mRecorder;
+    private Telemetry mTelemetry;
+
     private String mAddress;
     private int mPort;
+
+    // Set by start() and resume(), uptime ms
+    private volatile long mStartedAt = 0;
+    private boolean mPaused = false;
+
     private Runnable mPoolingRunnable = new Runnable() {
             @Override
             public void run() {
-                try {
-                    onUpdate();
+                long delay = onUpdate();
+                if (delay != DispatchScheduler.NO_TICK) {
+                    scheduleTick(delay);
+                }
+            }
+        };
+
+    private Runnable mStartRunnable = new Runnable() {
+            @Override
+            public void run() {
+                SenderThread thread = senderThread();
+                thread.supervisor.start(SystemClock.uptimeMillis());
+                thread.firstCommandFrom = mStartedAt;
+                mPoolingRunnable.run();
+            }
+        };
+
+    private Runnable mResumeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                SenderThread thread = senderThread();
+                thread.firstCommandFrom = mStartedAt;
+                thread.stopPending = true;
+                mPoolingRunnable.run();
+            }
+        };
+
+    private Runnable mLingerRunnable = new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        };
+
+    private Runnable mStopRunnable = new Runnable() {
+            @Override
+            public void run() {
+                SenderThread thread = senderThread();
+                thread.supervisor.stop();
+                thread.sender.close();
+            }
+        };
+
+    private Runnable mReportRunnable = new Runnable() {
+            @Override
+            public void run() {
+                LatencyStats stats = mStats;
+                if (stats != null && mListener != null) {
+                    mListener.onLatencyReport(stats);
+                }
+                mMainHandler.postDelayed(this, LATENCY_REPORT_INTERVAL);
+            }
+        };
 
-                    // Post next if didn't occur exception
-                    mPoolingHandler.postDelayed(mPoolingRunnable, POLLING_INTERVAL);
-                } catch (IOException e) {
+    private Runnable mWakeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mWakePending.set(false);
 
-                    // inform exception to listener
-                    Message errmsg = mMainHandler.obtainMessage(WHAT_ERROR, e);
-                    mMainHandler.sendMessage(errmsg);
+                // Bring the next tick forward if the scheduler wants to send the change earlier
+                long delay = senderThread().sender.wakeDelay(SystemClock.uptimeMillis());
+                if (delay != DispatchScheduler.NO_TICK) {
+                    scheduleTick(delay);
                 }
             }
         };
@@ -80,11 +211,80 @@ public class RcClient2 {
         Point screenSize = new Point();
         disp.getRealSize(screenSize);
 
-        // Initialize constant values
-        SCREEN_WIDTH = screenSize.x;
-        SCREEN_HEIGHT = screenSize.y;
-        SCREEN_X_CENTER = SCREEN_WIDTH / 2;
-        SCREEN_Y_CENTER = SCREEN_HEIGHT / 2;
+        mMapping = new TouchMapping(screenSize.x, screenSize.y);
+    }
+
+    // Offer the binary protocol on the next connection. Takes effect on the next start().
+    // Falls back to text if the server does not answer.
+    public void setBinaryProtocolEnabled(boolean enabled) {
+        mBinaryProtocolEnabled = enabled;
+    }
+
+    // Replace the strategy which decides when commands are sent. Takes effect on the next start().
+    public void setDispatchScheduler(SchedulerFactory factory) {
+        mSchedulerFactory = factory;
+    }
+
+    // Send changes right away and repeat an unchanged command only every keepalive_ms while
+    // driving and every idle_keepalive_ms while stopped. keepalive_ms has to be shorter than
+    // the robot's watchdog timeout. Takes effect on the next start().
+    public void setKeepaliveInterval(long keepalive_ms, long idle_keepalive_ms) {
+        mSchedulerFactory = adaptiveScheduler(keepalive_ms, idle_keepalive_ms);
+    }
+
+    private static SchedulerFactory adaptiveScheduler(final long keepalive_ms, final long idle_keepalive_ms) {
+        return new SchedulerFactory() {
+            @Override
+            public DispatchScheduler create() {
+                return new AdaptiveScheduler(MIN_SEND_INTERVAL, keepalive_ms, idle_keepalive_ms);
+            }
+        };
+    }
+
+    // Commands written compared to sending one every POLLING_INTERVAL
+    public SendSavings sendSavings() {
+        return mSavings;
+    }
+
+    // Record touch-to-wire latency into stats. null to stop recording.
+    public void setLatencyStats(LatencyStats stats) {
+        mStats = stats;
+    }
+
+    // Read the battery, speed and range readings the robot sends back into telemetry.
+    // Takes effect on the next start(). null to stop reading them.
+    public void setTelemetry(Telemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    // Record touches, commands, write latencies and connection events. Commands and writes
+    // are recorded from the next start(). null to stop recording.
+    public void setFlightRecorder(FlightRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    // Smooth touch input with a 1-euro filter over all batched samples and extrapolate
+    // prediction_ms ahead. Call on the UI thread.
+    public void setTouchFilter(double min_cutoff_hz, double beta, long prediction_ms) {
+        mMapping.setFilter(min_cutoff_hz, beta, prediction_ms);
+    }
+
+    // Use the current touch position only. Call on the UI thread.
+    public void clearTouchFilter() {
+        mMapping.clearFilter();
+    }
+
+    // Measure RTT, jitter and clock offset with PING/PONG on the control connection.
+    // Takes effect on the next start(). The robot has to answer pings.
+    public void setLinkProbeEnabled(boolean enabled) {
+        mLinkProbeEnabled = enabled;
+    }
+
+    // Have the robot acknowledge each command and keep only a window of unacknowledged ones in
+    // flight, sized by the measured RTT, so commands do not queue up on a congested link.
+    // Needs the binary protocol and TCP. Takes effect on the next start().
+    public void setAckWindowEnabled(boolean enabled) {
+        mAckWindowEnabled = enabled;
     }
 
     public void restart() {
@@ -94,99 +294,248 @@ public class RcClient2 {
     }
 
     public void start(String address, int port) {
+        start(address, port, mTransportMode);
+    }
+
+    // transport_mode is TRANSPORT_TCP or TRANSPORT_UDP
+    public void start(String address, int port, int transport_mode) {
+        // Don't leave the thread of a previous start() running
+        stopThread();
+        mMainHandler.removeCallbacks(mLingerRunnable);
+        mPaused = false;
+        mStartedAt = SystemClock.uptimeMillis();
+
         mAddress = address;
         mPort = port;
 
-        mPoolingHandlerThread = new HandlerThread("RcClient2");
+        // A new connection for each start(). The previous thread closes its own.
+        boolean udp = transport_mode == TRANSPORT_UDP;
+        ControlSender sender = new ControlSender(udp ? new UdpTransport() : new TcpTransport(), udp,
+                mSchedulerFactory.create());
+        mTransportMode = transport_mode;
+        final SenderThread thread = new SenderThread(sender);
+        sender.setBinaryProtocolEnabled(mBinaryProtocolEnabled);
+        if (mLinkProbeEnabled) {
+            // Answers reach the UI until the thread is stopped
+            sender.setLinkProbe(new LinkProbe(new RttEstimator(), new LinkProbe.Listener() {
+                @Override
+                public void onPong(RttEstimator estimator) {
+                    if (!thread.events.hasMessages(WHAT_LINK)) {
+                        thread.events.sendMessage(thread.events.obtainMessage(WHAT_LINK, estimator));
+                    }
+                }
+            }));
+        }
+        sender.setAckWindow(mAckWindowEnabled ? new AckWindow() : null);
+        sender.setFlightRecorder(mRecorder);
+        sender.setSendSavings(mSavings);
+        sender.setTelemetry(mTelemetry);
+
+        mPoolingHandlerThread = thread;
         mPoolingHandlerThread.start();
 
         mPoolingHandler = new Handler(mPoolingHandlerThread.getLooper());
-        mPoolingHandler.post(mPoolingRunnable);
+        mPoolingHandler.post(mStartRunnable);
+
+        mMainHandler.removeCallbacks(mReportRunnable);
+        mMainHandler.postDelayed(mReportRunnable, LATENCY_REPORT_INTERVAL);
     }
 
     public void stop() {
-        if (mSocket != null) {
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception in Socket#close", e);
-            }
+        stopThread();
+        mMainHandler.removeCallbacks(mReportRunnable);
+        mMainHandler.removeCallbacks(mLingerRunnable);
+        mPaused = false;
+    }
+
+    // Stops the robot but keeps the connection open for WARM_LINGER, so that a resume() within
+    // that time does not have to connect again. Stop-only keepalives keep it alive meanwhile.
+    // Call on the UI thread.
+    public void pause() {
+        if (mPoolingHandlerThread == null || mPaused) {
+            return;
+        }
+        mPaused = true;
+
+        // The touches are gone with the window. The change goes out as a stop right away.
+        mMapping.release();
+        wakeSender();
+        mMainHandler.removeCallbacks(mReportRunnable);
+        mMainHandler.postDelayed(mLingerRunnable, WARM_LINGER);
+    }
+
+    // Continues after pause() on the connection if it is still open, or reconnects.
+    // Starts from scratch if the connection was already closed. Call on the UI thread.
+    public void resume() {
+        if (mPoolingHandlerThread == null) {
+            restart();
+            return;
+        }
+        mMainHandler.removeCallbacks(mLingerRunnable);
+        if (!mPaused) {
+            return;
         }
+        mPaused = false;
+        mStartedAt = SystemClock.uptimeMillis();
+        mPoolingHandler.post(mResumeRunnable);
+        mMainHandler.postDelayed(mReportRunnable, LATENCY_REPORT_INTERVAL);
+    }
 
+    private void stopThread() {
         if (mPoolingHandlerThread != null) {
-            mPoolingHandlerThread.quit();
+            mPoolingHandlerThread.quitting = true;
+            mPoolingHandlerThread.sender.retire();
+            mPoolingHandler.removeCallbacks(mStartRunnable);
             mPoolingHandler.removeCallbacks(mPoolingRunnable);
+            mPoolingHandler.removeCallbacks(mWakeRunnable);
+            mPoolingHandler.removeCallbacks(mResumeRunnable);
+            mPoolingHandler.postAtFrontOfQueue(mStopRunnable);
+            mPoolingHandlerThread.quitSafely();
+            mPoolingHandlerThread = null;
+            mPoolingHandler = null;
+            mWakePending.set(false);
         }
     }
 
     public void touchEvent(MotionEvent event) {
-        int action = event.getAction();
-        if (action == MotionEvent.ACTION_UP) {
-            mLeftTouchPos.x = -1;
-            mLeftTouchPos.y = -1;
-            mRightTouchPos.x = -1;
-            mRightTouchPos.y = -1;
-        } else {
-
-            int count = event.getPointerCount();
-            boolean touched_left = false;
-            boolean touched_right = false;
-            for (int i = 0; i < count; i++) {
-                float x = event.getX(i);
-                float y = event.getY(i);
-
-                if (x < SCREEN_X_CENTER) {
-                    // Left side
-                    mLeftTouchPos.x = x;
-                    mLeftTouchPos.y = y;
-                    touched_left = true;
-                } else {
-                    // Right side
-                    mRightTouchPos.x = x;
-                    mRightTouchPos.y = y;
-                    touched_right = true;
-                }
+        FlightRecorder recorder = mRecorder;
+        if (recorder != null) {
+            int action_masked = event.getActionMasked();
+            int action_index = event.getActionIndex();
+            for (int i = 0; i < event.getPointerCount(); i++) {
+                recorder.recordTouch(action_masked, action_index, i, event.getPointerId(i), event.getX(i), event.getY(i));
             }
-
-            if (!touched_left) {
-                mLeftTouchPos.x = -1;
-                mLeftTouchPos.y = -1;
+            // The batched samples too, the filter sees every one of them
+            long event_time = event.getEventTime();
+            for (int h = 0; h < event.getHistorySize(); h++) {
+                long age = event_time - event.getHistoricalEventTime(h);
+                for (int i = 0; i < event.getPointerCount(); i++) {
+                    recorder.recordHistory(i, event.getPointerId(i), event.getHistoricalX(i, h),
+                            event.getHistoricalY(i, h), age);
+                }
             }
+        }
 
-            if (!touched_right) {
-                mRightTouchPos.x = -1;
-                mRightTouchPos.y = -1;
-            }
+        // Fingers keep their side by pointer ID. Every sample batched into the event feeds the
+        // filter, if one is set.
+        mMapping.update(mSamples.set(event));
+        mSamples.clear();
 
+        LatencyStats stats = mStats;
+        if (stats != null) {
+            stats.onEnqueued(System.nanoTime());
         }
+        wakeSender();
     }
 
-    private void onUpdate() throws IOException {
-        // Open socket if disconnected
-        if (mSocket == null || mSocket.isClosed()) {
-            mSocket = new Socket(mAddress, mPort);
-            Message msg = mMainHandler.obtainMessage(WHAT_CONNECTED);
-            mMainHandler.sendMessage(msg);
+    // Called on the polling thread. Replaces the pending tick.
+    private void scheduleTick(long delay) {
+        Handler handler = mPoolingHandler;
+
+        // The thread may already have been replaced by stop() or start()
+        if (handler != null && handler.getLooper() == Looper.myLooper()) {
+            handler.removeCallbacks(mPoolingRunnable);
+            handler.postDelayed(mPoolingRunnable, delay);
         }
+    }
 
-        int left_power = 0;
-        int right_power = 0;
+    private void wakeSender() {
+        Handler handler = mPoolingHandler;
+        if (handler != null && mWakePending.compareAndSet(false, true)) {
+            handler.post(mWakeRunnable);
+        }
+    }
 
-        if (mLeftTouchPos.x >= 0 && mLeftTouchPos.y >= 0) {
-            float dist_left = -(((mLeftTouchPos.y - SCREEN_Y_CENTER) / SCREEN_Y_CENTER) * 1024.f);
-            left_power = (int)dist_left;
+    // Called on the polling thread after a command was written
+    private void onFirstCommand(SenderThread thread, long now) {
+        if (thread.firstCommandFrom >= 0) {
+            thread.events.sendMessage(thread.events.obtainMessage(WHAT_FIRST_COMMAND, now - thread.firstCommandFrom));
+            thread.firstCommandFrom = -1;
         }
+    }
+
+    private static SenderThread senderThread() {
+        return (SenderThread)Thread.currentThread();
+    }
 
-        if (mRightTouchPos.x >= 0 && mRightTouchPos.y >= 0) {
-            float dist_right = -(((mRightTouchPos.y - SCREEN_Y_CENTER) / SCREEN_Y_CENTER) * 1024.f);
-            right_power = (int)dist_right;
+    // UI thread
+    private void dispatchEvent(Message msg) {
+        switch (msg.what) {
+            case WHAT_ERROR:
+                if (mListener != null) mListener.onError((Exception)msg.obj);
+                break;
+            case WHAT_CONNECTED:
+                if (mListener != null) mListener.onConnected();
+                break;
+            case WHAT_STATE:
+                if (mListener != null) mListener.onConnectionStateChanged(msg.arg1, msg.arg2);
+                break;
+            case WHAT_LINK:
+                if (mListener != null) mListener.onLinkQuality((RttEstimator)msg.obj);
+                break;
+            case WHAT_FIRST_COMMAND:
+                if (mListener != null) mListener.onFirstCommand((Long)msg.obj);
+                break;
         }
+    }
 
-        OutputStream out = mSocket.getOutputStream();
+    // Returns the delay until the next call or DispatchScheduler.NO_TICK
+    private long onUpdate() {
+        SenderThread thread = senderThread();
+        ControlSender sender = thread.sender;
+        long now = SystemClock.uptimeMillis();
+        try {
+            // Open connection if disconnected. Make sure the robot stops until the next touch.
+            boolean connected = sender.ensureConnected(mAddress, mPort);
+            if (thread.quitting) {
+                // Stopped or restarted while connecting. The stop runnable closes the connection.
+                return DispatchScheduler.NO_TICK;
+            }
+            if (connected) {
+                sender.sendStop(now);
+                long elapsed_ms = thread.supervisor.onConnected(now);
+                FlightRecorder recorder = mRecorder;
+                if (recorder != null) {
+                    recorder.recordConnect(sender.encoder() instanceof BinaryCommandEncoder, elapsed_ms);
+                }
+                Message msg = thread.events.obtainMessage(WHAT_CONNECTED);
+                thread.events.sendMessage(msg);
+                onFirstCommand(thread, now);
+            } else if (thread.stopPending) {
+                // Resumed on a connection kept open by pause(). If it died meanwhile the write
+                // fails and the connection is opened again.
+                sender.sendStop(now);
+                onFirstCommand(thread, now);
+            }
+            thread.stopPending = false;
 
-        String request = String.format("MV %d %d\n", left_power, right_power);
-        byte[] bytes = request.getBytes();
-        out.write(bytes);
-        out.flush();
+            // Take the touch before reading the state, so the command written reflects it
+            LatencyStats stats = mStats;
+            long touch_nanos = stats != null ? stats.takeTouch() : 0;
+
+            int left_power = mMapping.leftPower();
+            int right_power = mMapping.rightPower();
+
+            long delay = sender.tick(now, left_power, right_power);
+            if (touch_nanos != 0 && sender.sentOnLastTick()) {
+                stats.onWire(touch_nanos, System.nanoTime());
+            }
+            return delay;
+        } catch (IOException e) {
+            // Keep the loop alive and retry with backoff
+            sender.close();
+            long delay = thread.supervisor.onFailure(now);
+            FlightRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.recordDisconnect(thread.supervisor.consecutiveFailures());
+            }
+
+            // Inform the first failure only. Retries are visible through the connection state.
+            if (thread.supervisor.consecutiveFailures() == 1) {
+                Message errmsg = thread.events.obtainMessage(WHAT_ERROR, e);
+                thread.events.sendMessage(errmsg);
+            }
+            return delay;
+        }
     }
 }
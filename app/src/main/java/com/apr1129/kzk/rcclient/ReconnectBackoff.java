@@ -0,0 +1,45 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.Random;
+
+// Exponential backoff with jitter: the n-th delay is drawn from [d/2, d) where d = min(max, base * 2^n).
+// The jitter keeps clients which lost the link at the same moment from retrying in lockstep.
+public class ReconnectBackoff {
+
+    public static final long DEFAULT_BASE = 100; // ms
+    public static final long DEFAULT_MAX = 5000; // ms
+
+    private final long mBase;
+    private final long mMax;
+    private final Random mRandom;
+    private int mAttempt = 0;
+
+    public ReconnectBackoff() {
+        this(DEFAULT_BASE, DEFAULT_MAX, new Random());
+    }
+
+    public ReconnectBackoff(long base_ms, long max_ms, Random random) {
+        mBase = base_ms;
+        mMax = max_ms;
+        mRandom = random;
+    }
+
+    public long nextDelay() {
+        long delay = mMax;
+        if (mAttempt < 62 && mBase <= (mMax >> mAttempt)) {
+            delay = mBase << mAttempt;
+        }
+        mAttempt++;
+
+        long half = delay / 2;
+        return half + (long)(mRandom.nextDouble() * (delay - half));
+    }
+
+    public void reset() {
+        mAttempt = 0;
+    }
+
+    public int attempts() {
+        return mAttempt;
+    }
+}
@@ -0,0 +1,181 @@
+package com.apr1129.kzk.rcclient;
+
+// Round trip time, jitter and clock offset of the link to the robot from PING/PONG exchanges.
+//
+// Per exchange, NTP style, with t1/t4 the client's send/receive time and t2/t3 the robot's
+// receive/transmit time:
+//   rtt    = (t4 - t1) - (t3 - t2)
+//   offset = ((t2 - t1) + (t3 - t4)) / 2      (robot clock - client clock)
+//
+// RTT and jitter are smoothed like TCP's SRTT/RTTVAR (RFC 6298). The offset is taken from the
+// exchange with the lowest RTT among the last OFFSET_FILTER_SIZE, which is the one least
+// skewed by queuing. The client clock is System.nanoTime() in ms.
+//
+// Pings are recorded by the sender thread and pongs by the reader thread.
+public class RttEstimator {
+
+    public static final long DEFAULT_DEGRADED_RTT = 150; // ms
+    public static final long DEFAULT_DEGRADED_JITTER = 50; // ms
+    public static final int DEGRADED_LOSS_COUNT = 3; // unanswered pings in a row
+
+    private static final int MAX_OUTSTANDING = 64; // pings remembered
+    private static final int OFFSET_FILTER_SIZE = 8;
+    private static final long PING_TIMEOUT = 2000; // ms, after which a ping counts as lost
+
+    private final long mDegradedRttMicros;
+    private final long mDegradedJitterMicros;
+
+    private final int[] mSentSeq = new int[MAX_OUTSTANDING];
+    private final long[] mSentNanos = new long[MAX_OUTSTANDING];
+    private final boolean[] mAnswered = new boolean[MAX_OUTSTANDING];
+
+    private final long[] mFilterRtt = new long[OFFSET_FILTER_SIZE];
+    private final long[] mFilterOffset = new long[OFFSET_FILTER_SIZE];
+    private int mFilterCount = 0;
+    private int mFilterNext = 0;
+
+    private long mSamples = 0;
+    private long mSentCount = 0;
+    private long mLostCount = 0;
+    private int mConsecutiveLost = 0;
+    private long mSrttMicros = 0;
+    private long mRttVarMicros = 0;
+    private long mLastRttMicros = 0;
+    private long mOffsetMillis = 0;
+
+    public RttEstimator() {
+        this(DEFAULT_DEGRADED_RTT, DEFAULT_DEGRADED_JITTER);
+    }
+
+    public RttEstimator(long degraded_rtt_ms, long degraded_jitter_ms) {
+        mDegradedRttMicros = degraded_rtt_ms * 1000;
+        mDegradedJitterMicros = degraded_jitter_ms * 1000;
+        for (int i = 0; i < MAX_OUTSTANDING; i++) {
+            mSentSeq[i] = -1;
+        }
+    }
+
+    public synchronized void onPingSent(int seq, long now_nanos) {
+        int slot = seq % MAX_OUTSTANDING;
+        expire(slot);
+        mSentSeq[slot] = seq;
+        mSentNanos[slot] = now_nanos;
+        mAnswered[slot] = false;
+        mSentCount++;
+
+        // Pings overtaken by the timeout are lost
+        for (int i = 0; i < MAX_OUTSTANDING; i++) {
+            if (i != slot && mSentSeq[i] >= 0 && !mAnswered[i]
+                    && now_nanos - mSentNanos[i] > PING_TIMEOUT * 1000000L) {
+                expire(i);
+            }
+        }
+    }
+
+    // receive_ms/transmit_ms: robot clock, unsigned 32 bit. Returns false for an unknown or duplicate seq.
+    public synchronized boolean onPong(int seq, long receive_ms, long transmit_ms, long now_nanos) {
+        int slot = seq % MAX_OUTSTANDING;
+        if (mSentSeq[slot] != seq || mAnswered[slot]) {
+            return false;
+        }
+        mAnswered[slot] = true;
+        mConsecutiveLost = 0;
+
+        long t1_nanos = mSentNanos[slot];
+        long hold_ms = (transmit_ms - receive_ms) & 0xffffffffL;
+        long rtt = Math.max(0, (now_nanos - t1_nanos) / 1000 - hold_ms * 1000);
+
+        // Robot time is 32 bit. Compare it with the client clock modulo 2^32 and sign extend.
+        long t1 = t1_nanos / 1000000L;
+        long t4 = now_nanos / 1000000L;
+        long offset = ((int)(receive_ms - t1) + (long)(int)(transmit_ms - t4)) / 2;
+
+        mLastRttMicros = rtt;
+        if (mSamples == 0) {
+            mSrttMicros = rtt;
+            mRttVarMicros = rtt / 2;
+        } else {
+            mRttVarMicros += (Math.abs(mSrttMicros - rtt) - mRttVarMicros) / 4;
+            mSrttMicros += (rtt - mSrttMicros) / 8;
+        }
+        mSamples++;
+
+        mFilterRtt[mFilterNext] = rtt;
+        mFilterOffset[mFilterNext] = offset;
+        mFilterNext = (mFilterNext + 1) % OFFSET_FILTER_SIZE;
+        mFilterCount = Math.min(mFilterCount + 1, OFFSET_FILTER_SIZE);
+        int best = 0;
+        for (int i = 1; i < mFilterCount; i++) {
+            if (mFilterRtt[i] < mFilterRtt[best]) {
+                best = i;
+            }
+        }
+        mOffsetMillis = mFilterOffset[best];
+        return true;
+    }
+
+    // Number of answered pings. 0 if the robot does not answer pings at all.
+    public synchronized long samples() {
+        return mSamples;
+    }
+
+    public synchronized long smoothedRttMicros() {
+        return mSrttMicros;
+    }
+
+    public synchronized long lastRttMicros() {
+        return mLastRttMicros;
+    }
+
+    // Mean deviation of the RTT
+    public synchronized long jitterMicros() {
+        return mRttVarMicros;
+    }
+
+    // Robot clock minus client clock (System.nanoTime() in ms), modulo 2^32
+    public synchronized long clockOffsetMillis() {
+        return mOffsetMillis;
+    }
+
+    public synchronized long lostCount() {
+        return mLostCount;
+    }
+
+    public synchronized long sentCount() {
+        return mSentCount;
+    }
+
+    // Only once the robot has answered at all, so a robot without PING support is not flagged
+    public synchronized boolean isDegraded() {
+        if (mSamples == 0) {
+            return false;
+        }
+        return mSrttMicros > mDegradedRttMicros
+                || mRttVarMicros > mDegradedJitterMicros
+                || mConsecutiveLost >= DEGRADED_LOSS_COUNT;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < MAX_OUTSTANDING; i++) {
+            mSentSeq[i] = -1;
+        }
+        mFilterCount = 0;
+        mFilterNext = 0;
+        mSamples = 0;
+        mSentCount = 0;
+        mLostCount = 0;
+        mConsecutiveLost = 0;
+        mSrttMicros = 0;
+        mRttVarMicros = 0;
+        mLastRttMicros = 0;
+        mOffsetMillis = 0;
+    }
+
+    private void expire(int slot) {
+        if (mSentSeq[slot] >= 0 && !mAnswered[slot]) {
+            mLostCount++;
+            mConsecutiveLost++;
+        }
+        mSentSeq[slot] = -1;
+    }
+}
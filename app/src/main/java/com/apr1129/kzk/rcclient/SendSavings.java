@@ -0,0 +1,75 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.Locale;
+
+// Counts the move commands written and what a fixed rate sender, writing one every baseline
+// interval, would have written over the same time. The difference is what skipping unchanged
+// commands saved. Bytes saved assume the average command size.
+//
+// Updated by the sender thread, read from any thread. Times are in ms on the sender's clock.
+public class SendSavings {
+
+    private final long mBaselineInterval;
+
+    private boolean mStarted = false;
+    private long mStart = 0;
+    private long mNow = 0;
+    private long mPackets = 0;
+    private long mBytes = 0;
+
+    public SendSavings(long baseline_interval_ms) {
+        mBaselineInterval = baseline_interval_ms;
+    }
+
+    // Called on every tick, whether or not something was written
+    public synchronized void onTick(long now) {
+        if (!mStarted) {
+            mStarted = true;
+            mStart = now;
+        }
+        mNow = Math.max(mNow, now);
+    }
+
+    public synchronized void onSent(long now, int bytes) {
+        onTick(now);
+        mPackets++;
+        mBytes += bytes;
+    }
+
+    public synchronized long packets() {
+        return mPackets;
+    }
+
+    public synchronized long bytes() {
+        return mBytes;
+    }
+
+    // Commands a fixed rate sender would have written since the first tick
+    public synchronized long baselinePackets() {
+        return mStarted ? (mNow - mStart) / mBaselineInterval + 1 : 0;
+    }
+
+    // Negative if changes were sent faster than the baseline rate
+    public synchronized long savedPackets() {
+        return baselinePackets() - mPackets;
+    }
+
+    public synchronized long savedBytes() {
+        return mPackets == 0 ? 0 : savedPackets() * mBytes / mPackets;
+    }
+
+    public synchronized void reset() {
+        mStarted = false;
+        mStart = 0;
+        mNow = 0;
+        mPackets = 0;
+        mBytes = 0;
+    }
+
+    public synchronized String summary() {
+        long baseline = baselinePackets();
+        return String.format(Locale.US, "sent %d packets %d B, saved %d packets %d B (%d%%) vs one per %d ms",
+                mPackets, mBytes, savedPackets(), savedBytes(),
+                baseline == 0 ? 0 : savedPackets() * 100 / baseline, mBaselineInterval);
+    }
+}
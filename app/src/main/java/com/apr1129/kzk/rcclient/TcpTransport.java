@@ -0,0 +1,204 @@
+package com.apr1129.kzk.rcclient;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+public class TcpTransport implements Transport {
+
+    private static final String TAG = "TcpTransport";
+    public static final int DEFAULT_CONNECT_TIMEOUT = 3000; // ms
+    public static final int DEFAULT_WRITE_TIMEOUT = 500; // ms
+    private static final int BUFFER_SIZE = 1024;
+
+    private final int mConnectTimeout;
+    private final int mWriteTimeout;
+
+    // Reused for every write/read. Writes and reads may run on two different threads,
+    // so each direction has its own buffer and selector.
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // The robot's address, resolved by the first connect and reused by reconnects, since a DNS
+    // lookup can take seconds on a cold radio. A failed connect resolves again, in case it moved.
+    // Sender thread only.
+    private InetSocketAddress mResolved;
+
+    private volatile SocketChannel mChannel;
+    private volatile Selector mWriteSelector;
+    private volatile Selector mReadSelector;
+
+    public TcpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_WRITE_TIMEOUT);
+    }
+
+    public TcpTransport(int connect_timeout_ms, int write_timeout_ms) {
+        mConnectTimeout = connect_timeout_ms;
+        mWriteTimeout = write_timeout_ms;
+    }
+
+    @Override
+    public void connect(String address, int port) throws IOException {
+        close();
+
+        InetSocketAddress remote = mResolved;
+        if (remote == null || remote.getPort() != port || !remote.getHostString().equals(address)) {
+            mResolved = null;
+            remote = new InetSocketAddress(address, port);
+            if (remote.isUnresolved()) {
+                throw new UnknownHostException(address);
+            }
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            // Commands are a few bytes long. Don't let Nagle hold them back.
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(remote, mConnectTimeout);
+            channel.configureBlocking(false);
+
+            Selector write_selector = Selector.open();
+            Selector read_selector = Selector.open();
+            channel.register(write_selector, SelectionKey.OP_WRITE);
+            channel.register(read_selector, SelectionKey.OP_READ);
+            mWriteSelector = write_selector;
+            mReadSelector = read_selector;
+            mChannel = channel;
+            mResolved = remote;
+        } catch (IOException e) {
+            mResolved = null;
+            channel.close();
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        SocketChannel channel = mChannel;
+        return channel != null && channel.isOpen() && channel.isConnected();
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        SocketChannel channel = openChannel();
+        long deadline = System.nanoTime() + mWriteTimeout * 1000000L;
+
+        while (len > 0) {
+            int n = Math.min(len, mWriteBuffer.capacity());
+            mWriteBuffer.clear();
+            mWriteBuffer.put(buf, off, n);
+            mWriteBuffer.flip();
+
+            while (mWriteBuffer.hasRemaining()) {
+                if (channel.write(mWriteBuffer) == 0) {
+                    // Send buffer is full. Wait for room, but not longer than the write timeout.
+                    awaitReady(mWriteSelector, deadline);
+                }
+            }
+
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len, int timeout_ms) throws IOException {
+        SocketChannel channel = openChannel();
+        long deadline = System.nanoTime() + timeout_ms * 1000000L;
+
+        mReadBuffer.clear();
+        mReadBuffer.limit(Math.min(len, mReadBuffer.capacity()));
+        int n = channel.read(mReadBuffer);
+        if (n == 0 && timeout_ms > 0) {
+            try {
+                awaitReady(mReadSelector, deadline);
+            } catch (SocketTimeoutException e) {
+                return 0;
+            }
+            n = channel.read(mReadBuffer);
+        }
+
+        if (n > 0) {
+            mReadBuffer.flip();
+            mReadBuffer.get(buf, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        SocketChannel channel = mChannel;
+        Selector write_selector = mWriteSelector;
+        Selector read_selector = mReadSelector;
+        mChannel = null;
+        mWriteSelector = null;
+        mReadSelector = null;
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception in SocketChannel#close", e);
+            }
+        }
+
+        closeSelector(write_selector);
+        closeSelector(read_selector);
+    }
+
+    private static void closeSelector(Selector selector) {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception in Selector#close", e);
+            }
+        }
+    }
+
+    // Address of the last successful connect, null if it has to be resolved again
+    InetSocketAddress resolvedAddress() {
+        return mResolved;
+    }
+
+    private SocketChannel openChannel() throws IOException {
+        SocketChannel channel = mChannel;
+        if (channel == null) {
+            throw new IOException("Not connected");
+        }
+        return channel;
+    }
+
+    // The key of the channel in selector is registered for a single operation
+    private void awaitReady(Selector selector, long deadline) throws IOException {
+        if (selector == null) {
+            throw new IOException("Not connected");
+        }
+
+        try {
+            while (true) {
+                long remaining = (deadline - System.nanoTime()) / 1000000L;
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException(selector == mWriteSelector ? "Write timed out" : "Read timed out");
+                }
+                if (selector.select(remaining) > 0) {
+                    selector.selectedKeys().clear();
+                    return;
+                }
+            }
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            // close() was called from another thread
+            throw new IOException("Transport closed", e);
+        }
+    }
+}
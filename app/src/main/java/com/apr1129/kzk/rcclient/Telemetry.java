@@ -0,0 +1,141 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Latest speed, battery and range readings the robot sends back on the control connection.
+// The connection's reader (LinkProbe) parses them in place from its read buffer, and each
+// reading is published packed into a single long, so the UI can poll snapshot() every frame
+// without locking, and neither side allocates.
+//
+// Readings are BinaryCommandEncoder.OP_TELEMETRY frames on binary connections and
+// "TM <seq> <left mm/s> <right mm/s> <battery mV> <range mm>\n" lines on text connections.
+public class Telemetry {
+
+    public static final int NO_RANGE = 0xffff; // nothing in range
+
+    // No reading yet
+    public static final long EMPTY = pack(0, 0, 0, NO_RANGE);
+
+    private static final int TEXT_FIELDS = 5;
+
+    private final AtomicLong mSnapshot = new AtomicLong(EMPTY);
+
+    // Written by the reader thread only
+    private volatile long mReceivedNanos = 0;
+    private volatile long mCount = 0;
+    private volatile long mLost = 0;
+    private volatile long mMalformed = 0;
+    private int mLastSeq = -1;
+    private final int[] mFields = new int[TEXT_FIELDS];
+
+    public static long pack(int left_speed, int right_speed, int battery_mv, int range_mm) {
+        return ((long)(left_speed & 0xffff) << 48) | ((long)(right_speed & 0xffff) << 32)
+                | ((long)(battery_mv & 0xffff) << 16) | (range_mm & 0xffff);
+    }
+
+    public static int leftSpeedOf(long snapshot) {
+        return (short)(snapshot >>> 48);
+    }
+
+    public static int rightSpeedOf(long snapshot) {
+        return (short)(snapshot >>> 32);
+    }
+
+    public static int batteryOf(long snapshot) {
+        return (int)(snapshot >>> 16) & 0xffff;
+    }
+
+    public static int rangeOf(long snapshot) {
+        return (int)snapshot & 0xffff;
+    }
+
+    // The latest reading, EMPTY before the first one. Any thread.
+    public long snapshot() {
+        return mSnapshot.get();
+    }
+
+    // Readings received
+    public long count() {
+        return mCount;
+    }
+
+    // Readings missing between the sequence numbers received
+    public long lostCount() {
+        return mLost;
+    }
+
+    // Lines starting with "TM " which could not be parsed
+    public long malformedCount() {
+        return mMalformed;
+    }
+
+    // System.nanoTime() of the latest reading, 0 before the first one
+    public long receivedNanos() {
+        return mReceivedNanos;
+    }
+
+    // A new connection was opened. The values stay until the next reading.
+    public void reset() {
+        mLastSeq = -1;
+    }
+
+    // Reader thread, with a whole OP_TELEMETRY frame
+    void onFrame(byte[] frame, int off, long now_nanos) {
+        publish(BinaryCommandEncoder.sequenceOf(frame, off),
+                pack(BinaryCommandEncoder.leftPowerOf(frame, off), BinaryCommandEncoder.rightPowerOf(frame, off),
+                        BinaryCommandEncoder.batteryOf(frame, off), BinaryCommandEncoder.rangeOf(frame, off)),
+                now_nanos);
+    }
+
+    // Reader thread, with the fields of a "TM " line: line[off] up to line[end]
+    void onLine(byte[] line, int off, int end, long now_nanos) {
+        int[] fields = mFields;
+        int count = 0;
+        int value = 0;
+        int digits = 0;
+        boolean negative = false;
+        for (int i = off; i <= end; i++) {
+            byte b = i < end ? line[i] : (byte)' ';
+            if (b >= '0' && b <= '9' && digits < 6) {
+                value = value * 10 + (b - '0');
+                digits++;
+            } else if (b == '-' && digits == 0 && !negative) {
+                negative = true;
+            } else if (b == ' ' && (digits > 0 || !negative)) {
+                if (digits == 0) {
+                    continue;
+                }
+                if (count == fields.length) {
+                    mMalformed++;
+                    return;
+                }
+                fields[count++] = negative ? -value : value;
+                value = 0;
+                digits = 0;
+                negative = false;
+            } else {
+                mMalformed++;
+                return;
+            }
+        }
+        if (count != TEXT_FIELDS) {
+            mMalformed++;
+            return;
+        }
+        publish(fields[0] & 0xffff, pack(fields[1], fields[2], fields[3], fields[4]), now_nanos);
+    }
+
+    private void publish(int seq, long snapshot, long now_nanos) {
+        if (mLastSeq >= 0) {
+            // A datagram overtaken by a newer one
+            if (!BinaryCommandEncoder.isNewer(seq, mLastSeq)) {
+                return;
+            }
+            mLost += (seq - mLastSeq - 1) & 0xffff;
+        }
+        mLastSeq = seq;
+        mSnapshot.set(snapshot);
+        mReceivedNanos = now_nanos;
+        mCount++;
+    }
+}
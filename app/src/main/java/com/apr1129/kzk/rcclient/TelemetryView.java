@@ -0,0 +1,123 @@
+package com.apr1129.kzk.rcclient;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.TextView;
+
+// Shows the robot's latest Telemetry on top of the camera view. Polls the snapshot once per
+// display frame and formats it into a reused char array only when it changed, so showing
+// readings at any rate does not allocate. Stays hidden until the first reading arrives.
+public class TelemetryView extends TextView {
+
+    private static final long STALE_AFTER = 1000; // ms without a reading
+
+    private Telemetry mTelemetry;
+    private long mShownSnapshot = Telemetry.EMPTY;
+    private boolean mShownStale = false;
+    private final char[] mText = new char[64];
+    private int mLength = 0;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+            postOnAnimation(this);
+        }
+    };
+
+    public TelemetryView(Context context) {
+        this(context, null);
+    }
+
+    public TelemetryView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public void setTelemetry(Telemetry telemetry) {
+        mTelemetry = telemetry;
+        mShownSnapshot = Telemetry.EMPTY;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        removeCallbacks(mFrameRunnable);
+        postOnAnimation(mFrameRunnable);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mFrameRunnable);
+        super.onDetachedFromWindow();
+    }
+
+    private void poll() {
+        Telemetry telemetry = mTelemetry;
+        if (telemetry == null || telemetry.count() == 0) {
+            return;
+        }
+        long snapshot = telemetry.snapshot();
+        long age_ms = (System.nanoTime() - telemetry.receivedNanos()) / 1000000L;
+        boolean stale = age_ms > STALE_AFTER;
+        if (snapshot == mShownSnapshot && stale == mShownStale && getVisibility() == View.VISIBLE) {
+            return;
+        }
+        mShownSnapshot = snapshot;
+        mShownStale = stale;
+
+        // "11.84 V  L 120 R -35 mm/s  540 mm"
+        mLength = 0;
+        int battery = Telemetry.batteryOf(snapshot);
+        appendInt(battery / 1000);
+        append('.');
+        append((char)('0' + battery / 100 % 10));
+        append((char)('0' + battery / 10 % 10));
+        append(" V  L ");
+        appendInt(Telemetry.leftSpeedOf(snapshot));
+        append(" R ");
+        appendInt(Telemetry.rightSpeedOf(snapshot));
+        append(" mm/s  ");
+        int range = Telemetry.rangeOf(snapshot);
+        if (range == Telemetry.NO_RANGE) {
+            append("-");
+        } else {
+            appendInt(range);
+        }
+        append(" mm");
+        if (stale) {
+            append(" (stale)");
+        }
+        setText(mText, 0, mLength);
+        setVisibility(View.VISIBLE);
+    }
+
+    private void append(char c) {
+        mText[mLength++] = c;
+    }
+
+    private void append(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            mText[mLength++] = s.charAt(i);
+        }
+    }
+
+    private void appendInt(int value) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int start = mLength;
+        do {
+            mText[mLength++] = (char)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        // The digits went in backwards
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            char c = mText[i];
+            mText[i] = mText[j];
+            mText[j] = c;
+        }
+    }
+}
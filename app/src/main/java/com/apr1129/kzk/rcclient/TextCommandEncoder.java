@@ -0,0 +1,67 @@
+package com.apr1129.kzk.rcclient;
+
+public class TextCommandEncoder implements CommandEncoder {
+
+    // "MV " + "-2147483648" + " " + "-2147483648" + "\n"
+    public static final int MAX_COMMAND_LENGTH = 3 + 11 + 1 + 11 + 1;
+
+    private final byte[] mBuffer = new byte[MAX_COMMAND_LENGTH];
+
+    @Override
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    // Writes "MV <left> <right>\n" into buffer() and returns the number of bytes written
+    @Override
+    public int encodeMove(int left_power, int right_power) {
+        int pos = 0;
+        mBuffer[pos++] = 'M';
+        mBuffer[pos++] = 'V';
+        mBuffer[pos++] = ' ';
+        pos = putInt(mBuffer, pos, left_power);
+        mBuffer[pos++] = ' ';
+        pos = putInt(mBuffer, pos, right_power);
+        mBuffer[pos++] = '\n';
+        return pos;
+    }
+
+    // Writes "PING <seq>\n" into buffer() and returns the number of bytes written.
+    // The answer is "PONG <seq> <receive ms> <transmit ms>\n" in the robot's clock.
+    @Override
+    public int encodePing(int seq) {
+        int pos = 0;
+        mBuffer[pos++] = 'P';
+        mBuffer[pos++] = 'I';
+        mBuffer[pos++] = 'N';
+        mBuffer[pos++] = 'G';
+        mBuffer[pos++] = ' ';
+        pos = putInt(mBuffer, pos, seq);
+        mBuffer[pos++] = '\n';
+        return pos;
+    }
+
+    static int putInt(byte[] buf, int pos, int value) {
+        // Work with a negative value so that Integer.MIN_VALUE needs no special case
+        int v = value;
+        if (v < 0) {
+            buf[pos++] = '-';
+        } else {
+            v = -v;
+        }
+
+        // Count digits
+        int digits = 1;
+        for (int t = v; t <= -10; t /= 10) {
+            digits++;
+        }
+
+        // Fill digits from the least significant one
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (byte)('0' - (v % 10));
+            v /= 10;
+        }
+        return end;
+    }
+}
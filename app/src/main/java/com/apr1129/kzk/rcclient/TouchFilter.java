@@ -0,0 +1,104 @@
+package com.apr1129.kzk.rcclient;
+
+// 1-euro filter (Casiez et al., CHI 2012) over one touch coordinate, with optional linear
+// extrapolation to make up for the delay of the input pipeline.
+//
+// The cutoff frequency rises with the filtered speed: a resting thumb is smoothed hard, a moving
+// one follows with little lag. Unlike the reference implementation, the speed is taken from
+// consecutive raw samples rather than from the lagging filtered value, so it is the real speed
+// and the prediction can use it. Being low passed, it adds no raw jitter to the prediction.
+// Allocation free. Not thread safe, feed it on the input thread.
+public class TouchFilter {
+
+    public static final double DEFAULT_MIN_CUTOFF = 1.0; // Hz
+    public static final double DEFAULT_BETA = 0.007; // per px/s
+    public static final double DEFAULT_DERIVATIVE_CUTOFF = 1.0; // Hz
+    public static final long DEFAULT_PREDICTION = 8; // ms
+
+    // Samples with the same timestamp, e.g. ms timestamps above 1 kHz, count as this far apart
+    private static final double MIN_DT = 0.001; // s
+
+    private final double mMinCutoff;
+    private final double mBeta;
+    private final double mDerivativeCutoff;
+    private final double mPrediction; // s
+
+    private boolean mHasValue = false;
+    private long mLastNanos;
+    private float mLastSample;
+    private double mValue;
+    private double mSpeed; // per s
+
+    public TouchFilter() {
+        this(DEFAULT_MIN_CUTOFF, DEFAULT_BETA, DEFAULT_PREDICTION);
+    }
+
+    // prediction_ms: how far ahead value() extrapolates, 0 for none
+    public TouchFilter(double min_cutoff_hz, double beta, long prediction_ms) {
+        this(min_cutoff_hz, beta, DEFAULT_DERIVATIVE_CUTOFF, prediction_ms);
+    }
+
+    public TouchFilter(double min_cutoff_hz, double beta, double derivative_cutoff_hz, long prediction_ms) {
+        mMinCutoff = min_cutoff_hz;
+        mBeta = beta;
+        mDerivativeCutoff = derivative_cutoff_hz;
+        mPrediction = prediction_ms / 1000.0;
+    }
+
+    // The pointer went up. The next sample starts over without smoothing.
+    public void reset() {
+        mHasValue = false;
+    }
+
+    public void add(long time_nanos, float value) {
+        if (!mHasValue) {
+            mValue = value;
+            mSpeed = 0;
+            mLastNanos = time_nanos;
+            mLastSample = value;
+            mHasValue = true;
+            return;
+        }
+
+        double dt = Math.max(MIN_DT, (time_nanos - mLastNanos) / 1e9);
+        mLastNanos = time_nanos;
+
+        double speed = (value - mLastSample) / dt;
+        mLastSample = value;
+        mSpeed += alpha(mDerivativeCutoff, dt) * (speed - mSpeed);
+
+        double cutoff = mMinCutoff + mBeta * Math.abs(mSpeed);
+        mValue += alpha(cutoff, dt) * (value - mValue);
+    }
+
+    // Feeds the y samples of one pointer which Android batched into the event, then the current one
+    public void add(TouchMapping.Samples samples, int pointer) {
+        int history = samples.historySize();
+        for (int h = 0; h <= history; h++) {
+            add(samples.timeNanos(h), samples.y(pointer, h));
+        }
+    }
+
+    public boolean hasValue() {
+        return mHasValue;
+    }
+
+    // Filtered and, if configured, extrapolated
+    public float value() {
+        return (float)(mValue + mSpeed * mPrediction);
+    }
+
+    public float filteredValue() {
+        return (float)mValue;
+    }
+
+    // Filtered speed, per s
+    public double speed() {
+        return mSpeed;
+    }
+
+    private static double alpha(double cutoff_hz, double dt) {
+        double tau = 1 / (2 * Math.PI * cutoff_hz);
+        return 1 / (1 + tau / dt);
+    }
+}
@@ -0,0 +1,116 @@
+package com.apr1129.kzk.rcclient;
+
+// Maps the pointers of a touch event to the power of each side: a finger landing on the left half
+// of the screen drives the left wheels, one landing on the right half the right ones, by the
+// distance from the vertical center. See PointerTracker for how fingers keep their side, and
+// PowerMapping for the signed (RcClient2) and absolute (RcClient) power.
+//
+// update() and release() are called on the input thread, leftPower() and rightPower() on the
+// sender thread. Pure Java, so a recorded or synthetic session can be run through it.
+public class TouchMapping {
+
+    // The samples of one touch event. Android batches the samples taken since the last event
+    // into it. h runs from 0, the oldest, to historySize(), the current position.
+    public interface Samples {
+        // Masked MotionEvent action, and the index of the pointer it is about for (POINTER_)DOWN/UP
+        int action();
+        int actionIndex();
+        int pointerCount();
+        int pointerId(int pointer);
+        int historySize();
+        float x(int pointer, int h);
+        float y(int pointer, int h);
+        long timeNanos(int h);
+    }
+
+    private final float mYCenter;
+    private final float mScreenHeight;
+    private final boolean mAbsolute;
+    private final TouchState mLeftTouch = new TouchState();
+    private final TouchState mRightTouch = new TouchState();
+    private final PointerTracker mTracker;
+
+    // Input thread only. null while filtering is off.
+    private TouchFilter mLeftFilter;
+    private TouchFilter mRightFilter;
+
+    public TouchMapping(float screen_width, float screen_height) {
+        this(screen_width, screen_height, false);
+    }
+
+    public TouchMapping(float screen_width, float screen_height, boolean absolute) {
+        mYCenter = screen_height / 2;
+        mScreenHeight = screen_height;
+        mAbsolute = absolute;
+        mTracker = new PointerTracker(screen_width);
+    }
+
+    // Smooth each side with a TouchFilter fed with every batched sample. Input thread.
+    public void setFilter(double min_cutoff_hz, double beta, long prediction_ms) {
+        mLeftFilter = new TouchFilter(min_cutoff_hz, beta, prediction_ms);
+        mRightFilter = new TouchFilter(min_cutoff_hz, beta, prediction_ms);
+    }
+
+    // Use the current position only. Input thread.
+    public void clearFilter() {
+        mLeftFilter = null;
+        mRightFilter = null;
+    }
+
+    // Forget all pointers, e.g. when the view lost the touch stream
+    public void release() {
+        mTracker.clear();
+        mLeftTouch.clear();
+        mRightTouch.clear();
+        if (mLeftFilter != null) {
+            mLeftFilter.reset();
+            mRightFilter.reset();
+        }
+    }
+
+    // Every event, including up and cancel. Each side is published once, so the sender never
+    // sees half an event.
+    public void update(Samples samples) {
+        mTracker.onEvent(samples);
+        publish(mLeftTouch, mLeftFilter, samples, mTracker.indexOf(samples, PointerTracker.CHANNEL_LEFT));
+        publish(mRightTouch, mRightFilter, samples, mTracker.indexOf(samples, PointerTracker.CHANNEL_RIGHT));
+    }
+
+    private void publish(TouchState touch, TouchFilter filter, Samples samples, int pointer) {
+        if (pointer < 0) {
+            touch.clear();
+            if (filter != null) {
+                filter.reset();
+            }
+            return;
+        }
+
+        int current = samples.historySize();
+        float y = samples.y(pointer, current);
+        if (filter != null) {
+            // The prediction may overshoot the screen. Keep it on, so it still counts as touched.
+            filter.add(samples, pointer);
+            y = Math.max(0, Math.min(mScreenHeight, filter.value()));
+        }
+        touch.set(samples.x(pointer, current), y);
+    }
+
+    public int leftPower() {
+        // Read the side once so that x and y come from the same event
+        return power(mLeftTouch.get());
+    }
+
+    public int rightPower() {
+        return power(mRightTouch.get());
+    }
+
+    private int power(long touch) {
+        if (!TouchState.isTouched(touch)) {
+            return 0;
+        }
+        if (mAbsolute) {
+            return PowerMapping.absolutePower(TouchState.yOf(touch), (int)mYCenter);
+        }
+        return PowerMapping.signedPower(TouchState.yOf(touch), mYCenter);
+    }
+}
@@ -0,0 +1,40 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Touch position of one control side. x and y are packed into one long,
+// so a reader on another thread always sees a pair which was written together.
+public class TouchState {
+
+    public static final long NONE = pack(-1, -1);
+
+    private final AtomicLong mState = new AtomicLong(NONE);
+
+    public void set(float x, float y) {
+        mState.set(pack(x, y));
+    }
+
+    public void clear() {
+        mState.set(NONE);
+    }
+
+    public long get() {
+        return mState.get();
+    }
+
+    static long pack(float x, float y) {
+        return ((long)Float.floatToRawIntBits(x) << 32) | (Float.floatToRawIntBits(y) & 0xffffffffL);
+    }
+
+    public static float xOf(long state) {
+        return Float.intBitsToFloat((int)(state >>> 32));
+    }
+
+    public static float yOf(long state) {
+        return Float.intBitsToFloat((int)state);
+    }
+
+    public static boolean isTouched(long state) {
+        return xOf(state) >= 0 && yOf(state) >= 0;
+    }
+}
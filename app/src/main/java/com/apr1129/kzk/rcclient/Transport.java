@@ -0,0 +1,20 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+
+public interface Transport {
+
+    // Opens the connection. Blocks at most for the connect timeout of the implementation.
+    void connect(String address, int port) throws IOException;
+
+    boolean isConnected();
+
+    // Writes the whole range or throws. Blocks at most for the write timeout of the implementation.
+    void write(byte[] buf, int off, int len) throws IOException;
+
+    // Reads available bytes, waiting up to timeout_ms. Returns 0 on timeout and -1 at end of stream.
+    int read(byte[] buf, int off, int len, int timeout_ms) throws IOException;
+
+    // Safe to call from any thread
+    void close();
+}
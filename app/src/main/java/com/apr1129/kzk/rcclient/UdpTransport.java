@@ -0,0 +1,147 @@
+package com.apr1129.kzk.rcclient;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// One datagram per write(). Nothing is retransmitted, so a lost command is simply
+// superseded by the next one instead of delaying it.
+public class UdpTransport implements Transport {
+
+    private static final String TAG = "UdpTransport";
+    private static final int BUFFER_SIZE = 1024;
+
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private volatile DatagramChannel mChannel;
+    private volatile Selector mSelector;
+    private volatile long mDroppedWrites = 0; // written by the sender thread only
+
+    @Override
+    public void connect(String address, int port) throws IOException {
+        close();
+
+        InetSocketAddress remote = new InetSocketAddress(address, port);
+        if (remote.isUnresolved()) {
+            throw new UnknownHostException(address);
+        }
+
+        DatagramChannel channel = DatagramChannel.open();
+        Selector selector = null;
+        boolean connected = false;
+        try {
+            channel.connect(remote);
+            channel.configureBlocking(false);
+
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            mSelector = selector;
+            mChannel = channel;
+            connected = true;
+        } finally {
+            // Whatever failed, runtime exceptions included
+            if (!connected) {
+                channel.close();
+                if (selector != null) {
+                    selector.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        DatagramChannel channel = mChannel;
+        return channel != null && channel.isOpen() && channel.isConnected();
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        DatagramChannel channel = openChannel();
+        if (len > mWriteBuffer.capacity()) {
+            throw new IOException("Datagram too large: " + len);
+        }
+
+        mWriteBuffer.clear();
+        mWriteBuffer.put(buf, off, len);
+        mWriteBuffer.flip();
+        if (channel.write(mWriteBuffer) == 0) {
+            // Send buffer is full. Don't wait, the next command replaces this one.
+            mDroppedWrites++;
+        }
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len, int timeout_ms) throws IOException {
+        DatagramChannel channel = openChannel();
+
+        mReadBuffer.clear();
+        int n = channel.read(mReadBuffer);
+        Selector selector = mSelector;
+        if (n == 0 && timeout_ms > 0 && selector != null) {
+            try {
+                if (selector.select(timeout_ms) == 0) {
+                    return 0;
+                }
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException | CancelledKeyException e) {
+                throw new IOException("Transport closed", e);
+            }
+            n = channel.read(mReadBuffer);
+        }
+
+        // Excess bytes of a datagram longer than len are discarded
+        n = Math.min(n, len);
+        if (n > 0) {
+            mReadBuffer.flip();
+            mReadBuffer.get(buf, off, n);
+        }
+        return n;
+    }
+
+    // Number of datagrams discarded because the send buffer was full
+    public long droppedWrites() {
+        return mDroppedWrites;
+    }
+
+    @Override
+    public void close() {
+        DatagramChannel channel = mChannel;
+        Selector selector = mSelector;
+        mChannel = null;
+        mSelector = null;
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception in DatagramChannel#close", e);
+            }
+        }
+
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception in Selector#close", e);
+            }
+        }
+    }
+
+    private DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = mChannel;
+        if (channel == null) {
+            throw new IOException("Not connected");
+        }
+        return channel;
+    }
+}
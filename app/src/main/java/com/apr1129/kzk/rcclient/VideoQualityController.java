@@ -0,0 +1,291 @@
+package com.apr1129.kzk.rcclient;
+
+import java.util.Locale;
+
+// Picks the camera stream variant the link can carry. Variants are ordered from the best to
+// the cheapest, and their URLs are built from one template with {width}, {height} and {fps}.
+//
+// A link which cannot carry a variant delivers frames further apart than the variant's frame
+// interval, while its buffers fill up and every frame arrives late. A phone which cannot
+// decode it falls behind in decoding. So the controller watches both, as moving averages:
+// - Step down once the frame interval stayed above DEGRADE_RATIO times the nominal one, or
+//   decoding above the decode budget, for the degrade hold time. A link which stops delivering
+//   frames has no intervals to average: checkStall() counts STALL_INTERVALS nominal intervals
+//   without a frame as bad too.
+// - Step up once both stayed below RECOVER_RATIO and half the budget for the recover hold
+//   time. If the link cannot carry the better variant after all and the controller steps down
+//   again within PROBE_WINDOW, the recover hold time doubles, up to MAX_RECOVER_HOLD.
+// Samples of the first SETTLE_TIME after a switch are ignored while the new stream starts.
+//
+// Frames are reported by the receive thread and decodes by the decode thread. checkStall() is
+// called periodically from any thread. Times are System.nanoTime().
+public class VideoQualityController {
+
+    public static final long DEFAULT_DEGRADE_HOLD = 1000; // ms
+    public static final long DEFAULT_RECOVER_HOLD = 5000; // ms
+    public static final long DEFAULT_DECODE_BUDGET = 40; // ms
+    public static final long MAX_RECOVER_HOLD = 60000; // ms
+
+    private static final double DEGRADE_RATIO = 2.0;
+    private static final double RECOVER_RATIO = 1.3;
+    private static final long PROBE_WINDOW = 10000; // ms after stepping up
+    private static final long SETTLE_TIME = 500; // ms
+    private static final int STALL_INTERVALS = 5;
+    private static final long MS = 1000000L; // ns
+
+    public interface Listener {
+        // Called on the receive or decode thread. The stream has to be reopened at url.
+        void onVariantChanged(Variant variant, String url);
+    }
+
+    public static final class Variant {
+        public final int width;
+        public final int height;
+        public final int fps;
+
+        public Variant(int width, int height, int fps) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+
+        public String url(String template) {
+            return template.replace("{width}", String.valueOf(width))
+                    .replace("{height}", String.valueOf(height))
+                    .replace("{fps}", String.valueOf(fps));
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + fps;
+        }
+    }
+
+    // True if template has placeholders to fill in, so there are variants to choose from
+    public static boolean isTemplate(String url) {
+        return url.contains("{width}") || url.contains("{height}") || url.contains("{fps}");
+    }
+
+    // Full size, half size, half size at half the rate, and quarter size at a third of it
+    public static Variant[] ladder(int width, int height, int fps) {
+        return new Variant[]{
+                new Variant(width, height, fps),
+                new Variant(width / 2, height / 2, fps),
+                new Variant(width / 2, height / 2, Math.max(1, fps / 2)),
+                new Variant(width / 4, height / 4, Math.max(1, fps / 3)),
+        };
+    }
+
+    private final String mTemplate;
+    private final Variant[] mVariants;
+    private final long mDegradeHoldNanos;
+    private final long mInitialRecoverHoldNanos;
+    private final long mDecodeBudgetNanos;
+    private Listener mListener;
+
+    private int mCurrent = 0;
+    private long mRecoverHoldNanos;
+    private boolean mSettling = false;
+    private long mSwitchedNanos = 0;
+    private boolean mSteppedUp = false;
+    private long mSwitches = 0;
+
+    // Moving averages, 0 until the first sample after a switch
+    private boolean mHasLastFrame = false;
+    private long mLastFrameNanos = 0;
+    private long mIntervalNanos = 0;
+    private long mDecodeNanos = 0;
+
+    // Last frame or switch, where a stall starts. False until the first of them.
+    private boolean mHasProgress = false;
+    private long mProgressNanos = 0;
+
+    // Since when the averages are continuously bad or good
+    private boolean mBad = false;
+    private boolean mGood = false;
+    private long mBadSinceNanos = 0;
+    private long mGoodSinceNanos = 0;
+
+    public VideoQualityController(String template, Variant[] variants) {
+        this(template, variants, DEFAULT_DEGRADE_HOLD, DEFAULT_RECOVER_HOLD, DEFAULT_DECODE_BUDGET);
+    }
+
+    public VideoQualityController(String template, Variant[] variants, long degrade_hold_ms,
+                                  long recover_hold_ms, long decode_budget_ms) {
+        if (variants.length == 0) {
+            throw new IllegalArgumentException("No variants");
+        }
+        mTemplate = template;
+        mVariants = variants;
+        mDegradeHoldNanos = degrade_hold_ms * MS;
+        mInitialRecoverHoldNanos = recover_hold_ms * MS;
+        mRecoverHoldNanos = mInitialRecoverHoldNanos;
+        mDecodeBudgetNanos = decode_budget_ms * MS;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized Variant variant() {
+        return mVariants[mCurrent];
+    }
+
+    // Index of the current variant, 0 is the best
+    public synchronized int variantIndex() {
+        return mCurrent;
+    }
+
+    public synchronized String url() {
+        return mVariants[mCurrent].url(mTemplate);
+    }
+
+    public synchronized long switchCount() {
+        return mSwitches;
+    }
+
+    // Moving average of the time between frames, ms
+    public synchronized long frameIntervalMillis() {
+        return mIntervalNanos / MS;
+    }
+
+    // A (re)connect: the gap before the first frame is not a frame interval
+    public synchronized void onConnected() {
+        mHasLastFrame = false;
+    }
+
+    // Receive thread, when the last byte of a frame arrived
+    public void onFrameReceived(long now_nanos) {
+        Listener listener;
+        synchronized (this) {
+            boolean has_last = mHasLastFrame;
+            long last = mLastFrameNanos;
+            mHasLastFrame = true;
+            mLastFrameNanos = now_nanos;
+            mHasProgress = true;
+            mProgressNanos = now_nanos;
+            if (!has_last || isSettling(now_nanos)) {
+                return;
+            }
+            mIntervalNanos = average(mIntervalNanos, now_nanos - last);
+            listener = evaluate(now_nanos, false);
+        }
+        notifyVariantChanged(listener);
+    }
+
+    // Decode thread, with the time from the frame's arrival to the decoded bitmap
+    public void onFrameDecoded(long now_nanos, long decode_nanos) {
+        Listener listener;
+        synchronized (this) {
+            if (isSettling(now_nanos)) {
+                return;
+            }
+            mDecodeNanos = average(mDecodeNanos, decode_nanos);
+            listener = evaluate(now_nanos, false);
+        }
+        notifyVariantChanged(listener);
+    }
+
+    // Any thread, a few times per second while the stream is open. Returns true if the
+    // controller switched because no frame came for STALL_INTERVALS nominal frame intervals:
+    // the caller has to give up the connection, whose read may block until its timeout.
+    public boolean checkStall(long now_nanos) {
+        Listener listener;
+        synchronized (this) {
+            if (!mHasProgress || isSettling(now_nanos)
+                    || now_nanos - mProgressNanos < nominalNanos() * STALL_INTERVALS) {
+                return false;
+            }
+            int current = mCurrent;
+            listener = evaluate(now_nanos, true);
+            if (mCurrent == current) {
+                return false;
+            }
+        }
+        notifyVariantChanged(listener);
+        return true;
+    }
+
+    public synchronized String summary() {
+        return String.format(Locale.US, "%s, frame interval %d ms, decode %d ms, %d switches",
+                mVariants[mCurrent], mIntervalNanos / MS, mDecodeNanos / MS, mSwitches);
+    }
+
+    private boolean isSettling(long now) {
+        if (mSettling && now - mSwitchedNanos >= SETTLE_TIME * MS) {
+            mSettling = false;
+        }
+        return mSettling;
+    }
+
+    private static long average(long average, long sample) {
+        return average == 0 ? sample : average + (sample - average) / 8;
+    }
+
+    private long nominalNanos() {
+        return 1000 * MS / mVariants[mCurrent].fps;
+    }
+
+    // Returns the listener to notify of a switch, null if the variant stays.
+    // stalled: no frame for STALL_INTERVALS nominal intervals.
+    private Listener evaluate(long now, boolean stalled) {
+        long nominal = nominalNanos();
+        boolean bad = stalled || mIntervalNanos > nominal * DEGRADE_RATIO || mDecodeNanos > mDecodeBudgetNanos;
+        boolean good = !stalled && mIntervalNanos != 0 && mIntervalNanos < nominal * RECOVER_RATIO
+                && mDecodeNanos < mDecodeBudgetNanos / 2;
+
+        if (bad && !mBad) {
+            mBadSinceNanos = now;
+        }
+        if (good && !mGood) {
+            mGoodSinceNanos = now;
+        }
+        mBad = bad;
+        mGood = good;
+
+        // An upgrade which held through the probe window worked
+        if (mSteppedUp && now - mSwitchedNanos > PROBE_WINDOW * MS) {
+            mSteppedUp = false;
+            mRecoverHoldNanos = mInitialRecoverHoldNanos;
+        }
+
+        if (bad && now - mBadSinceNanos >= mDegradeHoldNanos && mCurrent < mVariants.length - 1) {
+            if (mSteppedUp) {
+                mRecoverHoldNanos = Math.min(mRecoverHoldNanos * 2, MAX_RECOVER_HOLD * MS);
+            }
+            mSteppedUp = false;
+            return switchTo(mCurrent + 1, now);
+        }
+        if (good && now - mGoodSinceNanos >= mRecoverHoldNanos && mCurrent > 0) {
+            mSteppedUp = true;
+            return switchTo(mCurrent - 1, now);
+        }
+        return null;
+    }
+
+    private Listener switchTo(int index, long now) {
+        mCurrent = index;
+        mSettling = true;
+        mSwitchedNanos = now;
+        mProgressNanos = now;
+        mSwitches++;
+        mHasLastFrame = false;
+        mIntervalNanos = 0;
+        mDecodeNanos = 0;
+        mBad = false;
+        mGood = false;
+        return mListener;
+    }
+
+    private void notifyVariantChanged(Listener listener) {
+        if (listener != null) {
+            Variant variant;
+            String url;
+            synchronized (this) {
+                variant = mVariants[mCurrent];
+                url = url();
+            }
+            listener.onVariantChanged(variant, url);
+        }
+    }
+}
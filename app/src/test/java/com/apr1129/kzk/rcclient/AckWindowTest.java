@@ -0,0 +1,121 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AckWindowTest {
+
+    private static final long MS = 1000000L; // ns
+
+    // Sends and acknowledges one command with the given RTT
+    private static void exchange(AckWindow window, int seq, long sent_ms, long rtt_ms) {
+        window.onSent(seq, sent_ms * MS);
+        assertTrue(window.onAck(seq, (sent_ms + rtt_ms) * MS));
+    }
+
+    @Test
+    public void newConnection_startsWithInitialWindow() {
+        AckWindow window = new AckWindow();
+        int seq = 1;
+        while (window.canSend(seq * MS)) {
+            window.onSent(seq, seq * MS);
+            seq++;
+        }
+        assertEquals(AckWindow.INITIAL_WINDOW, window.inFlight());
+        assertTrue(window.onAck(1, 30 * MS));
+        assertTrue(window.canSend(30 * MS));
+    }
+
+    @Test
+    public void ack_coversOlderCommands() {
+        AckWindow window = new AckWindow();
+        for (int seq = 1; seq <= 4; seq++) {
+            window.onSent(seq, 0);
+        }
+        assertTrue(window.onAck(3, 10 * MS));
+        assertEquals(1, window.inFlight());
+        assertFalse(window.onAck(2, 11 * MS));
+        assertFalse(window.onAck(3, 11 * MS));
+        assertEquals(10000, window.lastRttMicros());
+    }
+
+    @Test
+    public void fullWindow_blocksUntilAcked() {
+        AckWindow window = new AckWindow();
+        exchange(window, 1, 0, 10);
+        int seq = 2;
+        while (window.canSend(20 * MS)) {
+            window.onSent(seq++, 20 * MS);
+        }
+        assertEquals(window.window(), window.inFlight());
+        window.onAck(2, 30 * MS);
+        assertTrue(window.canSend(30 * MS));
+    }
+
+    @Test
+    public void queuingDelay_halvesWindowOncePerRtt() {
+        AckWindow window = new AckWindow(20, AckWindow.DEFAULT_STALL_TIMEOUT);
+        exchange(window, 1, 0, 10);
+        int before = window.window();
+
+        // 50 ms over the base RTT: halved, but only once within an RTT
+        window.onSent(2, 100 * MS);
+        window.onSent(3, 105 * MS);
+        window.onAck(2, 160 * MS);
+        assertEquals(before / 2, window.window());
+        window.onAck(3, 165 * MS);
+        assertEquals(before / 2, window.window());
+        assertEquals(1, window.decreaseCount());
+
+        for (int seq = 4; seq < 10; seq++) {
+            exchange(window, seq, seq * 1000, 60);
+        }
+        assertEquals(AckWindow.MIN_WINDOW, window.window());
+        assertEquals(10000, window.minRttMicros());
+    }
+
+    @Test
+    public void shortQueue_growsWindowByOnePerWindow() {
+        AckWindow window = new AckWindow();
+        int start = window.window();
+        for (int seq = 1; seq <= start; seq++) {
+            exchange(window, seq, seq * 100, 10 + seq % 3);
+        }
+        assertEquals(start + 1, window.window());
+
+        for (int seq = 100; seq < 10000; seq++) {
+            exchange(window, seq & 0xffff, seq * 100, 10);
+        }
+        assertEquals(AckWindow.MAX_WINDOW, window.window());
+    }
+
+    @Test
+    public void noAcks_markRobotUnsupported() {
+        AckWindow window = new AckWindow();
+        for (int seq = 1; seq <= AckWindow.INITIAL_WINDOW; seq++) {
+            window.onSent(seq, 0);
+        }
+        assertFalse(window.canSend(AckWindow.UNSUPPORTED_TIMEOUT * MS));
+        assertFalse(window.isUnsupported());
+        assertTrue(window.canSend((AckWindow.UNSUPPORTED_TIMEOUT + 1) * MS));
+        assertTrue(window.isUnsupported());
+        assertEquals(0, window.inFlight());
+        assertFalse(window.isStalled(100000 * MS));
+
+        // A new connection tries again
+        window.reset();
+        assertFalse(window.isUnsupported());
+    }
+
+    @Test
+    public void oldestUnacked_stallsAfterTimeout() {
+        AckWindow window = new AckWindow(20, 500);
+        exchange(window, 1, 0, 10);
+        window.onSent(2, 100 * MS);
+        assertFalse(window.isStalled(600 * MS));
+        assertTrue(window.isStalled(601 * MS));
+        window.onAck(2, 601 * MS);
+        assertFalse(window.isStalled(601 * MS));
+    }
+}
@@ -0,0 +1,91 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BinaryCommandEncoderTest {
+
+    @Test
+    public void encodeMove_roundTrip() {
+        BinaryCommandEncoder encoder = new BinaryCommandEncoder();
+        int len = encoder.encodeMove(1024, -1024);
+        byte[] frame = encoder.buffer();
+
+        assertEquals(BinaryCommandEncoder.FRAME_SIZE, len);
+        assertEquals(BinaryCommandEncoder.OP_MOVE, BinaryCommandEncoder.opcodeOf(frame, 0));
+        assertEquals(1, BinaryCommandEncoder.sequenceOf(frame, 0));
+        assertEquals(1024, BinaryCommandEncoder.leftPowerOf(frame, 0));
+        assertEquals(-1024, BinaryCommandEncoder.rightPowerOf(frame, 0));
+        assertTrue(BinaryCommandEncoder.timestampOf(frame, 0) < 1000);
+    }
+
+    @Test
+    public void encodeMove_clampsPowerTo16Bit() {
+        BinaryCommandEncoder encoder = new BinaryCommandEncoder();
+        encoder.encodeMove(Integer.MAX_VALUE, Integer.MIN_VALUE);
+        assertEquals(Short.MAX_VALUE, BinaryCommandEncoder.leftPowerOf(encoder.buffer(), 0));
+        assertEquals(Short.MIN_VALUE, BinaryCommandEncoder.rightPowerOf(encoder.buffer(), 0));
+    }
+
+    @Test
+    public void encodeMove_incrementsSequence() {
+        BinaryCommandEncoder encoder = new BinaryCommandEncoder();
+        int prev = 0;
+        for (int i = 0; i < 70000; i++) {
+            encoder.encodeMove(0, 0);
+            int seq = BinaryCommandEncoder.sequenceOf(encoder.buffer(), 0);
+            assertEquals(encoder.lastSequence(), seq);
+            assertTrue(BinaryCommandEncoder.isNewer(seq, prev));
+            assertFalse(BinaryCommandEncoder.isNewer(prev, seq));
+            prev = seq;
+        }
+    }
+
+    @Test
+    public void ackRequested_flagsMovesOnly() {
+        BinaryCommandEncoder encoder = new BinaryCommandEncoder();
+        encoder.encodeMove(1, 1);
+        assertEquals(0, BinaryCommandEncoder.flagsOf(encoder.buffer(), 0));
+        encoder.setAckRequested(true);
+        encoder.encodeMove(1, 1);
+        assertEquals(BinaryCommandEncoder.FLAG_ACK, BinaryCommandEncoder.flagsOf(encoder.buffer(), 0));
+        encoder.encodePing(1);
+        assertEquals(0, BinaryCommandEncoder.flagsOf(encoder.buffer(), 0));
+
+        byte[] ack = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        BinaryCommandEncoder.encodeAck(ack, 0, 0xfedc, 0xfffffff0L);
+        assertEquals(BinaryCommandEncoder.OP_ACK, BinaryCommandEncoder.opcodeOf(ack, 0));
+        assertEquals(0xfedc, BinaryCommandEncoder.sequenceOf(ack, 0));
+        assertEquals(0xfffffff0L, BinaryCommandEncoder.pongReceiveTimeOf(ack, 0));
+    }
+
+    @Test
+    public void timestampOf_isUnsigned() {
+        byte[] frame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        BinaryCommandEncoder.encode(frame, 0, BinaryCommandEncoder.OP_MOVE, 0xffff, 0, 0, 0xfffffffe);
+        assertEquals(0xffff, BinaryCommandEncoder.sequenceOf(frame, 0));
+        assertEquals(0xfffffffeL, BinaryCommandEncoder.timestampOf(frame, 0));
+    }
+
+    @Test
+    public void encodePing_keepsMoveSequence() {
+        BinaryCommandEncoder encoder = new BinaryCommandEncoder();
+        encoder.encodeMove(1, 1);
+        encoder.encodePing(0x1234);
+        byte[] frame = encoder.buffer();
+        assertEquals(BinaryCommandEncoder.OP_PING, BinaryCommandEncoder.opcodeOf(frame, 0));
+        assertEquals(0x1234, BinaryCommandEncoder.sequenceOf(frame, 0));
+        assertEquals(1, encoder.lastSequence());
+    }
+
+    @Test
+    public void encodePong_roundTrip() {
+        byte[] frame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        BinaryCommandEncoder.encodePong(frame, 0, 7, 0xfffffff0L, 0x10L);
+        assertEquals(BinaryCommandEncoder.OP_PONG, BinaryCommandEncoder.opcodeOf(frame, 0));
+        assertEquals(7, BinaryCommandEncoder.sequenceOf(frame, 0));
+        assertEquals(0xfffffff0L, BinaryCommandEncoder.pongReceiveTimeOf(frame, 0));
+        assertEquals(0x10L, BinaryCommandEncoder.pongTransmitTimeOf(frame, 0));
+    }
+}
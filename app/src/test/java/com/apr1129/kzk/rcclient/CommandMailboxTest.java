@@ -0,0 +1,86 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class CommandMailboxTest {
+
+    @Test
+    public void post_overwritesPendingCommand() {
+        CommandMailbox mailbox = new CommandMailbox();
+        assertEquals(CommandMailbox.EMPTY, mailbox.take());
+
+        assertTrue(mailbox.post(10, -10));
+        assertFalse(mailbox.post(20, -20));
+        assertFalse(mailbox.post(0, 0));
+
+        long command = mailbox.take();
+        assertNotEquals(CommandMailbox.EMPTY, command);
+        assertEquals(0, CommandMailbox.leftPowerOf(command));
+        assertEquals(0, CommandMailbox.rightPowerOf(command));
+        assertEquals(CommandMailbox.EMPTY, mailbox.take());
+        assertTrue(mailbox.post(1, 1));
+    }
+
+    @Test
+    public void pack_roundTripAndClamp() {
+        int[] values = {0, 1, -1, 1024, -1024, Short.MAX_VALUE, Short.MIN_VALUE};
+        for (int left : values) {
+            for (int right : values) {
+                long command = CommandMailbox.pack(left, right);
+                assertNotEquals(CommandMailbox.EMPTY, command);
+                assertEquals(left, CommandMailbox.leftPowerOf(command));
+                assertEquals(right, CommandMailbox.rightPowerOf(command));
+            }
+        }
+        long command = CommandMailbox.pack(Integer.MAX_VALUE, Integer.MIN_VALUE);
+        assertEquals(Short.MAX_VALUE, CommandMailbox.leftPowerOf(command));
+        assertEquals(Short.MIN_VALUE, CommandMailbox.rightPowerOf(command));
+    }
+
+    @Test
+    public void concurrent_senderSeesNewestAndLastCommand() throws Exception {
+        final CommandMailbox mailbox = new CommandMailbox();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final int last = 30000;
+        final int[] observed = new int[2]; // [0] last value, [1] number of takes
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int prev = -1;
+                while (true) {
+                    boolean finished = done.get();
+                    long command = mailbox.take();
+                    if (command != CommandMailbox.EMPTY) {
+                        int left = CommandMailbox.leftPowerOf(command);
+                        int right = CommandMailbox.rightPowerOf(command);
+                        // Never older than what was already sent, never torn
+                        if (left <= prev || right != -left) {
+                            observed[0] = Integer.MIN_VALUE;
+                            return;
+                        }
+                        prev = left;
+                        observed[1]++;
+                    } else if (finished) {
+                        break;
+                    }
+                }
+                observed[0] = prev;
+            }
+        });
+        sender.start();
+
+        for (int i = 0; i <= last; i++) {
+            mailbox.post(i, -i);
+        }
+        done.set(true);
+        sender.join(5000);
+
+        assertEquals(last, observed[0]);
+        assertTrue(observed[1] > 0);
+    }
+}
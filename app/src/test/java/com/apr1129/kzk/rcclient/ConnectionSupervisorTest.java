@@ -0,0 +1,95 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConnectionSupervisorTest {
+
+    @Test
+    public void backoff_staysWithinJitteredBounds() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 5000, new Random(1));
+        long[] ceilings = {100, 200, 400, 800, 1600, 3200, 5000, 5000, 5000};
+        for (int i = 0; i < 1000; i++) {
+            backoff.reset();
+            for (long ceiling : ceilings) {
+                long delay = backoff.nextDelay();
+                assertTrue("delay " + delay + " below " + ceiling / 2, delay >= ceiling / 2);
+                assertTrue("delay " + delay + " not below " + ceiling, delay < ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void backoff_doesNotOverflow() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 5000, new Random(1));
+        for (int i = 0; i < 200; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= 2500 || i < 6);
+            assertTrue(delay < 5000);
+        }
+        assertEquals(200, backoff.attempts());
+    }
+
+    @Test
+    public void backoff_isJittered() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 1000, new Random(1));
+        long first = backoff.nextDelay();
+        boolean differs = false;
+        for (int i = 0; i < 10; i++) {
+            differs |= backoff.nextDelay() != first;
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void supervisor_reportsReconnectTime() {
+        final List<long[]> states = new ArrayList<>();
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(new ReconnectBackoff(100, 5000, new Random(1)),
+                new ConnectionSupervisor.Listener() {
+                    @Override
+                    public void onStateChanged(int state, long elapsed_ms) {
+                        states.add(new long[]{state, elapsed_ms});
+                    }
+                });
+
+        supervisor.start(1000);
+        supervisor.onConnected(1030);
+        assertEquals(ConnectionSupervisor.STATE_CONNECTED, supervisor.state());
+
+        // Link lost, two failed attempts, then back
+        long delay = supervisor.onFailure(2000);
+        assertTrue(delay >= 50 && delay < 100);
+        delay = supervisor.onFailure(2080);
+        assertTrue(delay >= 100 && delay < 200);
+        assertEquals(2, supervisor.consecutiveFailures());
+        assertEquals(ConnectionSupervisor.STATE_RECONNECTING, supervisor.state());
+        supervisor.onConnected(2250);
+        assertEquals(0, supervisor.consecutiveFailures());
+
+        supervisor.stop();
+
+        assertEquals(5, states.size());
+        assertArrayEquals(new long[]{ConnectionSupervisor.STATE_CONNECTING, 0}, states.get(0));
+        assertArrayEquals(new long[]{ConnectionSupervisor.STATE_CONNECTED, 30}, states.get(1));
+        assertArrayEquals(new long[]{ConnectionSupervisor.STATE_RECONNECTING, 0}, states.get(2));
+        assertArrayEquals(new long[]{ConnectionSupervisor.STATE_CONNECTED, 250}, states.get(3));
+        assertArrayEquals(new long[]{ConnectionSupervisor.STATE_DISCONNECTED, 0}, states.get(4));
+    }
+
+    @Test
+    public void supervisor_resetsBackoffAfterConnect() {
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(new ReconnectBackoff(100, 5000, new Random(1)), null);
+        supervisor.start(0);
+        for (int i = 0; i < 5; i++) {
+            supervisor.onFailure(0);
+        }
+        supervisor.onConnected(0);
+        long delay = supervisor.onFailure(0);
+        assertTrue(delay < 100);
+    }
+}
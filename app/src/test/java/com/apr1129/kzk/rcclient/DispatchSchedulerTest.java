@@ -0,0 +1,66 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DispatchSchedulerTest {
+
+    @Test
+    public void fixedRate_sendsEveryInterval() {
+        FixedRateScheduler scheduler = new FixedRateScheduler(100);
+        assertTrue(scheduler.shouldSend(0, false, true));
+        assertTrue(scheduler.shouldSend(0, true, false));
+        assertEquals(100, scheduler.nextDelay(0, true));
+        assertEquals(100, scheduler.nextDelay(0, false));
+        assertEquals(DispatchScheduler.NO_TICK, scheduler.wakeDelay(0));
+    }
+
+    @Test
+    public void onChange_sendsOnlyChanges() {
+        OnChangeScheduler scheduler = new OnChangeScheduler(10);
+        assertFalse(scheduler.shouldSend(0, false, false));
+        assertTrue(scheduler.shouldSend(0, true, false));
+        assertEquals(DispatchScheduler.NO_TICK, scheduler.nextDelay(0, false));
+    }
+
+    @Test
+    public void onChange_wakesImmediatelyOutsideMinInterval() {
+        OnChangeScheduler scheduler = new OnChangeScheduler(10);
+        assertEquals(0, scheduler.wakeDelay(1000));
+
+        scheduler.onSent(1000);
+        assertEquals(10, scheduler.wakeDelay(1000));
+        assertEquals(4, scheduler.wakeDelay(1006));
+        assertEquals(0, scheduler.wakeDelay(1010));
+        assertEquals(0, scheduler.wakeDelay(5000));
+    }
+
+    @Test
+    public void adaptive_keepaliveDependsOnIdle() {
+        AdaptiveScheduler scheduler = new AdaptiveScheduler(10, 100, 1000);
+        scheduler.onSent(0);
+
+        // Driving: repeat every 100 ms
+        assertEquals(100, scheduler.nextDelay(0, false));
+        assertFalse(scheduler.shouldSend(50, false, false));
+        assertTrue(scheduler.shouldSend(100, false, false));
+
+        // Stopped: repeat every 1000 ms
+        assertEquals(1000, scheduler.nextDelay(0, true));
+        assertFalse(scheduler.shouldSend(500, false, true));
+        assertTrue(scheduler.shouldSend(1000, false, true));
+
+        // Changes go out right away
+        assertTrue(scheduler.shouldSend(20, true, true));
+        assertEquals(0, scheduler.wakeDelay(20));
+    }
+
+    @Test
+    public void adaptive_nextDelayAfterLateTick() {
+        AdaptiveScheduler scheduler = new AdaptiveScheduler(10, 100, 1000);
+        scheduler.onSent(0);
+        assertEquals(0, scheduler.nextDelay(150, false));
+        assertEquals(850, scheduler.nextDelay(150, true));
+    }
+}
@@ -0,0 +1,296 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FleetControllerTest {
+
+    private static final long INTERVAL = 50; // ms
+    private static final long TIMEOUT = 3000; // ms
+
+    private final List<RobotServerSimulator> mServers = new ArrayList<>();
+    private final List<AtomicLong> mLastCommands = new ArrayList<>();
+    private final List<IOException> mErrors = new ArrayList<>();
+    private FleetController mFleet;
+
+    private FleetController fleet() {
+        mFleet = new FleetController(INTERVAL, 500, 500, new FleetController.Listener() {
+            @Override
+            public void onStateChanged(FleetController.Robot robot, int state, long elapsed_ms) {
+            }
+
+            @Override
+            public void onError(FleetController.Robot robot, IOException e) {
+                synchronized (mErrors) {
+                    mErrors.add(e);
+                }
+            }
+        });
+        return mFleet;
+    }
+
+    // Starts a stand-in robot which remembers the last command it executed
+    private RobotServerSimulator server(boolean binary_capable) throws IOException {
+        RobotServerSimulator server = new RobotServerSimulator(binary_capable).start();
+        final AtomicLong last = new AtomicLong(CommandMailbox.EMPTY);
+        server.setListener(new RobotServerSimulator.Listener() {
+            @Override
+            public void onCommand(long key, int left_power, int right_power, long executed_nanos) {
+                last.set(CommandMailbox.pack(left_power, right_power));
+            }
+        });
+        mServers.add(server);
+        mLastCommands.add(last);
+        return server;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mFleet != null) {
+            mFleet.stop();
+        }
+        for (RobotServerSimulator server : mServers) {
+            server.close();
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    // Polls condition until it holds, and fails the test with what it waited for after TIMEOUT
+    private static void await(String what, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() >= deadline) {
+                fail("Timed out after " + TIMEOUT + " ms waiting for " + what);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitCommand(final int server, int left_power, int right_power) throws InterruptedException {
+        final long expected = CommandMailbox.pack(left_power, right_power);
+        await("robot " + server + " to execute " + left_power + " " + right_power, new Condition() {
+            @Override
+            public boolean holds() {
+                return mLastCommands.get(server).get() == expected;
+            }
+        });
+    }
+
+    private static void awaitState(final FleetController.Robot robot, final int state) throws InterruptedException {
+        await("the robot to reach state " + state, new Condition() {
+            @Override
+            public boolean holds() {
+                return robot.state() == state;
+            }
+        });
+    }
+
+    private static int threadsNamed(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void postedCommands_reachEachRobot() throws Exception {
+        FleetController fleet = fleet();
+        FleetController.Robot[] robots = new FleetController.Robot[3];
+        for (int i = 0; i < robots.length; i++) {
+            robots[i] = fleet.addRobot("127.0.0.1", server(false).getPort(), false);
+        }
+        fleet.start();
+        for (FleetController.Robot robot : robots) {
+            awaitState(robot, ConnectionSupervisor.STATE_CONNECTED);
+        }
+
+        for (int i = 0; i < robots.length; i++) {
+            fleet.post(robots[i], 100 * (i + 1), -100 * (i + 1));
+        }
+        for (int i = 0; i < robots.length; i++) {
+            awaitCommand(i, 100 * (i + 1), -100 * (i + 1));
+            // The robot may execute it before the fleet thread records the write
+            final FleetController.Robot robot = robots[i];
+            await("the write latency of robot " + i, new Condition() {
+                @Override
+                public boolean holds() {
+                    return robot.latency().count() > 0;
+                }
+            });
+            assertEquals(1, robot.latency().count());
+        }
+
+        // One pass reaches everyone
+        fleet.stopAll();
+        for (int i = 0; i < robots.length; i++) {
+            awaitCommand(i, 0, 0);
+        }
+        assertEquals(1, threadsNamed("FleetController"));
+    }
+
+    @Test
+    public void unchangedCommand_isResentAsKeepalive() throws Exception {
+        FleetController fleet = fleet();
+        RobotServerSimulator server = server(false);
+        FleetController.Robot robot = fleet.addRobot("127.0.0.1", server.getPort(), false);
+        fleet.start();
+        awaitState(robot, ConnectionSupervisor.STATE_CONNECTED);
+        fleet.post(robot, 200, 200);
+        awaitCommand(0, 200, 200);
+
+        long executed = server.executedCount();
+        Thread.sleep(INTERVAL * 6);
+        long keepalives = server.executedCount() - executed;
+        assertTrue("keepalives " + keepalives, keepalives >= 3 && keepalives <= 8);
+        assertEquals(CommandMailbox.pack(200, 200), mLastCommands.get(0).get());
+    }
+
+    @Test
+    public void droppedConnection_reconnectsThatRobotOnly() throws Exception {
+        FleetController fleet = fleet();
+        final FleetController.Robot a = fleet.addRobot("127.0.0.1", server(false).getPort(), false);
+        FleetController.Robot b = fleet.addRobot("127.0.0.1", server(false).getPort(), false);
+        fleet.start();
+        awaitState(a, ConnectionSupervisor.STATE_CONNECTED);
+        awaitState(b, ConnectionSupervisor.STATE_CONNECTED);
+        fleet.post(a, 300, 300);
+        fleet.post(b, 400, 400);
+        awaitCommand(0, 300, 300);
+        awaitCommand(1, 400, 400);
+
+        mServers.get(0).dropConnection();
+        await("robot 0 to reconnect", new Condition() {
+            @Override
+            public boolean holds() {
+                return a.connects() >= 2;
+            }
+        });
+        assertEquals(2, a.connects());
+        assertEquals(1, a.failures());
+        assertEquals(1, b.connects());
+        assertEquals(0, b.failures());
+
+        // The reconnected robot is stopped until the next post
+        awaitCommand(0, 0, 0);
+        assertEquals(2, mServers.get(0).connections());
+        fleet.post(a, 500, 500);
+        awaitCommand(0, 500, 500);
+        assertEquals(CommandMailbox.pack(400, 400), mLastCommands.get(1).get());
+    }
+
+    @Test
+    public void unreachableRobot_doesNotHoldBackOthers() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int closed_port = closed.getLocalPort();
+        closed.close();
+
+        FleetController fleet = fleet();
+        FleetController.Robot gone = fleet.addRobot("127.0.0.1", closed_port, false);
+        FleetController.Robot robot = fleet.addRobot("127.0.0.1", server(false).getPort(), false);
+        fleet.start();
+        awaitState(robot, ConnectionSupervisor.STATE_CONNECTED);
+        fleet.postAll(-250, 250);
+        awaitCommand(0, -250, 250);
+
+        Thread.sleep(300);
+        assertTrue(gone.failures() >= 2);
+        assertEquals(0, gone.connects());
+        assertEquals(ConnectionSupervisor.STATE_CONNECTING, gone.state());
+        synchronized (mErrors) {
+            // Retries are not reported
+            assertEquals(1, mErrors.size());
+        }
+    }
+
+    @Test
+    public void unresolvableRobot_doesNotHoldBackOthers() throws Exception {
+        FleetController fleet = fleet();
+        FleetController.Robot unknown = fleet.addRobot("no-such-robot.invalid", 9000, false);
+        FleetController.Robot robot = fleet.addRobot("127.0.0.1", server(false).getPort(), false);
+        fleet.start();
+        awaitState(robot, ConnectionSupervisor.STATE_CONNECTED);
+        fleet.postAll(100, -100);
+        awaitCommand(0, 100, -100);
+
+        await("the lookup to fail", new Condition() {
+            @Override
+            public boolean holds() {
+                synchronized (mErrors) {
+                    return !mErrors.isEmpty();
+                }
+            }
+        });
+        synchronized (mErrors) {
+            assertTrue(mErrors.get(0) instanceof UnknownHostException);
+        }
+        assertEquals(0, unknown.connects());
+    }
+
+    @Test
+    public void binaryRobot_negotiatesAndAnswersPings() throws Exception {
+        FleetController fleet = fleet();
+        fleet.setPingInterval(20);
+        FleetController.Robot binary = fleet.addRobot("127.0.0.1", server(true).getPort(), true);
+        FleetController.Robot text = fleet.addRobot("127.0.0.1", server(false).getPort(), true);
+        fleet.start();
+        awaitState(binary, ConnectionSupervisor.STATE_CONNECTED);
+        awaitState(text, ConnectionSupervisor.STATE_CONNECTED);
+        assertTrue(binary.isBinary());
+        assertFalse(text.isBinary());
+
+        fleet.post(binary, 123, -45);
+        fleet.post(text, -67, 89);
+        awaitCommand(0, 123, -45);
+        awaitCommand(1, -67, 89);
+
+        Thread.sleep(300);
+        assertTrue(binary.link().samples() > 5);
+        assertTrue(text.link().samples() > 5);
+    }
+
+    @Test
+    public void dozensOfRobots_shareOneThread() throws Exception {
+        final FleetController fleet = fleet();
+        fleet.start();
+        final FleetController.Robot[] robots = new FleetController.Robot[24];
+        for (int i = 0; i < robots.length; i++) {
+            robots[i] = fleet.addRobot("127.0.0.1", server(false).getPort(), false);
+        }
+        for (FleetController.Robot robot : robots) {
+            awaitState(robot, ConnectionSupervisor.STATE_CONNECTED);
+        }
+        for (int i = 0; i < robots.length; i++) {
+            fleet.post(robots[i], i, -i);
+        }
+        for (int i = 0; i < robots.length; i++) {
+            awaitCommand(i, i, -i);
+        }
+        assertEquals(1, threadsNamed("FleetController"));
+        assertEquals(robots.length, fleet.summary().split("\n").length);
+
+        fleet.removeRobot(robots[0]);
+        await("robot 0 to be removed", new Condition() {
+            @Override
+            public boolean holds() {
+                return fleet.robots().length < robots.length;
+            }
+        });
+        assertEquals(robots.length - 1, fleet.robots().length);
+    }
+}
@@ -0,0 +1,183 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlightRecorderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void records_convertToCsv() throws Exception {
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 64);
+        recorder.recordConnect(true, 120);
+        recorder.recordTouch(6, 1, 1, 7, 123.5f, 456.25f);
+        recorder.recordCommand(-50, 75, 8);
+        recorder.recordWrite(8, 42);
+        recorder.recordDisconnect(1);
+        recorder.close();
+
+        FlightRecordReader reader = new FlightRecordReader(file);
+        List<FlightRecordReader.Record> records = reader.records();
+        assertEquals(5, reader.count());
+        assertEquals(5, records.size());
+        assertEquals(FlightRecorder.TYPE_COMMAND, records.get(2).type);
+        assertEquals(-50, records.get(2).a);
+        assertEquals(75, records.get(2).b);
+        for (int i = 1; i < records.size(); i++) {
+            assertTrue(records.get(i).nanos >= records.get(i - 1).nanos);
+        }
+
+        StringWriter csv = new StringWriter();
+        reader.writeCsv(csv);
+        String[] lines = csv.toString().split("\n");
+        assertEquals(6, lines.length);
+        assertEquals(FlightRecordReader.CSV_HEADER, lines[0]);
+        assertTrue(lines[1], lines[1].matches("0,\\d+,\\d+,connect,1,120,0,0"));
+        assertTrue(lines[2], lines[2].matches("1,\\d+,\\d+,touch,4358,7,123\\.5,456\\.25"));
+        assertTrue(lines[3], lines[3].matches("2,\\d+,\\d+,command,0,-50,75,8"));
+        assertTrue(lines[4], lines[4].matches("3,\\d+,\\d+,write,0,8,42,0"));
+        assertTrue(lines[5], lines[5].matches("4,\\d+,\\d+,disconnect,0,1,0,0"));
+    }
+
+    @Test
+    public void touchFlags_readBackUnsigned() throws Exception {
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 16);
+        recorder.recordTouch(6, 9, 9, 12, 1f, 2f);
+        recorder.close();
+
+        FlightRecordReader.Record record = new FlightRecordReader(file).records().get(0);
+        assertEquals(6 | 9 << 8 | 9 << 12, record.flags);
+        assertEquals(9, record.flags >> 12);
+    }
+
+    @Test
+    public void headerCountBehind_recordsStillRead() throws Exception {
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 16);
+        for (int i = 0; i < 5; i++) {
+            recorder.recordCommand(i, i, 8);
+        }
+        recorder.close();
+
+        // As left by a record which finished after the next thread's
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(FlightRecorder.HEADER_COUNT);
+        raf.writeLong(Long.reverseBytes(4));
+        raf.close();
+
+        FlightRecordReader reader = new FlightRecordReader(file);
+        assertEquals(5, reader.count());
+        assertEquals(5, reader.records().size());
+    }
+
+    @Test
+    public void ring_keepsLatestRecords() throws Exception {
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 16);
+        for (int i = 0; i < 40; i++) {
+            recorder.recordCommand(i, -i, 8);
+        }
+        recorder.close();
+        assertEquals(FlightRecorder.HEADER_SIZE + 16 * FlightRecorder.RECORD_SIZE, file.length());
+
+        List<FlightRecordReader.Record> records = new FlightRecordReader(file).records();
+        assertEquals(16, records.size());
+        for (int i = 0; i < 16; i++) {
+            assertEquals(24 + i, records.get(i).index);
+            assertEquals(24 + i, records.get(i).a);
+        }
+    }
+
+    @Test
+    public void recording_isReadableWithoutClose() throws Exception {
+        // As after a crash of the app: nothing but the stores into the mapping
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 16);
+        for (int i = 0; i < 5; i++) {
+            recorder.recordCommand(i, i, 8);
+        }
+        assertEquals(5, new FlightRecordReader(file).records().size());
+        recorder.close();
+    }
+
+    @Test
+    public void tornRecord_isSkipped() throws Exception {
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 16);
+        for (int i = 0; i < 5; i++) {
+            recorder.recordCommand(i, i, 8);
+        }
+        recorder.close();
+
+        // Index of record 3 still invalidated, as if the app died while writing it
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(FlightRecorder.HEADER_SIZE + 3 * FlightRecorder.RECORD_SIZE);
+        raf.writeLong(-1);
+        raf.close();
+
+        List<FlightRecordReader.Record> records = new FlightRecordReader(file).records();
+        assertEquals(4, records.size());
+        assertEquals(2, records.get(2).index);
+        assertEquals(4, records.get(3).index);
+    }
+
+    @Test
+    public void reopen_keepsPreviousRecording() throws Exception {
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 16);
+        recorder.recordDisconnect(3);
+        recorder.close();
+
+        recorder = new FlightRecorder(file, 16);
+        assertEquals(0, new FlightRecordReader(file).records().size());
+        recorder.close();
+
+        List<FlightRecordReader.Record> previous = new FlightRecordReader(FlightRecorder.previousOf(file)).records();
+        assertEquals(1, previous.size());
+        assertEquals(FlightRecorder.TYPE_DISCONNECT, previous.get(0).type);
+        assertEquals(3, previous.get(0).a);
+    }
+
+    @Test
+    public void record_isThreadSafe() throws Exception {
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        final FlightRecorder recorder = new FlightRecorder(file, 1 << 16);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        recorder.recordCommand(id, i, 8);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        recorder.close();
+
+        List<FlightRecordReader.Record> records = new FlightRecordReader(file).records();
+        assertEquals(40000, records.size());
+        int[] next = new int[threads.length];
+        for (FlightRecordReader.Record record : records) {
+            // Each thread's records appear in its order
+            assertEquals(next[record.a]++, record.b);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Drives a synthetic touch stream through the RcClient2 sender path (TouchState -> PowerMapping ->
+// ControlSender -> Transport) against a RobotServerSimulator and measures what the robot sees.
+//
+// The two threads stand in for the Android ones: the input thread plays the role of
+// RcClient2.touchEvent() on the UI thread, the sender thread the role of the polling HandlerThread.
+public class LatencyHarness {
+
+    public static final float SCREEN_HEIGHT = 1080;
+
+    public interface TouchStream {
+        // y position of each thumb at t_ms, or a negative value if the side is not touched
+        float leftY(long t_ms);
+        float rightY(long t_ms);
+    }
+
+    public static class Report {
+        public long sent;
+        public long received;
+        public long dropped;
+        public double commandsPerSecond;
+        public long p50; // us
+        public long p99; // us
+        public long p999; // us
+        public long max; // us
+        public long[] reconnectMs = new long[0];
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d received=%d dropped=%d rate=%.1f/s latency[us] p50=%d p99=%d p999=%d max=%d reconnect[ms]=%s",
+                    sent, received, dropped, commandsPerSecond, p50, p99, p999, max, Arrays.toString(reconnectMs));
+        }
+    }
+
+    // Sine sweep on both sides, out of phase
+    public static TouchStream sineStream(final long period_ms) {
+        return new TouchStream() {
+            @Override
+            public float leftY(long t_ms) {
+                return (float)(SCREEN_HEIGHT / 2 * (1 + 0.9 * Math.sin(2 * Math.PI * t_ms / period_ms)));
+            }
+
+            @Override
+            public float rightY(long t_ms) {
+                return (float)(SCREEN_HEIGHT / 2 * (1 + 0.9 * Math.cos(2 * Math.PI * t_ms / period_ms)));
+            }
+        };
+    }
+
+    private final RobotServerSimulator mServer;
+    private final boolean mUdp;
+    private final boolean mBinary;
+    private final DispatchScheduler mScheduler;
+    private long mTouchInterval = 8; // ms, 120 Hz touch panel
+    private AckWindow mAckWindow;
+
+    // Send times keyed like RobotServerSimulator.Listener keys
+    private final Map<Long, Long> mSendTimes = new HashMap<>();
+    private final List<long[]> mReceived = new ArrayList<>();
+
+    private final TouchState mLeftTouch = new TouchState();
+    private final TouchState mRightTouch = new TouchState();
+    private final Object mWakeLock = new Object();
+    private boolean mWake = false;
+    private volatile boolean mRunning = false;
+    private volatile long mSent = 0;
+
+    public LatencyHarness(RobotServerSimulator server, boolean udp, boolean binary, DispatchScheduler scheduler) {
+        mServer = server;
+        mUdp = udp;
+        mBinary = binary;
+        mScheduler = scheduler;
+    }
+
+    public void setTouchInterval(long interval_ms) {
+        mTouchInterval = interval_ms;
+    }
+
+    // Send with acknowledgments (ControlSender.setAckWindow())
+    public void setAckWindow(AckWindow window) {
+        mAckWindow = window;
+    }
+
+    // Runs for duration_ms and closes the TCP connection at each of drop_at_ms
+    public Report run(final TouchStream stream, long duration_ms, long... drop_at_ms) throws Exception {
+        mServer.setListener(new RobotServerSimulator.Listener() {
+            @Override
+            public void onCommand(long key, int left_power, int right_power, long executed_nanos) {
+                synchronized (mReceived) {
+                    mReceived.add(new long[]{key, executed_nanos});
+                }
+            }
+        });
+
+        final long start = System.nanoTime();
+        mRunning = true;
+
+        Thread input = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    long t = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    touch(mLeftTouch, stream.leftY(t));
+                    touch(mRightTouch, stream.rightY(t));
+                    wake();
+                    sleep(mTouchInterval);
+                }
+            }
+        }, "LatencyHarness-input");
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                senderLoop();
+            }
+        }, "LatencyHarness-sender");
+
+        input.start();
+        sender.start();
+
+        for (long drop : drop_at_ms) {
+            sleep(drop - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            mServer.dropConnection();
+        }
+        sleep(duration_ms - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        mRunning = false;
+        wake();
+        input.join(1000);
+        sender.join(1000);
+
+        // Let the simulator execute what is still in flight
+        sleep(500);
+        long elapsed = System.nanoTime() - start;
+        return report(elapsed);
+    }
+
+    private static void touch(TouchState state, float y) {
+        if (y < 0) {
+            state.clear();
+        } else {
+            state.set(100, y);
+        }
+    }
+
+    private void wake() {
+        synchronized (mWakeLock) {
+            mWake = true;
+            mWakeLock.notifyAll();
+        }
+    }
+
+    private void senderLoop() {
+        final int[] connection = {0};
+        Transport transport = new TimestampingTransport(mUdp ? new UdpTransport() : new TcpTransport(), connection);
+        ControlSender sender = new ControlSender(transport, mUdp, mScheduler);
+        sender.setBinaryProtocolEnabled(mBinary);
+        sender.setAckWindow(mAckWindow);
+        ConnectionSupervisor supervisor = new ConnectionSupervisor(new ReconnectBackoff(), null);
+        String address = "127.0.0.1";
+        int port = mServer.getPort();
+
+        supervisor.start(now());
+        long next = now();
+        while (mRunning) {
+            // Wait until the next tick or a touch change, like the polling Handler does
+            boolean woken;
+            synchronized (mWakeLock) {
+                long wait = next == DispatchScheduler.NO_TICK ? Long.MAX_VALUE : next - now();
+                if (!mWake && wait > 0) {
+                    try {
+                        mWakeLock.wait(wait == Long.MAX_VALUE ? 0 : wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                woken = mWake;
+                mWake = false;
+            }
+            if (!mRunning) {
+                break;
+            }
+            if (woken) {
+                long delay = sender.wakeDelay(now());
+                if (delay != DispatchScheduler.NO_TICK) {
+                    next = now() + delay;
+                }
+                if (next == DispatchScheduler.NO_TICK || next > now()) {
+                    continue;
+                }
+            } else if (next != DispatchScheduler.NO_TICK && next > now()) {
+                continue;
+            }
+
+            try {
+                if (sender.ensureConnected(address, port)) {
+                    connection[0]++;
+                    sender.sendStop(now());
+                    supervisor.onConnected(now());
+                }
+
+                long left = mLeftTouch.get();
+                long right = mRightTouch.get();
+                int left_power = TouchState.isTouched(left) ? PowerMapping.signedPower(TouchState.yOf(left), SCREEN_HEIGHT / 2) : 0;
+                int right_power = TouchState.isTouched(right) ? PowerMapping.signedPower(TouchState.yOf(right), SCREEN_HEIGHT / 2) : 0;
+
+                long delay = sender.tick(now(), left_power, right_power);
+                next = delay == DispatchScheduler.NO_TICK ? DispatchScheduler.NO_TICK : now() + delay;
+            } catch (IOException e) {
+                // Reconnect with backoff, as RcClient2 does
+                sender.close();
+                next = now() + supervisor.onFailure(now());
+            }
+        }
+        sender.close();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Report report(long elapsed_nanos) {
+        Report report = new Report();
+        List<long[]> received;
+        synchronized (mReceived) {
+            received = new ArrayList<>(mReceived);
+        }
+
+        long[] latencies = new long[received.size()];
+        int n = 0;
+        synchronized (mSendTimes) {
+            for (long[] r : received) {
+                Long sent = mSendTimes.get(r[0]);
+                if (sent != null) {
+                    latencies[n++] = TimeUnit.NANOSECONDS.toMicros(r[1] - sent);
+                }
+            }
+        }
+        latencies = Arrays.copyOf(latencies, n);
+        Arrays.sort(latencies);
+
+        report.sent = mSent;
+        report.received = received.size();
+        report.dropped = Math.max(0, report.sent - report.received);
+        report.commandsPerSecond = report.received * 1e9 / elapsed_nanos;
+        report.p50 = percentile(latencies, 0.50);
+        report.p99 = percentile(latencies, 0.99);
+        report.p999 = percentile(latencies, 0.999);
+        report.max = n > 0 ? latencies[n - 1] : 0;
+        report.reconnectMs = mServer.reconnectTimesMs();
+        return report;
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    // Records the completion time of every command write under the key the simulator will report
+    private class TimestampingTransport implements Transport {
+        private final Transport mTarget;
+        private final int[] mConnection;
+        private long mOrdinal = 0;
+
+        TimestampingTransport(Transport target, int[] connection) {
+            mTarget = target;
+            mConnection = connection;
+        }
+
+        @Override
+        public void connect(String address, int port) throws IOException {
+            mTarget.connect(address, port);
+            mOrdinal = 0;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mTarget.isConnected();
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            mTarget.write(buf, off, len);
+            long now = System.nanoTime();
+
+            boolean handshake = len == ProtocolNegotiator.HELLO.length && buf[off] == 'H';
+            if (handshake) {
+                return;
+            }
+            long key;
+            if (mUdp) {
+                key = BinaryCommandEncoder.sequenceOf(buf, off);
+            } else {
+                // Commands are only written after ensureConnected() counted the connection
+                key = ((long)mConnection[0] << 32) | ++mOrdinal;
+            }
+            synchronized (mSendTimes) {
+                mSendTimes.put(key, now);
+            }
+            mSent++;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len, int timeout_ms) throws IOException {
+            return mTarget.read(buf, off, len, timeout_ms);
+        }
+
+        @Override
+        public void close() {
+            mTarget.close();
+        }
+    }
+}
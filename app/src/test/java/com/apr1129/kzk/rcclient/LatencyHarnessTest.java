@@ -0,0 +1,97 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHarnessTest {
+
+    private RobotServerSimulator mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new RobotServerSimulator(true).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void tcp_text_cleanLink() throws Exception {
+        LatencyHarness harness = new LatencyHarness(mServer, false, false, new FixedRateScheduler(10));
+        LatencyHarness.Report report = harness.run(LatencyHarness.sineStream(500), 600);
+
+        assertTrue(report.toString(), report.sent > 30);
+        assertEquals(report.toString(), report.sent, report.received);
+        assertTrue(report.toString(), report.p50 < 20000);
+    }
+
+    @Test
+    public void tcp_binary_injectedDelay() throws Exception {
+        mServer.setDelay(30, 0);
+        LatencyHarness harness = new LatencyHarness(mServer, false, true, new AdaptiveScheduler(10, 100, 1000));
+        LatencyHarness.Report report = harness.run(LatencyHarness.sineStream(500), 600);
+
+        assertTrue(report.toString(), report.received > 0);
+        assertTrue(report.toString(), report.p50 >= 30000);
+    }
+
+    @Test
+    public void tcp_lossCausesHeadOfLineBlocking() throws Exception {
+        mServer.setLossRate(0.05);
+        LatencyHarness harness = new LatencyHarness(mServer, false, false, new FixedRateScheduler(10));
+        LatencyHarness.Report report = harness.run(LatencyHarness.sineStream(500), 800);
+
+        assertEquals(report.toString(), report.sent, report.received);
+        assertTrue(report.toString(), report.p99 >= RobotServerSimulator.TCP_RETRANSMIT_TIMEOUT * 1000 / 2);
+    }
+
+    @Test
+    public void udp_lossDropsCommandsWithoutDelayingOthers() throws Exception {
+        mServer.setLossRate(0.2);
+        LatencyHarness harness = new LatencyHarness(mServer, true, false, new FixedRateScheduler(10));
+        LatencyHarness.Report report = harness.run(LatencyHarness.sineStream(500), 800);
+
+        assertTrue(report.toString(), report.dropped > 0);
+        assertEquals(report.toString(), report.dropped, mServer.lostCount() + mServer.staleCount());
+        assertTrue(report.toString(), report.p99 < 50000);
+    }
+
+    @Test
+    public void tcp_reconnectAfterDrop() throws Exception {
+        LatencyHarness harness = new LatencyHarness(mServer, false, false, new FixedRateScheduler(10));
+        LatencyHarness.Report report = harness.run(LatencyHarness.sineStream(500), 1000, 300);
+
+        assertEquals(2, mServer.connections());
+        assertEquals(1, report.reconnectMs.length);
+        assertTrue(report.toString(), report.reconnectMs[0] < 500);
+    }
+
+    @Test
+    public void tcp_bandwidthCapBacksUpSender() throws Exception {
+        mServer.setBandwidth(200); // bytes/s, far below 100 commands/s
+        LatencyHarness harness = new LatencyHarness(mServer, false, false, new FixedRateScheduler(10));
+        LatencyHarness.Report report = harness.run(LatencyHarness.sineStream(500), 600);
+
+        assertTrue(report.toString(), report.received < report.sent);
+    }
+
+    @Test
+    public void tcp_ackWindowKeepsCommandsFresh() throws Exception {
+        mServer.setBandwidth(200);
+        AckWindow window = new AckWindow();
+        LatencyHarness harness = new LatencyHarness(mServer, false, true, new FixedRateScheduler(10));
+        harness.setAckWindow(window);
+        LatencyHarness.Report report = harness.run(LatencyHarness.sineStream(500), 1200);
+
+        // Nothing stale is left queued, and what is sent is at most a few frames behind
+        assertTrue("window=" + window.window() + " decreases=" + window.decreaseCount(), window.ackCount() > 0);
+        assertEquals(report.toString(), report.sent, report.received);
+        assertTrue(report.toString(), report.p50 < 200000);
+        assertTrue(report.toString(), report.p99 < 400000);
+    }
+}
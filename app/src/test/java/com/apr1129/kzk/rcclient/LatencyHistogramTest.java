@@ -0,0 +1,109 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_areContiguous() {
+        assertEquals(0, LatencyHistogram.lowerBoundOf(0));
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            assertEquals("bucket " + i, LatencyHistogram.upperBoundOf(i - 1) + 1, LatencyHistogram.lowerBoundOf(i));
+        }
+    }
+
+    @Test
+    public void bucketOf_matchesBounds() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(1 << random.nextInt(31));
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value >= LatencyHistogram.lowerBoundOf(bucket));
+            assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentile_withinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[10000];
+        Random random = new Random(2);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 100 + random.nextInt(100000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double p : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long exact = values[(int)Math.ceil(p * values.length) - 1];
+            long estimate = histogram.percentile(p);
+            assertTrue("p" + p + " " + estimate + " vs " + exact, estimate >= exact);
+            assertTrue("p" + p + " " + estimate + " vs " + exact, estimate <= exact * 1.125 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.max());
+        assertEquals(values.length, histogram.count());
+    }
+
+    @Test
+    public void record_isThreadSafe() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(seed * 1000 + i % 1000);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400000, histogram.count());
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        histogram.copyCounts(counts);
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        assertEquals(400000, total);
+        assertEquals(3999, histogram.max());
+    }
+
+    @Test
+    public void stats_handTouchToWire() {
+        LatencyStats stats = new LatencyStats();
+
+        // Two touches before the sender runs: the older one is measured to the wire
+        stats.onInput(1000, 1002, 10000000L);
+        stats.onEnqueued(10050000L);
+        stats.onInput(1005, 1005, 12000000L);
+        stats.onEnqueued(12010000L);
+
+        long touch = stats.takeTouch();
+        assertEquals(10000000L, touch);
+        stats.onWire(touch, 13000000L);
+        assertEquals(0, stats.takeTouch());
+
+        assertEquals(2, stats.histogram(LatencyStats.STAGE_INPUT).count());
+        assertEquals(2000, stats.histogram(LatencyStats.STAGE_INPUT).max());
+        assertEquals(2, stats.histogram(LatencyStats.STAGE_ENQUEUE).count());
+        assertEquals(1, stats.histogram(LatencyStats.STAGE_WIRE).count());
+        assertEquals(3000, stats.histogram(LatencyStats.STAGE_WIRE).max());
+
+        // Nothing waiting: no sample
+        stats.onWire(stats.takeTouch(), 14000000L);
+        assertEquals(1, stats.histogram(LatencyStats.STAGE_WIRE).count());
+    }
+}
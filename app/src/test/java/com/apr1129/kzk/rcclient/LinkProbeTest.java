@@ -0,0 +1,141 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkProbeTest {
+
+    private static final long PROBE_INTERVAL = 20; // ms
+    private static final long CLOCK_OFFSET = 123456789; // ms, below 2^31 so it does not wrap
+
+    private RobotServerSimulator mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new RobotServerSimulator(true).start();
+        mServer.setClockOffset(CLOCK_OFFSET);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    // Ticks a ControlSender for duration_ms and returns its estimator
+    private RttEstimator probe(boolean udp, boolean binary, long duration_ms) throws Exception {
+        RttEstimator estimator = new RttEstimator();
+        ControlSender sender = new ControlSender(udp ? new UdpTransport() : new TcpTransport(), udp,
+                new FixedRateScheduler(10));
+        sender.setBinaryProtocolEnabled(binary);
+        sender.setLinkProbe(new LinkProbe(estimator, PROBE_INTERVAL, null));
+
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration_ms);
+        try {
+            while (System.nanoTime() < end) {
+                sender.ensureConnected("127.0.0.1", mServer.getPort());
+                long delay = sender.tick(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()), 100, 100);
+                Thread.sleep(Math.max(1, delay));
+            }
+            // Let the last answers arrive
+            Thread.sleep(300);
+        } finally {
+            sender.linkProbe().stop();
+            sender.close();
+        }
+        return estimator;
+    }
+
+    private static void assertConverged(RttEstimator estimator, long rtt_ms) {
+        assertTrue("samples " + estimator.samples(), estimator.samples() > 20);
+        long rtt = estimator.smoothedRttMicros() / 1000;
+        assertTrue("rtt " + rtt + " ms", rtt >= rtt_ms - 2 && rtt <= rtt_ms + 15);
+        long offset_error = Math.abs(estimator.clockOffsetMillis() - CLOCK_OFFSET);
+        assertTrue("offset error " + offset_error + " ms", offset_error <= 5);
+    }
+
+    @Test
+    public void tcpText_convergesToInjectedDelay() throws Exception {
+        mServer.setDelay(40, 0);
+        RttEstimator estimator = probe(false, false, 1500);
+        assertConverged(estimator, 40);
+        assertFalse(estimator.isDegraded());
+    }
+
+    @Test
+    public void tcpBinary_convergesToInjectedDelay() throws Exception {
+        mServer.setDelay(60, 0);
+        RttEstimator estimator = probe(false, true, 1500);
+        assertConverged(estimator, 60);
+    }
+
+    @Test
+    public void udp_convergesToInjectedDelay() throws Exception {
+        mServer.setDelay(30, 0);
+        RttEstimator estimator = probe(true, true, 1500);
+        assertConverged(estimator, 30);
+    }
+
+    @Test
+    public void jitter_isEstimatedAndOffsetFiltered() throws Exception {
+        mServer.setDelay(20, 60);
+        RttEstimator estimator = probe(false, true, 2000);
+        assertTrue("jitter " + estimator.jitterMicros(), estimator.jitterMicros() > 5000);
+
+        // The min-RTT filter picks an exchange with little queuing, so the error stays small
+        long offset_error = Math.abs(estimator.clockOffsetMillis() - CLOCK_OFFSET);
+        assertTrue("offset error " + offset_error + " ms", offset_error <= 10);
+    }
+
+    @Test
+    public void slowLink_isDegraded() throws Exception {
+        mServer.setDelay(250, 0);
+        RttEstimator estimator = probe(false, true, 1500);
+        assertTrue(estimator.samples() > 0);
+        assertTrue(estimator.isDegraded());
+    }
+
+    @Test
+    public void robotWithoutPing_isNotDegraded() throws Exception {
+        mServer.setAnswerPings(false);
+        RttEstimator estimator = probe(false, false, 500);
+        assertTrue(mServer.pingCount() > 5);
+        assertEquals(0, estimator.samples());
+        assertFalse(estimator.isDegraded());
+    }
+
+    @Test
+    public void estimator_computesNtpOffset() {
+        RttEstimator estimator = new RttEstimator();
+        long ms = 1000000L;
+
+        // Sent at client 1000 ms, received by the robot at 5011 (its clock), answered at 5013,
+        // back at client 1024: rtt 22 ms, offset 4000 ms
+        estimator.onPingSent(1, 1000 * ms);
+        assertTrue(estimator.onPong(1, 5011, 5013, 1024 * ms));
+        assertEquals(22000, estimator.smoothedRttMicros());
+        assertEquals(4000, estimator.clockOffsetMillis());
+
+        // Duplicate and unknown answers are ignored
+        assertFalse(estimator.onPong(1, 5010, 5012, 1030 * ms));
+        assertFalse(estimator.onPong(2, 5010, 5012, 1030 * ms));
+    }
+
+    @Test
+    public void estimator_countsLostPings() {
+        RttEstimator estimator = new RttEstimator();
+        long ms = 1000000L;
+        estimator.onPingSent(1, 0);
+        estimator.onPong(1, 10, 10, 20 * ms);
+
+        for (int i = 2; i < 10; i++) {
+            estimator.onPingSent(i, i * 1000 * ms);
+        }
+        assertTrue(estimator.lostCount() >= RttEstimator.DEGRADED_LOSS_COUNT);
+        assertTrue(estimator.isDegraded());
+    }
+}
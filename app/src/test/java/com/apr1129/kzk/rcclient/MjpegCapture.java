@@ -0,0 +1,77 @@
+package com.apr1129.kzk.rcclient;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+// Builds MJPEG streams the way mjpg-streamer sends them, with real JPEG frames
+public class MjpegCapture {
+
+    public static final String BOUNDARY = "boundarydonotcross";
+    public static final String CONTENT_TYPE = "multipart/x-mixed-replace;boundary=" + BOUNDARY;
+
+    public final List<byte[]> frames = new ArrayList<>();
+    private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+
+    // A JPEG frame with the index drawn into it, so every frame has different content
+    public static byte[] jpeg(int width, int height, int index) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color((index * 40) & 0xff, (index * 90) & 0xff, (index * 150) & 0xff));
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.WHITE);
+        g.drawString("frame " + index, 4, height / 2);
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    public static byte[] part(byte[] jpeg, boolean with_length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String headers = "--" + BOUNDARY + "\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + (with_length ? "Content-Length: " + jpeg.length + "\r\n" : "")
+                + "X-Timestamp: 0.000000\r\n"
+                + "\r\n";
+        byte[] bytes = headers.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+        out.write(jpeg, 0, jpeg.length);
+        out.write('\r');
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    public MjpegCapture add(byte[] jpeg, boolean with_length) {
+        frames.add(jpeg);
+        byte[] part = part(jpeg, with_length);
+        mStream.write(part, 0, part.length);
+        return this;
+    }
+
+    public MjpegCapture addRaw(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        mStream.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    public byte[] bytes() {
+        return mStream.toByteArray();
+    }
+
+    public static MjpegCapture of(int count, int width, int height, boolean with_length) throws IOException {
+        MjpegCapture capture = new MjpegCapture();
+        for (int i = 0; i < count; i++) {
+            capture.add(jpeg(width, height, i), with_length);
+        }
+        return capture;
+    }
+}
@@ -0,0 +1,126 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class MjpegParserTest {
+
+    private static class Collector implements MjpegParser.Listener {
+        final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            frames.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+    }
+
+    private static void assertFrames(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("frame " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    // Feeds the capture in chunks of random size between 1 and max_chunk
+    private static Collector parse(String boundary, byte[] capture, int max_chunk, long seed) {
+        Collector collector = new Collector();
+        MjpegParser parser = new MjpegParser(boundary, collector);
+        Random random = new Random(seed);
+        int off = 0;
+        while (off < capture.length) {
+            int n = Math.min(capture.length - off, 1 + random.nextInt(max_chunk));
+            parser.feed(capture, off, n);
+            off += n;
+        }
+        return collector;
+    }
+
+    @Test
+    public void boundaryOf_parsesContentType() {
+        assertEquals("boundarydonotcross", MjpegParser.boundaryOf(MjpegCapture.CONTENT_TYPE));
+        assertEquals("abc", MjpegParser.boundaryOf("multipart/x-mixed-replace; boundary=\"abc\"; charset=x"));
+        assertNull(MjpegParser.boundaryOf("image/jpeg"));
+        assertNull(MjpegParser.boundaryOf(null));
+    }
+
+    @Test
+    public void withContentLength_anyChunking() throws Exception {
+        MjpegCapture capture = MjpegCapture.of(5, 160, 120, true);
+        byte[] bytes = capture.bytes();
+        for (int max_chunk : new int[]{1, 7, 100, 4096, bytes.length}) {
+            assertFrames(capture.frames, parse(MjpegCapture.BOUNDARY, bytes, max_chunk, max_chunk).frames);
+        }
+    }
+
+    @Test
+    public void withoutContentLength_anyChunking() throws Exception {
+        MjpegCapture capture = MjpegCapture.of(5, 160, 120, false);
+        byte[] bytes = capture.bytes();
+
+        // The last frame is only complete once the next boundary arrives
+        List<byte[]> expected = capture.frames.subList(0, 4);
+        for (int max_chunk : new int[]{1, 3, 19, 4096, bytes.length}) {
+            assertFrames(expected, parse(MjpegCapture.BOUNDARY, bytes, max_chunk, max_chunk).frames);
+        }
+    }
+
+    @Test
+    public void learnsBoundaryFromBody() throws Exception {
+        MjpegCapture capture = MjpegCapture.of(3, 64, 48, true);
+        assertFrames(capture.frames, parse(null, capture.bytes(), 50, 1).frames);
+    }
+
+    @Test
+    public void skipsGarbageAndHandlesTerminator() throws Exception {
+        MjpegCapture capture = new MjpegCapture();
+        capture.addRaw("garbage before the first part\r\n");
+        capture.add(MjpegCapture.jpeg(64, 48, 0), false);
+        capture.add(MjpegCapture.jpeg(64, 48, 1), true);
+        capture.add(MjpegCapture.jpeg(64, 48, 2), false);
+        capture.addRaw("--" + MjpegCapture.BOUNDARY + "--\r\n");
+
+        Collector collector = new Collector();
+        MjpegParser parser = new MjpegParser("--" + MjpegCapture.BOUNDARY, collector);
+        byte[] bytes = capture.bytes();
+        parser.feed(bytes, 0, bytes.length);
+
+        assertFrames(capture.frames, collector.frames);
+        assertEquals(3, parser.frameCount());
+        assertTrue(parser.skippedBytes() > 0);
+    }
+
+    @Test
+    public void framesDecode() throws Exception {
+        MjpegCapture capture = MjpegCapture.of(3, 320, 240, true);
+        for (byte[] frame : parse(MjpegCapture.BOUNDARY, capture.bytes(), 1500, 3).frames) {
+            assertEquals(320, ImageIO.read(new ByteArrayInputStream(frame)).getWidth());
+        }
+    }
+
+    @Test
+    public void reusesFrameBuffer() throws Exception {
+        final List<byte[]> buffers = new ArrayList<>();
+        MjpegParser parser = new MjpegParser(MjpegCapture.BOUNDARY, new MjpegParser.Listener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                buffers.add(data);
+            }
+        });
+        byte[] bytes = MjpegCapture.of(10, 160, 120, true).bytes();
+        parser.feed(bytes, 0, bytes.length);
+
+        assertEquals(10, buffers.size());
+        for (byte[] buffer : buffers) {
+            assertSame(buffers.get(0), buffer);
+        }
+    }
+}
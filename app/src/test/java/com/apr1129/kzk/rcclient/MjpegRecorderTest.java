@@ -0,0 +1,205 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MjpegRecorderTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("camera", ".mjpg");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        MjpegRecorder.indexOf(mFile).delete();
+    }
+
+    // Frame n: n + 100 bytes, each (byte)(n + i)
+    private static byte[] frame(int n) {
+        byte[] data = new byte[n + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(n + i);
+        }
+        return data;
+    }
+
+    private static ByteBuffer readIndex(File file) throws IOException {
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(MjpegRecorder.indexOf(file).toPath()));
+        index.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(MjpegRecorder.MAGIC, index.getInt(0));
+        assertEquals(MjpegRecorder.VERSION, index.getInt(4));
+        assertEquals(MjpegRecorder.RECORD_SIZE, index.getInt(8));
+        assertEquals(0, (index.capacity() - MjpegRecorder.HEADER_SIZE) % MjpegRecorder.RECORD_SIZE);
+        return index;
+    }
+
+    private static int recordAt(int i) {
+        return MjpegRecorder.HEADER_SIZE + i * MjpegRecorder.RECORD_SIZE;
+    }
+
+    @Test
+    public void frames_areWrittenUnchangedWithIndex() throws Exception {
+        MjpegRecorder recorder = new MjpegRecorder(mFile, 4);
+        byte[] buf = new byte[200 * 1024];
+        for (int n = 0; n < 50; n++) {
+            // Frames come from the middle of the receive buffer; some outgrow the slots
+            byte[] frame = n == 20 ? new byte[150 * 1024] : frame(n);
+            System.arraycopy(frame, 0, buf, 7, frame.length);
+            recorder.offer(buf, 7, frame.length, 1000 + n);
+            Thread.sleep(1);
+        }
+        recorder.close();
+        assertNull(recorder.error());
+        assertEquals(50, recorder.frames());
+        assertEquals(50 - recorder.droppedFrames(), recorder.writtenFrames());
+
+        byte[] video = Files.readAllBytes(mFile.toPath());
+        assertEquals(recorder.writtenBytes(), video.length);
+        ByteBuffer index = readIndex(mFile);
+        assertEquals(recorder.writtenFrames(), (index.capacity() - MjpegRecorder.HEADER_SIZE) / MjpegRecorder.RECORD_SIZE);
+
+        long position = 0;
+        for (int i = 0; i < recorder.writtenFrames(); i++) {
+            int pos = recordAt(i);
+            int n = (int)index.getLong(pos);
+            byte[] frame = n == 20 ? new byte[150 * 1024] : frame(n);
+            assertEquals(1000 + n, index.getLong(pos + 8));
+            assertEquals(position, index.getLong(pos + 16));
+            assertEquals(frame.length, index.getInt(pos + 24));
+            for (int j = 0; j < frame.length; j++) {
+                assertEquals(frame[j], video[(int)position + j]);
+            }
+            position += frame.length;
+        }
+    }
+
+    // Blocks every write until released, like a card which stalls
+    private static class StalledChannel implements WritableByteChannel {
+        final CountDownLatch released = new CountDownLatch(1);
+        long bytes = 0;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void slowStorage_dropsOldestWithoutBlocking() throws Exception {
+        StalledChannel video = new StalledChannel();
+        MjpegRecorder recorder = new MjpegRecorder(mFile, video, new FileOutputStream(
+                MjpegRecorder.indexOf(mFile)).getChannel(), 4);
+        byte[] frame = frame(1000);
+
+        // The first frame is taken by the writer, which stalls on it. The queue keeps the 4 newest.
+        long worst = 0;
+        for (int n = 0; n < 100; n++) {
+            long start = System.nanoTime();
+            recorder.offer(frame, 0, frame.length, n);
+            worst = Math.max(worst, System.nanoTime() - start);
+            if (n == 0) {
+                Thread.sleep(50);
+            }
+        }
+        assertTrue("offer took " + worst / 1000 + " us", worst < TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(0, recorder.writtenFrames());
+        assertEquals(100 - 1 - 4, recorder.droppedFrames());
+
+        video.released.countDown();
+        recorder.close();
+        assertEquals(5, recorder.writtenFrames());
+        assertEquals(5 * frame.length, video.bytes);
+
+        ByteBuffer index = readIndex(mFile);
+        long[] expected = {0, 96, 97, 98, 99};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], index.getLong(recordAt(i)));
+            assertEquals(expected[i], index.getLong(recordAt(i) + 8));
+        }
+    }
+
+    @Test
+    public void failedWrite_stopsRecording() throws Exception {
+        WritableByteChannel broken = new StalledChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("No space left on device");
+            }
+        };
+        MjpegRecorder recorder = new MjpegRecorder(mFile, broken, new FileOutputStream(
+                MjpegRecorder.indexOf(mFile)).getChannel(), 4);
+        byte[] frame = frame(10);
+        recorder.offer(frame, 0, frame.length, 0);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (recorder.error() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("No space left on device", recorder.error().getMessage());
+
+        recorder.offer(frame, 0, frame.length, 1);
+        recorder.close();
+        assertEquals(1, recorder.frames());
+        assertEquals(0, recorder.writtenFrames());
+    }
+
+    @Test
+    public void offer_doesNotAllocate() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+
+        MjpegRecorder recorder = new MjpegRecorder(mFile, MjpegRecorder.DEFAULT_QUEUE_CAPACITY);
+        byte[] frame = frame(30 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            recorder.offer(frame, 0, frame.length, i);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 5000; i++) {
+            recorder.offer(frame, 0, frame.length, i);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        recorder.close();
+        assertTrue("allocated " + allocated + " B", allocated < 16 * 1024);
+        assertNull(recorder.error());
+    }
+}
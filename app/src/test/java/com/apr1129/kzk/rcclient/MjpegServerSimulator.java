@@ -0,0 +1,204 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Local stand-in for the camera: serves MJPEG over HTTP like mjpg-streamer, with the stream
+// variant taken from the query, e.g. "/stream?width=640&height=480&fps=30".
+//
+// The link is simulated with a bandwidth and a buffer: frames are captured at the variant's
+// rate and leave after the frames queued before them, at the link's bandwidth. A frame which
+// would wait longer than the buffer holds is dropped at the camera. A variant the link cannot
+// carry fills the buffer, and every frame arrives up to that much late.
+//
+// Frames are not real JPEGs: width * height / 8 bytes, the first 8 of them the capture time
+// in System.nanoTime(), see captureNanosOf().
+public class MjpegServerSimulator {
+
+    public static final long DEFAULT_BUFFER = 800; // ms of queued data
+
+    private final ServerSocket mServer;
+    private final Thread mAcceptThread;
+    private volatile boolean mClosed = false;
+    private volatile Socket mClient;
+
+    private volatile long mBandwidth = 0; // bytes/s, 0 is unlimited
+    private volatile long mBuffer = DEFAULT_BUFFER;
+    private volatile int mRequests = 0;
+    private volatile String mLastPath;
+
+    public MjpegServerSimulator() throws IOException {
+        mServer = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "MjpegServerSimulator");
+    }
+
+    public MjpegServerSimulator start() {
+        mAcceptThread.start();
+        return this;
+    }
+
+    // URL template for VideoQualityController
+    public String template() {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + "/stream?width={width}&height={height}&fps={fps}";
+    }
+
+    // Takes effect on the next frame. 0 is unlimited.
+    public void setBandwidth(long bytes_per_second) {
+        mBandwidth = bytes_per_second;
+    }
+
+    public void setBuffer(long buffer_ms) {
+        mBuffer = buffer_ms;
+    }
+
+    public int requests() {
+        return mRequests;
+    }
+
+    // Path and query of the last request
+    public String lastPath() {
+        return mLastPath;
+    }
+
+    public static long captureNanosOf(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    public void close() throws InterruptedException {
+        mClosed = true;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        Socket client = mClient;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        mAcceptThread.join(1000);
+    }
+
+    // A thread for each client, so a reconnecting client does not wait for the old stream to fail
+    private void acceptLoop() {
+        while (!mClosed) {
+            final Socket client;
+            try {
+                client = mServer.accept();
+            } catch (IOException e) {
+                // Server closed
+                return;
+            }
+            mClient = client;
+            mRequests++;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (IOException e) {
+                        // Client went away
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }, "MjpegServerSimulator-client").start();
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        String path = readRequest(client.getInputStream());
+        mLastPath = path;
+        int width = queryParameter(path, "width", 640);
+        int height = queryParameter(path, "height", 480);
+        int fps = queryParameter(path, "fps", 30);
+
+        OutputStream out = client.getOutputStream();
+        out.write(("HTTP/1.0 200 OK\r\n"
+                + "Content-Type: " + MjpegCapture.CONTENT_TYPE + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        byte[] frame = new byte[Math.max(16, width * height / 8)];
+        long interval = TimeUnit.SECONDS.toNanos(1) / fps;
+        long start = System.nanoTime();
+        long link_free = start; // when the link has sent everything queued so far
+        for (long k = 0; !mClosed; k++) {
+            long capture = start + k * interval;
+            long bandwidth = mBandwidth;
+            long transfer = bandwidth > 0 ? frame.length * TimeUnit.SECONDS.toNanos(1) / bandwidth : 0;
+            long depart = Math.max(link_free, capture) + transfer;
+            if (depart - capture - transfer > TimeUnit.MILLISECONDS.toNanos(mBuffer)) {
+                // The buffer is full, the camera skips this frame
+                continue;
+            }
+            link_free = depart;
+
+            long wait = depart - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (int i = 0; i < 8; i++) {
+                frame[i] = (byte)(capture >>> (56 - i * 8));
+            }
+            out.write(MjpegCapture.part(frame, true));
+            out.flush();
+        }
+    }
+
+    // Returns the path of "GET <path> HTTP/1.x" and skips the headers
+    private static String readRequest(InputStream in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            request.append((char)b);
+            if (request.length() >= 4 && request.substring(request.length() - 4).equals("\r\n\r\n")) {
+                break;
+            }
+        }
+        String[] parts = request.toString().split(" ");
+        if (parts.length < 2 || !parts[0].equals("GET")) {
+            throw new IOException("Bad request");
+        }
+        return parts[1];
+    }
+
+    private static int queryParameter(String path, String name, int default_value) {
+        int query = path.indexOf('?');
+        if (query < 0) {
+            return default_value;
+        }
+        for (String parameter : path.substring(query + 1).split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return Integer.parseInt(parameter.substring(name.length() + 1));
+            }
+        }
+        return default_value;
+    }
+}
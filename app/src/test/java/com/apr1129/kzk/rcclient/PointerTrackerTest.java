@@ -0,0 +1,105 @@
+package com.apr1129.kzk.rcclient;
+
+import android.view.MotionEvent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PointerTrackerTest {
+
+    private static final float SCREEN_WIDTH = 1920;
+    private static final float LEFT = 300;
+    private static final float RIGHT = 1600;
+
+    private static SessionReplay.TouchInput event(int action, int action_index, int[] ids, float[] x) {
+        return new SessionReplay.TouchInput(0, action, action_index, ids, x, new float[x.length]);
+    }
+
+    @Test
+    public void thumbDriftingAcrossCenter_keepsItsSide() {
+        PointerTracker tracker = new PointerTracker(SCREEN_WIDTH);
+        tracker.onEvent(event(MotionEvent.ACTION_DOWN, 0, new int[]{0}, new float[]{LEFT}));
+        SessionReplay.TouchInput move = event(MotionEvent.ACTION_MOVE, 0, new int[]{0}, new float[]{RIGHT});
+        tracker.onEvent(move);
+        assertEquals(PointerTracker.CHANNEL_LEFT, tracker.channelOf(0));
+        assertEquals(0, tracker.indexOf(move, PointerTracker.CHANNEL_LEFT));
+        assertEquals(-1, tracker.indexOf(move, PointerTracker.CHANNEL_RIGHT));
+    }
+
+    @Test
+    public void firstFingerLifting_remainingOneKeepsItsSide() {
+        PointerTracker tracker = new PointerTracker(SCREEN_WIDTH);
+        tracker.onEvent(event(MotionEvent.ACTION_DOWN, 0, new int[]{4}, new float[]{LEFT}));
+        tracker.onEvent(event(MotionEvent.ACTION_POINTER_DOWN, 1, new int[]{4, 9}, new float[]{LEFT, RIGHT}));
+        assertEquals(2, tracker.count());
+
+        // The left thumb lifts, its pointer is released in the same event
+        SessionReplay.TouchInput up = event(MotionEvent.ACTION_POINTER_UP, 0, new int[]{4, 9}, new float[]{LEFT, RIGHT});
+        tracker.onEvent(up);
+        assertEquals(1, tracker.count());
+        assertEquals(-1, tracker.indexOf(up, PointerTracker.CHANNEL_LEFT));
+        assertEquals(1, tracker.indexOf(up, PointerTracker.CHANNEL_RIGHT));
+
+        // Afterwards the right thumb is at index 0, and still drives the right side
+        SessionReplay.TouchInput move = event(MotionEvent.ACTION_MOVE, 0, new int[]{9}, new float[]{RIGHT});
+        tracker.onEvent(move);
+        assertEquals(-1, tracker.indexOf(move, PointerTracker.CHANNEL_LEFT));
+        assertEquals(0, tracker.indexOf(move, PointerTracker.CHANNEL_RIGHT));
+    }
+
+    @Test
+    public void secondFingerOnDrivenSide_drivesNothing() {
+        PointerTracker tracker = new PointerTracker(SCREEN_WIDTH);
+        tracker.onEvent(event(MotionEvent.ACTION_DOWN, 0, new int[]{0}, new float[]{LEFT}));
+        tracker.onEvent(event(MotionEvent.ACTION_POINTER_DOWN, 1, new int[]{0, 1}, new float[]{LEFT, LEFT + 100}));
+        assertEquals(PointerTracker.CHANNEL_NONE, tracker.channelOf(1));
+
+        // Not even after the first finger lifted
+        tracker.onEvent(event(MotionEvent.ACTION_POINTER_UP, 0, new int[]{0, 1}, new float[]{LEFT, LEFT + 100}));
+        SessionReplay.TouchInput move = event(MotionEvent.ACTION_MOVE, 0, new int[]{1}, new float[]{LEFT + 100});
+        tracker.onEvent(move);
+        assertEquals(1, tracker.count());
+        assertEquals(-1, tracker.indexOf(move, PointerTracker.CHANNEL_LEFT));
+
+        // A new finger landing there takes the side over
+        tracker.onEvent(event(MotionEvent.ACTION_POINTER_DOWN, 0, new int[]{0, 1}, new float[]{LEFT, LEFT + 100}));
+        assertEquals(PointerTracker.CHANNEL_LEFT, tracker.channelOf(0));
+    }
+
+    @Test
+    public void cancelAndDown_forgetAllPointers() {
+        PointerTracker tracker = new PointerTracker(SCREEN_WIDTH);
+        tracker.onEvent(event(MotionEvent.ACTION_DOWN, 0, new int[]{0}, new float[]{LEFT}));
+        tracker.onEvent(event(MotionEvent.ACTION_POINTER_DOWN, 1, new int[]{0, 1}, new float[]{LEFT, RIGHT}));
+        tracker.onEvent(event(MotionEvent.ACTION_CANCEL, 0, new int[]{0, 1}, new float[]{LEFT, RIGHT}));
+        assertEquals(0, tracker.count());
+        assertEquals(PointerTracker.CHANNEL_NONE, tracker.channelOf(0));
+
+        // A missed up event: the next ACTION_DOWN starts over
+        tracker.onEvent(event(MotionEvent.ACTION_DOWN, 0, new int[]{0}, new float[]{LEFT}));
+        tracker.onEvent(event(MotionEvent.ACTION_DOWN, 0, new int[]{3}, new float[]{LEFT}));
+        assertEquals(1, tracker.count());
+        assertEquals(PointerTracker.CHANNEL_LEFT, tracker.channelOf(3));
+    }
+
+    @Test
+    public void pointersBeyondCapacity_areIgnored() {
+        PointerTracker tracker = new PointerTracker(SCREEN_WIDTH);
+        int[] ids = new int[PointerTracker.MAX_POINTERS + 1];
+        float[] x = new float[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+            x[i] = RIGHT;
+        }
+        tracker.onEvent(event(MotionEvent.ACTION_DOWN, 0, new int[]{0}, new float[]{RIGHT}));
+        for (int i = 1; i < ids.length; i++) {
+            tracker.onEvent(event(MotionEvent.ACTION_POINTER_DOWN, i, ids, x));
+        }
+        assertEquals(PointerTracker.MAX_POINTERS, tracker.count());
+        assertEquals(PointerTracker.CHANNEL_RIGHT, tracker.channelOf(0));
+
+        tracker.onEvent(event(MotionEvent.ACTION_UP, 0, new int[]{0}, new float[]{RIGHT}));
+        assertEquals(0, tracker.count());
+    }
+}
@@ -0,0 +1,26 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PowerMappingTest {
+
+    @Test
+    public void absolutePower() {
+        assertEquals(1024, PowerMapping.absolutePower(0, 540));
+        assertEquals(0, PowerMapping.absolutePower(540, 540));
+        assertEquals(512, PowerMapping.absolutePower(270, 540));
+        assertEquals(512, PowerMapping.absolutePower(810, 540));
+        assertEquals(1024, PowerMapping.absolutePower(1080, 540));
+    }
+
+    @Test
+    public void signedPower() {
+        assertEquals(1024, PowerMapping.signedPower(0, 540f));
+        assertEquals(0, PowerMapping.signedPower(540, 540f));
+        assertEquals(512, PowerMapping.signedPower(270, 540f));
+        assertEquals(-512, PowerMapping.signedPower(810, 540f));
+        assertEquals(-1024, PowerMapping.signedPower(1080, 540f));
+    }
+}
@@ -0,0 +1,67 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class ProtocolNegotiatorTest {
+
+    // Accepts one connection, reads the hello line and optionally answers it
+    private static Thread serve(final ServerSocket server, final boolean answer) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket s = server.accept()) {
+                    InputStream in = s.getInputStream();
+                    int b;
+                    while ((b = in.read()) >= 0 && b != '\n') {
+                        // skip hello
+                    }
+                    if (answer) {
+                        s.getOutputStream().write(ProtocolNegotiator.HELLO_ACK);
+                        s.getOutputStream().flush();
+                    }
+                    // Keep the connection open until the client closes it
+                    while (in.read() >= 0) {
+                        // drain
+                    }
+                } catch (IOException e) {
+                    // client went away
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static CommandEncoder negotiateWith(boolean answer) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread t = serve(server, answer);
+            CommandEncoder encoder;
+            TcpTransport transport = new TcpTransport();
+            try {
+                transport.connect("127.0.0.1", server.getLocalPort());
+                encoder = ProtocolNegotiator.negotiate(transport, 200);
+            } finally {
+                transport.close();
+            }
+            t.join(1000);
+            return encoder;
+        }
+    }
+
+    @Test
+    public void negotiate_binaryServer() throws Exception {
+        assertTrue(negotiateWith(true) instanceof BinaryCommandEncoder);
+    }
+
+    @Test
+    public void negotiate_textServerFallsBack() throws Exception {
+        assertTrue(negotiateWith(false) instanceof TextCommandEncoder);
+    }
+}
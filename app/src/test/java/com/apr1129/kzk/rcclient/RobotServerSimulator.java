@@ -0,0 +1,572 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Local stand-in for the robot. Speaks the "MV" text protocol, the binary protocol
+// (after the handshake, if enabled) over TCP, and binary frames over UDP on the same port.
+//
+// Link impairments are applied between receiving a command and "executing" it:
+// - delay/jitter: added to every command
+// - loss: UDP commands are dropped, TCP commands are held for a retransmission timeout
+//   and block every command behind them
+// - bandwidth: the TCP reader is throttled, so the client's send buffer backs up
+//
+// PINGs are answered with PONGs. For them the delay is split evenly between the two
+// directions, and the robot clock runs setClockOffset() ms ahead of System.nanoTime() in ms.
+// Binary move frames with FLAG_ACK are acknowledged with OP_ACK once read, after the same delay.
+// streamTelemetry() sends readings on the TCP connection, in its protocol.
+public class RobotServerSimulator {
+
+    public interface Listener {
+        // key: per connection ordinal for TCP (connection << 32 | ordinal), sequence number for UDP
+        void onCommand(long key, int left_power, int right_power, long executed_nanos);
+    }
+
+    public static final long TCP_RETRANSMIT_TIMEOUT = 200; // ms
+
+    private final ServerSocket mServer;
+    private final DatagramSocket mUdp;
+    private final boolean mBinaryCapable;
+    private final DelayQueue<Command> mQueue = new DelayQueue<>();
+    private final Random mRandom = new Random(1129);
+    private final Thread mAcceptThread;
+    private final Thread mUdpThread;
+    private final Thread mExecuteThread;
+    private volatile boolean mClosed = false;
+    private volatile Socket mClient;
+    private volatile Listener mListener;
+
+    private volatile long mDelay = 0;
+    private volatile long mJitter = 0;
+    private volatile double mLossRate = 0;
+    private volatile long mBandwidth = 0; // bytes/s, 0 is unlimited
+    private volatile long mClockOffset = 0; // ms
+    private volatile boolean mAnswerPings = true;
+    private volatile boolean mAnswerAcks = true;
+    private final ScheduledExecutorService mReplies = Executors.newSingleThreadScheduledExecutor();
+    private volatile long mPings = 0;
+    private volatile long mAcks = 0;
+    private final ScheduledExecutorService mTelemetryExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> mTelemetryTask;
+    private volatile OutputStream mOut;
+    private volatile boolean mOutBinary = false;
+    private volatile long mTelemetrySent = 0;
+
+    // Statistics
+    private volatile int mConnections = 0;
+    private volatile long mExecuted = 0;
+    private volatile long mLost = 0;
+    private volatile long mStale = 0;
+    private final AtomicLong mBytes = new AtomicLong(0);
+    private final AtomicLong mOrder = new AtomicLong(0);
+    private volatile long mLastDropNanos = 0;
+    private final long[] mReconnectMs = new long[64];
+    private volatile int mReconnectCount = 0;
+    private volatile boolean mAwaitingReconnect = false;
+
+    public RobotServerSimulator(boolean binary_capable) throws IOException {
+        mBinaryCapable = binary_capable;
+        mServer = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+        mUdp = new DatagramSocket(new InetSocketAddress("127.0.0.1", mServer.getLocalPort()));
+
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "RobotServerSimulator-accept");
+        mUdpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                udpLoop();
+            }
+        }, "RobotServerSimulator-udp");
+        mExecuteThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executeLoop();
+            }
+        }, "RobotServerSimulator-execute");
+    }
+
+    public RobotServerSimulator start() {
+        mAcceptThread.start();
+        mUdpThread.start();
+        mExecuteThread.start();
+        return this;
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setDelay(long delay_ms, long jitter_ms) {
+        mDelay = delay_ms;
+        mJitter = jitter_ms;
+    }
+
+    public void setLossRate(double loss_rate) {
+        mLossRate = loss_rate;
+    }
+
+    public void setBandwidth(long bytes_per_second) {
+        mBandwidth = bytes_per_second;
+    }
+
+    public void setClockOffset(long offset_ms) {
+        mClockOffset = offset_ms;
+    }
+
+    // false: behave like a robot which does not know PING
+    public void setAnswerPings(boolean answer) {
+        mAnswerPings = answer;
+    }
+
+    // false: behave like a robot which does not know FLAG_ACK
+    public void setAnswerAcks(boolean answer) {
+        mAnswerAcks = answer;
+    }
+
+    // OP_ACK frames sent
+    public long ackCount() {
+        return mAcks;
+    }
+
+    public long pingCount() {
+        return mPings;
+    }
+
+    // Sends a reading every interval_us on the current TCP connection until stopTelemetry().
+    // Reading n is telemetryReading(n), with sequence number n.
+    public synchronized void streamTelemetry(long interval_us) {
+        stopTelemetry();
+        mTelemetryTask = mTelemetryExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sendTelemetry();
+            }
+        }, 0, interval_us, TimeUnit.MICROSECONDS);
+    }
+
+    // Returns after the last reading was sent
+    public synchronized void stopTelemetry() {
+        if (mTelemetryTask != null) {
+            mTelemetryTask.cancel(false);
+            mTelemetryTask = null;
+            try {
+                mTelemetryExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }).get();
+            } catch (Exception e) {
+                // Closed
+            }
+        }
+    }
+
+    // Readings sent on any connection
+    public long telemetrySent() {
+        return mTelemetrySent;
+    }
+
+    // The Telemetry snapshot of reading n
+    public static long telemetryReading(long n) {
+        int speed = (int)(n % 1000);
+        return Telemetry.pack(speed, -speed, 12000 - speed, (int)(n % 3000));
+    }
+
+    // Closes the current TCP connection as a Wi-Fi roam would
+    public void dropConnection() throws IOException {
+        Socket client = mClient;
+        if (client != null) {
+            mLastDropNanos = System.nanoTime();
+            mAwaitingReconnect = true;
+            client.close();
+        }
+    }
+
+    public int connections() {
+        return mConnections;
+    }
+
+    public long executedCount() {
+        return mExecuted;
+    }
+
+    public long lostCount() {
+        return mLost;
+    }
+
+    public long staleCount() {
+        return mStale;
+    }
+
+    public long bytesReceived() {
+        return mBytes.get();
+    }
+
+    // Time from dropConnection() to the first command executed on the next connection
+    public long[] reconnectTimesMs() {
+        int n = Math.min(mReconnectCount, mReconnectMs.length);
+        long[] ret = new long[n];
+        System.arraycopy(mReconnectMs, 0, ret, 0, n);
+        return ret;
+    }
+
+    public void close() throws InterruptedException {
+        mClosed = true;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        mUdp.close();
+        Socket client = mClient;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        mExecuteThread.interrupt();
+        mReplies.shutdownNow();
+        mTelemetryExecutor.shutdownNow();
+        mAcceptThread.join(1000);
+        mUdpThread.join(1000);
+        mExecuteThread.join(1000);
+    }
+
+    private void acceptLoop() {
+        while (!mClosed) {
+            try {
+                Socket client = mServer.accept();
+                client.setTcpNoDelay(true);
+                mClient = client;
+                int connection = ++mConnections;
+                serve(client, connection);
+            } catch (IOException e) {
+                // Connection dropped or server closed. Wait for the next one.
+            }
+        }
+    }
+
+    private void serve(Socket client, int connection) throws IOException {
+        InputStream in = client.getInputStream();
+        OutputStream out = client.getOutputStream();
+        byte[] line = new byte[64];
+        int line_len = 0;
+        byte[] frame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        int frame_len = 0;
+        boolean binary = false;
+        long ordinal = 0;
+        long last_execute = 0;
+        byte[] buf = new byte[256];
+        mOutBinary = false;
+        mOut = out;
+
+        try {
+            while (true) {
+                int n = in.read(buf, 0, throttledReadSize(buf.length));
+                if (n < 0) {
+                    break;
+                }
+                mBytes.addAndGet(n);
+                throttle(n);
+
+                for (int i = 0; i < n; i++) {
+                    byte b = buf[i];
+                    if (binary) {
+                        frame[frame_len++] = b;
+                        if (frame_len == frame.length) {
+                            frame_len = 0;
+                            if (BinaryCommandEncoder.opcodeOf(frame, 0) == BinaryCommandEncoder.OP_PING) {
+                                pong(out, null, BinaryCommandEncoder.sequenceOf(frame, 0), true);
+                            } else {
+                                if ((BinaryCommandEncoder.flagsOf(frame, 0) & BinaryCommandEncoder.FLAG_ACK) != 0) {
+                                    ack(out, BinaryCommandEncoder.sequenceOf(frame, 0));
+                                }
+                                last_execute = schedule(connection, ++ordinal, BinaryCommandEncoder.leftPowerOf(frame, 0),
+                                        BinaryCommandEncoder.rightPowerOf(frame, 0), last_execute, true);
+                            }
+                        }
+                    } else if (b == '\n') {
+                        String text = new String(line, 0, line_len, "US-ASCII");
+                        line_len = 0;
+                        if (text.equals("HELLO BIN1")) {
+                            if (mBinaryCapable) {
+                                synchronized (out) {
+                                    out.write(ProtocolNegotiator.HELLO_ACK);
+                                    out.flush();
+                                }
+                                binary = true;
+                                mOutBinary = true;
+                            }
+                        } else if (text.startsWith("PING ")) {
+                            pong(out, null, Integer.parseInt(text.substring(5)), false);
+                        } else if (text.startsWith("MV ")) {
+                            String[] parts = text.split(" ");
+                            last_execute = schedule(connection, ++ordinal, Integer.parseInt(parts[1]),
+                                    Integer.parseInt(parts[2]), last_execute, true);
+                        }
+                    } else if (line_len < line.length) {
+                        line[line_len++] = b;
+                    }
+                }
+            }
+        } finally {
+            if (mOut == out) {
+                mOut = null;
+            }
+            client.close();
+        }
+    }
+
+    private void sendTelemetry() {
+        OutputStream out = mOut;
+        if (out == null) {
+            return;
+        }
+        long n = mTelemetrySent;
+        long reading = telemetryReading(n);
+        try {
+            byte[] data;
+            if (mOutBinary) {
+                data = new byte[BinaryCommandEncoder.FRAME_SIZE];
+                BinaryCommandEncoder.encodeTelemetry(data, 0, (int)n & 0xffff, Telemetry.leftSpeedOf(reading),
+                        Telemetry.rightSpeedOf(reading), Telemetry.batteryOf(reading), Telemetry.rangeOf(reading));
+            } else {
+                data = ("TM " + (n & 0xffff) + " " + Telemetry.leftSpeedOf(reading) + " " + Telemetry.rightSpeedOf(reading)
+                        + " " + Telemetry.batteryOf(reading) + " " + Telemetry.rangeOf(reading) + "\n").getBytes("US-ASCII");
+            }
+            synchronized (out) {
+                out.write(data);
+                out.flush();
+            }
+            mTelemetrySent = n + 1;
+        } catch (IOException e) {
+            // Connection gone
+        }
+    }
+
+    private void udpLoop() {
+        byte[] buf = new byte[1500];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!mClosed) {
+            try {
+                mUdp.receive(packet);
+            } catch (IOException e) {
+                break;
+            }
+            mBytes.addAndGet(packet.getLength());
+            if (packet.getLength() != BinaryCommandEncoder.FRAME_SIZE) {
+                continue;
+            }
+            if (mRandom.nextDouble() < mLossRate) {
+                mLost++;
+                continue;
+            }
+            if (BinaryCommandEncoder.opcodeOf(buf, 0) == BinaryCommandEncoder.OP_PING) {
+                pong(null, packet.getSocketAddress(), BinaryCommandEncoder.sequenceOf(buf, 0), true);
+                continue;
+            }
+            int seq = BinaryCommandEncoder.sequenceOf(buf, 0);
+            schedule(0, seq, BinaryCommandEncoder.leftPowerOf(buf, 0), BinaryCommandEncoder.rightPowerOf(buf, 0), 0, false);
+        }
+    }
+
+    private long robotClock() {
+        return (TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + mClockOffset) & 0xffffffffL;
+    }
+
+    // Answers a ping over TCP (out) or UDP (address) after the round trip delay
+    private void pong(final OutputStream out, final SocketAddress address, final int seq, final boolean binary) {
+        mPings++;
+        if (!mAnswerPings) {
+            return;
+        }
+        long delay = mDelay + (mJitter > 0 ? (long)(mRandom.nextDouble() * mJitter) : 0);
+        if (out != null && mRandom.nextDouble() < mLossRate) {
+            delay += TCP_RETRANSMIT_TIMEOUT;
+        }
+
+        // Received half way, answered right away, back after the other half
+        final long received = (robotClock() + delay / 2) & 0xffffffffL;
+        final long sent = received;
+        mReplies.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] reply;
+                    if (binary) {
+                        reply = new byte[BinaryCommandEncoder.FRAME_SIZE];
+                        BinaryCommandEncoder.encodePong(reply, 0, seq, received, sent);
+                    } else {
+                        reply = ("PONG " + seq + " " + received + " " + sent + "\n").getBytes("US-ASCII");
+                    }
+                    if (out != null) {
+                        synchronized (out) {
+                            out.write(reply);
+                            out.flush();
+                        }
+                    } else {
+                        mUdp.send(new DatagramPacket(reply, reply.length, address));
+                    }
+                } catch (IOException e) {
+                    // Connection gone
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Acknowledges a move frame which has just been read, after the round trip delay
+    private void ack(final OutputStream out, int seq) {
+        if (!mAnswerAcks) {
+            return;
+        }
+        long delay = mDelay + (mJitter > 0 ? (long)(mRandom.nextDouble() * mJitter) : 0);
+        final byte[] reply = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        BinaryCommandEncoder.encodeAck(reply, 0, seq, (robotClock() + delay / 2) & 0xffffffffL);
+        mReplies.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (out) {
+                        out.write(reply);
+                        out.flush();
+                    }
+                    mAcks++;
+                } catch (IOException e) {
+                    // Connection gone
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns the time at which the command will be executed
+    private long schedule(int connection, long ordinal, int left, int right, long last_execute, boolean tcp) {
+        long now = System.nanoTime();
+        long delay = mDelay + (mJitter > 0 ? (long)(mRandom.nextDouble() * mJitter) : 0);
+        long execute = now + TimeUnit.MILLISECONDS.toNanos(delay);
+        if (tcp) {
+            if (mRandom.nextDouble() < mLossRate) {
+                // Lost segment: redelivered after the retransmission timeout
+                execute += TimeUnit.MILLISECONDS.toNanos(TCP_RETRANSMIT_TIMEOUT);
+            }
+            // In-order delivery: nothing overtakes a delayed command
+            execute = Math.max(execute, last_execute);
+        }
+
+        long key = tcp ? ((long)connection << 32) | ordinal : ordinal;
+        mQueue.put(new Command(key, left, right, execute, tcp ? -1 : (int)ordinal, mOrder.incrementAndGet()));
+        return execute;
+    }
+
+    private void executeLoop() {
+        boolean has_sequence = false;
+        int last_sequence = 0;
+        while (!mClosed) {
+            Command command;
+            try {
+                command = mQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (command.sequence >= 0) {
+                // UDP: drop what arrives after a newer command
+                if (has_sequence && !BinaryCommandEncoder.isNewer(command.sequence, last_sequence)) {
+                    mStale++;
+                    continue;
+                }
+                has_sequence = true;
+                last_sequence = command.sequence;
+            }
+
+            long now = System.nanoTime();
+            mExecuted++;
+            if (mAwaitingReconnect && (command.key >>> 32) == mConnections && mConnections > 1) {
+                mAwaitingReconnect = false;
+                if (mReconnectCount < mReconnectMs.length) {
+                    mReconnectMs[mReconnectCount] = TimeUnit.NANOSECONDS.toMillis(now - mLastDropNanos);
+                }
+                mReconnectCount++;
+            }
+
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onCommand(command.key, command.left, command.right, now);
+            }
+        }
+    }
+
+    private int throttledReadSize(int max) {
+        // Read small chunks when throttled so the rate is smooth
+        return mBandwidth > 0 ? Math.min(max, 16) : max;
+    }
+
+    private void throttle(int bytes) {
+        long bandwidth = mBandwidth;
+        if (bandwidth <= 0) {
+            return;
+        }
+        long nanos = bytes * 1000000000L / bandwidth;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Command implements Delayed {
+        final long key;
+        final int left;
+        final int right;
+        final long execute;
+        final int sequence;
+        final long order;
+
+        Command(long key, int left, int right, long execute, int sequence, long order) {
+            this.key = key;
+            this.left = left;
+            this.right = right;
+            this.execute = execute;
+            this.sequence = sequence;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(execute - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Command other = (Command)o;
+            int c = Long.compare(execute, other.execute);
+            return c != 0 ? c : Long.compare(order, other.order);
+        }
+    }
+}
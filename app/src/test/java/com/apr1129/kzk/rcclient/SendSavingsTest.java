@@ -0,0 +1,101 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SendSavingsTest {
+
+    // Counts the bytes written, without a connection
+    private static class CountingTransport implements Transport {
+        int writes = 0;
+
+        @Override
+        public void connect(String address, int port) {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            writes++;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len, int timeout_ms) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Ticks the sender every 10 ms with the same command
+    private static void drive(ControlSender sender, long from_ms, long to_ms, int left_power, int right_power)
+            throws IOException {
+        for (long now = from_ms; now < to_ms; now += 10) {
+            sender.tick(now, left_power, right_power);
+        }
+    }
+
+    @Test
+    public void fixedRate_savesNothing() {
+        SendSavings savings = new SendSavings(100);
+        for (long now = 0; now <= 1000; now += 100) {
+            savings.onSent(now, 8);
+        }
+        assertEquals(11, savings.baselinePackets());
+        assertEquals(0, savings.savedPackets());
+        assertEquals(0, savings.savedBytes());
+    }
+
+    @Test
+    public void idleTicks_countAsSaved() {
+        SendSavings savings = new SendSavings(100);
+        savings.onSent(0, 8);
+        savings.onTick(1000);
+        savings.onSent(2000, 8);
+        assertEquals(21, savings.baselinePackets());
+        assertEquals(19, savings.savedPackets());
+        assertEquals(19 * 8, savings.savedBytes());
+        assertTrue(savings.summary().contains("saved 19 packets 152 B"));
+
+        savings.reset();
+        assertEquals(0, savings.baselinePackets());
+        assertEquals(0, savings.savedPackets());
+    }
+
+    @Test
+    public void unchangedCommands_sentAtKeepaliveRate() throws Exception {
+        CountingTransport transport = new CountingTransport();
+        SendSavings savings = new SendSavings(100);
+        ControlSender sender = new ControlSender(transport, false, new AdaptiveScheduler(10, 250, 1000));
+        sender.setSendSavings(savings);
+
+        // Stopped for 3 s: the first stop and a keepalive every second
+        drive(sender, 0, 3000, 0, 0);
+        assertEquals(3, transport.writes);
+
+        // The first change goes out on the next tick, a held command every 250 ms
+        sender.tick(3000, 300, 300);
+        assertTrue(sender.sentOnLastTick());
+        drive(sender, 3010, 4000, 300, 300);
+        assertEquals(3 + 4, transport.writes);
+
+        // Changes go out every tick
+        for (long now = 4000; now < 4100; now += 10) {
+            sender.tick(now, (int)now - 3000, 300);
+            assertTrue(sender.sentOnLastTick());
+        }
+
+        assertEquals(17, savings.packets());
+        assertEquals(transport.writes, savings.packets());
+        assertEquals(41 - 17, savings.savedPackets());
+    }
+}
@@ -0,0 +1,439 @@
+package com.apr1129.kzk.rcclient;
+
+import android.view.MotionEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Replays a touch session through the RcClient2 input and sender logic (TouchMapping ->
+// ControlSender -> Transport) against a RobotServerSimulator, on a virtual clock.
+//
+// The virtual clock jumps from one input event or scheduled tick to the next, and the sender only
+// ever sees virtual times. The commands emitted therefore depend on nothing but the session and
+// the scheduler: a run at any speed, or over another transport, must produce the identical stream.
+// A run with another scheduler is compared by how long the robot's powers differ (mismatchMillis)
+// and by how quickly input changes reach the wire (Result.response).
+//
+// Like RcClient2, one thread handles both the input events and the ticks. Ties go to the input.
+public class SessionReplay {
+
+    public static final float SCREEN_WIDTH = 1920;
+    public static final float SCREEN_HEIGHT = 1080;
+    public static final double FASTEST = 0; // speed: don't wait for the virtual clock
+    public static final long VIRTUAL_ORIGIN = 1000000; // ms, like an uptime clock well past boot
+    public static final long DEFAULT_TAIL = 500; // ms replayed after the last input
+
+    // One MotionEvent: its masked action and the ID and position of each pointer, and the samples
+    // batched into it, if any
+    public static class TouchInput implements TouchMapping.Samples {
+        public final long time_ms; // since the start of the session
+        public final int action;
+        public final int action_index;
+        public final int[] ids;
+        public final float[] x;
+        public final float[] y;
+        public final long[] history_ms; // batched sample times, oldest first
+        public final float[][] history_x; // [pointer][sample]
+        public final float[][] history_y;
+
+        public TouchInput(long time_ms, int action, int action_index, int[] ids, float[] x, float[] y) {
+            this(time_ms, action, action_index, ids, x, y, new long[0], new float[x.length][0], new float[y.length][0]);
+        }
+
+        public TouchInput(long time_ms, int action, int action_index, int[] ids, float[] x, float[] y,
+                long[] history_ms, float[][] history_x, float[][] history_y) {
+            this.time_ms = time_ms;
+            this.action = action;
+            this.action_index = action_index;
+            this.ids = ids;
+            this.x = x;
+            this.y = y;
+            this.history_ms = history_ms;
+            this.history_x = history_x;
+            this.history_y = history_y;
+        }
+
+        @Override
+        public int action() {
+            return action;
+        }
+
+        @Override
+        public int actionIndex() {
+            return action_index;
+        }
+
+        @Override
+        public int pointerCount() {
+            return x.length;
+        }
+
+        @Override
+        public int pointerId(int pointer) {
+            return ids[pointer];
+        }
+
+        @Override
+        public int historySize() {
+            return history_ms.length;
+        }
+
+        @Override
+        public float x(int pointer, int h) {
+            return h < history_ms.length ? history_x[pointer][h] : x[pointer];
+        }
+
+        @Override
+        public float y(int pointer, int h) {
+            return h < history_ms.length ? history_y[pointer][h] : y[pointer];
+        }
+
+        @Override
+        public long timeNanos(int h) {
+            return (h < history_ms.length ? history_ms[h] : time_ms) * 1000000L;
+        }
+    }
+
+    public static class Command {
+        public final long time_ms; // since the start of the session
+        public final int left;
+        public final int right;
+
+        public Command(long time_ms, int left, int right) {
+            this.time_ms = time_ms;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Command)) {
+                return false;
+            }
+            Command other = (Command)o;
+            return time_ms == other.time_ms && left == other.left && right == other.right;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)time_ms * 31 * 31 + left * 31 + right;
+        }
+
+        @Override
+        public String toString() {
+            return time_ms + ":(" + left + "," + right + ")";
+        }
+    }
+
+    public static class Result {
+        public final List<Command> commands = new ArrayList<>();
+        // Virtual time from an input changing the powers to the next command written, which carries
+        // them or newer ones, us
+        public final LatencyHistogram response = new LatencyHistogram();
+        // Real duration of the ticks which wrote a command, us
+        public final LatencyHistogram writes = new LatencyHistogram();
+        public long durationMs; // virtual
+        public long elapsedMs; // real
+        public long received; // commands executed by the simulator
+
+        public boolean identicalTo(Result other) {
+            return commands.equals(other.commands);
+        }
+
+        // Index of the first command which differs, -1 if identical
+        public int firstDifference(Result other) {
+            int n = Math.min(commands.size(), other.commands.size());
+            for (int i = 0; i < n; i++) {
+                if (!commands.get(i).equals(other.commands.get(i))) {
+                    return i;
+                }
+            }
+            return commands.size() == other.commands.size() ? -1 : n;
+        }
+
+        public long mismatchMillis(Result other) {
+            return SessionReplay.mismatchMillis(commands, other.commands, Math.max(durationMs, other.durationMs));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("commands=%d received=%d virtual=%dms real=%dms response[us] p50=%d p99=%d max=%d write[us] p50=%d p99=%d",
+                    commands.size(), received, durationMs, elapsedMs,
+                    response.percentile(0.5), response.percentile(0.99), response.max(),
+                    writes.percentile(0.5), writes.percentile(0.99));
+        }
+    }
+
+    private final RobotServerSimulator mServer;
+    private final boolean mUdp;
+    private final boolean mBinary;
+    private double mSpeed = 1;
+    private long mTail = DEFAULT_TAIL;
+
+    public SessionReplay(RobotServerSimulator server, boolean udp, boolean binary) {
+        mServer = server;
+        mUdp = udp;
+        mBinary = binary;
+    }
+
+    // 1 is real time, 10 ten times faster, FASTEST as fast as the sender goes
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    public void setTail(long tail_ms) {
+        mTail = tail_ms;
+    }
+
+    // scheduler: a fresh instance, schedulers keep state between ticks
+    public Result run(List<TouchInput> session, DispatchScheduler scheduler) throws IOException, InterruptedException {
+        final Result result = new Result();
+        final long[] received = {0};
+        mServer.setListener(new RobotServerSimulator.Listener() {
+            @Override
+            public void onCommand(long key, int left_power, int right_power, long executed_nanos) {
+                synchronized (received) {
+                    received[0]++;
+                    received.notifyAll();
+                }
+            }
+        });
+
+        ControlSender sender = new ControlSender(mUdp ? new UdpTransport() : new TcpTransport(), mUdp, scheduler);
+        sender.setBinaryProtocolEnabled(mBinary);
+        TouchMapping mapping = new TouchMapping(SCREEN_WIDTH, SCREEN_HEIGHT);
+        result.durationMs = (session.isEmpty() ? 0 : session.get(session.size() - 1).time_ms) + mTail;
+        long end = VIRTUAL_ORIGIN + result.durationMs;
+
+        // Powers the mapping currently asks for, and the changes not written yet
+        int target_left = 0, target_right = 0;
+        List<Long> unsent_changes = new ArrayList<>();
+
+        long start_nanos = System.nanoTime();
+        long next_tick = VIRTUAL_ORIGIN; // RcClient2 ticks right after start()
+        int next_input = 0;
+        try {
+            while (true) {
+                long input_at = next_input < session.size() ? VIRTUAL_ORIGIN + session.get(next_input).time_ms : Long.MAX_VALUE;
+                long tick_at = next_tick == DispatchScheduler.NO_TICK ? Long.MAX_VALUE : next_tick;
+                long now = Math.min(input_at, tick_at);
+                if (now > end) {
+                    break;
+                }
+                pace(start_nanos, now - VIRTUAL_ORIGIN);
+
+                if (input_at <= tick_at) {
+                    apply(mapping, session.get(next_input++));
+                    int left = mapping.leftPower();
+                    int right = mapping.rightPower();
+                    if (left != target_left || right != target_right) {
+                        target_left = left;
+                        target_right = right;
+                        unsent_changes.add(now);
+                    }
+
+                    // RcClient2's wake: replaces the pending tick if the scheduler wants one
+                    long delay = sender.wakeDelay(now);
+                    if (delay != DispatchScheduler.NO_TICK) {
+                        next_tick = now + delay;
+                    }
+                    continue;
+                }
+
+                if (sender.ensureConnected("127.0.0.1", mServer.getPort())) {
+                    sender.sendStop(now);
+                    result.commands.add(new Command(now - VIRTUAL_ORIGIN, 0, 0));
+                }
+
+                int left = mapping.leftPower();
+                int right = mapping.rightPower();
+                long tick_nanos = System.nanoTime();
+                long delay = sender.tick(now, left, right);
+                if (sender.sentOnLastTick()) {
+                    result.writes.recordNanos(System.nanoTime() - tick_nanos);
+                    result.commands.add(new Command(now - VIRTUAL_ORIGIN, left, right));
+                    for (long changed : unsent_changes) {
+                        result.response.record((now - changed) * 1000);
+                    }
+                    unsent_changes.clear();
+                }
+                next_tick = delay == DispatchScheduler.NO_TICK ? DispatchScheduler.NO_TICK : now + delay;
+            }
+        } finally {
+            sender.close();
+        }
+        result.elapsedMs = (System.nanoTime() - start_nanos) / 1000000L;
+
+        // Let the simulator execute what is still in flight
+        long deadline = System.currentTimeMillis() + 1000;
+        synchronized (received) {
+            while (received[0] < result.commands.size() && System.currentTimeMillis() < deadline) {
+                received.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            result.received = received[0];
+        }
+        mServer.setListener(null);
+        return result;
+    }
+
+    // As RcClient2.touchEvent()
+    private static void apply(TouchMapping mapping, TouchInput input) {
+        mapping.update(input);
+    }
+
+    private void pace(long start_nanos, long virtual_ms) throws InterruptedException {
+        if (mSpeed <= 0) {
+            return;
+        }
+        long wait_ms = (long)(virtual_ms / mSpeed) - (System.nanoTime() - start_nanos) / 1000000L;
+        if (wait_ms > 0) {
+            Thread.sleep(wait_ms);
+        }
+    }
+
+    // Total time in [0, end_ms) during which the robot would run with different powers
+    public static long mismatchMillis(List<Command> a, List<Command> b, long end_ms) {
+        long mismatch = 0;
+        int ia = 0, ib = 0;
+        int left_a = 0, right_a = 0, left_b = 0, right_b = 0;
+        long t = 0;
+        while (t < end_ms) {
+            while (ia < a.size() && a.get(ia).time_ms <= t) {
+                left_a = a.get(ia).left;
+                right_a = a.get(ia++).right;
+            }
+            while (ib < b.size() && b.get(ib).time_ms <= t) {
+                left_b = b.get(ib).left;
+                right_b = b.get(ib++).right;
+            }
+            long next = end_ms;
+            if (ia < a.size()) {
+                next = Math.min(next, a.get(ia).time_ms);
+            }
+            if (ib < b.size()) {
+                next = Math.min(next, b.get(ib).time_ms);
+            }
+            if (left_a != left_b || right_a != right_b) {
+                mismatch += next - t;
+            }
+            t = next;
+        }
+        return mismatch;
+    }
+
+    // The touch events of a FlightRecorder recording, times relative to the first one
+    public static List<TouchInput> inputOf(FlightRecordReader reader) {
+        List<TouchInput> session = new ArrayList<>();
+        List<FlightRecordReader.Record> event = new ArrayList<>();
+        long first = 0;
+        for (FlightRecordReader.Record record : reader.records()) {
+            if (record.type == FlightRecorder.TYPE_HISTORY) {
+                // Batched samples follow their event
+                if (!event.isEmpty()) {
+                    event.add(record);
+                }
+                continue;
+            }
+            if (record.type != FlightRecorder.TYPE_TOUCH) {
+                continue;
+            }
+            // A new event starts with its first pointer
+            if (((record.flags >> 8) & 0xf) == 0 && !event.isEmpty()) {
+                session.add(inputOf(event, first));
+                event.clear();
+            }
+            if (session.isEmpty() && event.isEmpty()) {
+                first = record.nanos;
+            }
+            event.add(record);
+        }
+        if (!event.isEmpty()) {
+            session.add(inputOf(event, first));
+        }
+        return session;
+    }
+
+    private static TouchInput inputOf(List<FlightRecordReader.Record> event, long first_nanos) {
+        int pointers = 0;
+        while (pointers < event.size() && event.get(pointers).type == FlightRecorder.TYPE_TOUCH) {
+            pointers++;
+        }
+        int[] ids = new int[pointers];
+        float[] x = new float[pointers];
+        float[] y = new float[pointers];
+        for (int i = 0; i < pointers; i++) {
+            ids[i] = event.get(i).a;
+            x[i] = Float.intBitsToFloat(event.get(i).b);
+            y[i] = Float.intBitsToFloat(event.get(i).c);
+        }
+
+        // The history records, one per pointer and sample
+        int samples = (event.size() - pointers) / pointers;
+        FlightRecordReader.Record head = event.get(0);
+        long time_ms = (head.nanos - first_nanos) / 1000000L;
+        long[] history_ms = new long[samples];
+        float[][] history_x = new float[pointers][samples];
+        float[][] history_y = new float[pointers][samples];
+        for (int h = 0; h < samples; h++) {
+            for (int i = 0; i < pointers; i++) {
+                FlightRecordReader.Record record = event.get(pointers + h * pointers + i);
+                history_ms[h] = time_ms - (record.flags & 0xff);
+                history_x[i][h] = Float.intBitsToFloat(record.b);
+                history_y[i][h] = Float.intBitsToFloat(record.c);
+            }
+        }
+        return new TouchInput(time_ms, head.flags & 0xff, (head.flags >> 12) & 0xf, ids, x, y,
+                history_ms, history_x, history_y);
+    }
+
+    // The commands of a FlightRecorder recording, on the time base of inputOf()
+    public static List<Command> commandsOf(FlightRecordReader reader) {
+        List<Command> commands = new ArrayList<>();
+        long first = Long.MIN_VALUE;
+        for (FlightRecordReader.Record record : reader.records()) {
+            if (record.type == FlightRecorder.TYPE_TOUCH && first == Long.MIN_VALUE) {
+                first = record.nanos;
+            } else if (record.type == FlightRecorder.TYPE_COMMAND && first != Long.MIN_VALUE) {
+                commands.add(new Command((record.nanos - first) / 1000000L, record.a, record.b));
+            }
+        }
+        return commands;
+    }
+
+    // Both thumbs sweeping out of phase at a 120 Hz panel rate, lifted for a tenth of the session
+    // from 40 % on. The left thumb lands first and lifts last, as MotionEvent reports it.
+    public static List<TouchInput> sineSession(long duration_ms, long period_ms) {
+        List<TouchInput> session = new ArrayList<>();
+        long lift = duration_ms * 4 / 10;
+        long touch = duration_ms * 5 / 10;
+        int[] ids = {0, 1};
+        float[] x = {SCREEN_WIDTH / 4, SCREEN_WIDTH * 3 / 4};
+        float[] y = null;
+        for (long t = 0; t < duration_ms; t += 8) {
+            if (t >= lift && t < touch) {
+                if (y != null) {
+                    session.add(new TouchInput(t, MotionEvent.ACTION_POINTER_UP, 1, ids, x, y));
+                    session.add(new TouchInput(t, MotionEvent.ACTION_UP, 0,
+                            new int[]{0}, new float[]{x[0]}, new float[]{y[0]}));
+                    y = null;
+                }
+                continue;
+            }
+            double phase = 2 * Math.PI * t / period_ms;
+            float left_y = (float)(SCREEN_HEIGHT / 2 * (1 + 0.9 * Math.sin(phase)));
+            float right_y = (float)(SCREEN_HEIGHT / 2 * (1 + 0.9 * Math.cos(phase)));
+            if (y == null) {
+                session.add(new TouchInput(t, MotionEvent.ACTION_DOWN, 0,
+                        new int[]{0}, new float[]{x[0]}, new float[]{left_y}));
+                y = new float[]{left_y, right_y};
+                session.add(new TouchInput(t, MotionEvent.ACTION_POINTER_DOWN, 1, ids, x, y));
+            } else {
+                y = new float[]{left_y, right_y};
+                session.add(new TouchInput(t, MotionEvent.ACTION_MOVE, 0, ids, x, y));
+            }
+        }
+        return Collections.unmodifiableList(session);
+    }
+}
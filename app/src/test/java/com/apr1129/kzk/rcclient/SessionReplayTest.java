@@ -0,0 +1,161 @@
+package com.apr1129.kzk.rcclient;
+
+import android.view.MotionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionReplayTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private RobotServerSimulator mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new RobotServerSimulator(true).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    private static AdaptiveScheduler adaptive() {
+        return new AdaptiveScheduler(10, 100, 1000);
+    }
+
+    @Test
+    public void replay_isIdenticalAtAnySpeed() throws Exception {
+        List<SessionReplay.TouchInput> session = SessionReplay.sineSession(500, 400);
+        SessionReplay replay = new SessionReplay(mServer, false, true);
+
+        replay.setSpeed(1);
+        SessionReplay.Result realtime = replay.run(session, adaptive());
+        replay.setSpeed(SessionReplay.FASTEST);
+        SessionReplay.Result fastest = replay.run(session, adaptive());
+
+        assertTrue(realtime.toString(), realtime.commands.size() > 20);
+        assertEquals("real time " + realtime + ", fastest " + fastest, -1, realtime.firstDifference(fastest));
+        assertTrue(realtime.identicalTo(fastest));
+        assertEquals(0, realtime.mismatchMillis(fastest));
+        assertTrue(realtime.toString(), realtime.elapsedMs >= realtime.durationMs - 10);
+        assertEquals(realtime.toString(), realtime.commands.size(), realtime.received);
+    }
+
+    @Test
+    public void replay_isIdenticalOverAnotherTransport() throws Exception {
+        List<SessionReplay.TouchInput> session = SessionReplay.sineSession(1000, 400);
+        SessionReplay tcp = new SessionReplay(mServer, false, true);
+        tcp.setSpeed(SessionReplay.FASTEST);
+        SessionReplay udp = new SessionReplay(mServer, true, true);
+        udp.setSpeed(SessionReplay.FASTEST);
+
+        SessionReplay.Result over_tcp = tcp.run(session, adaptive());
+        SessionReplay.Result over_udp = udp.run(session, adaptive());
+        assertTrue(over_tcp.identicalTo(over_udp));
+        assertEquals(over_udp.commands.size(), over_udp.received);
+    }
+
+    @Test
+    public void otherScheduler_drivesAlikeWithItsOwnLatency() throws Exception {
+        List<SessionReplay.TouchInput> session = SessionReplay.sineSession(2000, 800);
+        SessionReplay replay = new SessionReplay(mServer, false, true);
+        replay.setSpeed(SessionReplay.FASTEST);
+
+        SessionReplay.Result fixed = replay.run(session, new FixedRateScheduler(20));
+        SessionReplay.Result on_change = replay.run(session, adaptive());
+
+        assertFalse(fixed.identicalTo(on_change));
+
+        // Same driving, apart from the moments one of them is behind
+        long mismatch = fixed.mismatchMillis(on_change);
+        assertTrue("mismatch " + mismatch + " ms", mismatch < fixed.durationMs / 2);
+        assertTrue("fixed 20ms " + fixed + ", adaptive " + on_change,
+                on_change.response.percentile(0.5) < fixed.response.percentile(0.5));
+    }
+
+    @Test
+    public void mismatch_isTimeWithDifferentPowers() {
+        List<SessionReplay.Command> a = Arrays.asList(
+                new SessionReplay.Command(0, 0, 0), new SessionReplay.Command(100, 50, 50));
+        List<SessionReplay.Command> b = Arrays.asList(
+                new SessionReplay.Command(0, 0, 0), new SessionReplay.Command(130, 50, 50),
+                new SessionReplay.Command(200, 0, 0));
+        assertEquals(30 + 100, SessionReplay.mismatchMillis(a, b, 300));
+        assertEquals(0, SessionReplay.mismatchMillis(a, a, 300));
+    }
+
+    @Test
+    public void recording_replaysItsTouches() throws Exception {
+        // Record a short session as RcClient2 does, one record per pointer
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 1024);
+        List<SessionReplay.TouchInput> session = SessionReplay.sineSession(200, 100);
+        for (SessionReplay.TouchInput input : session) {
+            for (int i = 0; i < input.x.length; i++) {
+                recorder.recordTouch(input.action, input.action_index, i, input.ids[i], input.x[i], input.y[i]);
+            }
+            recorder.recordCommand(0, 0, 8);
+            Thread.sleep(1);
+        }
+        recorder.close();
+
+        FlightRecordReader reader = new FlightRecordReader(file);
+        List<SessionReplay.TouchInput> recovered = SessionReplay.inputOf(reader);
+        assertEquals(session.size(), recovered.size());
+        for (int i = 0; i < session.size(); i++) {
+            assertEquals(session.get(i).action, recovered.get(i).action);
+            assertEquals(session.get(i).action_index, recovered.get(i).action_index);
+            assertArrayEquals(session.get(i).ids, recovered.get(i).ids);
+            assertArrayEquals(session.get(i).y, recovered.get(i).y, 0);
+            if (i > 0) {
+                assertTrue(recovered.get(i).time_ms >= recovered.get(i - 1).time_ms + 1);
+            }
+        }
+        assertEquals(session.size(), SessionReplay.commandsOf(reader).size());
+
+        SessionReplay replay = new SessionReplay(mServer, false, false);
+        replay.setSpeed(SessionReplay.FASTEST);
+        SessionReplay.Result result = replay.run(recovered, adaptive());
+        assertTrue(result.identicalTo(replay.run(recovered, adaptive())));
+    }
+
+    @Test
+    public void recording_keepsBatchedSamples() throws Exception {
+        // A move with two samples batched into it, 8 and 4 ms before its own
+        File file = new File(mFolder.getRoot(), "flight.rec");
+        FlightRecorder recorder = new FlightRecorder(file, 64);
+        int[] ids = {0, 1};
+        recorder.recordTouch(MotionEvent.ACTION_MOVE, 0, 0, 0, 100, 200);
+        recorder.recordTouch(MotionEvent.ACTION_MOVE, 0, 1, 1, 1500, 300);
+        recorder.recordHistory(0, 0, 90, 180, 8);
+        recorder.recordHistory(1, 1, 1510, 310, 8);
+        recorder.recordHistory(0, 0, 95, 190, 4);
+        recorder.recordHistory(1, 1, 1505, 305, 4);
+        recorder.recordCommand(0, 0, 8);
+        recorder.close();
+
+        List<SessionReplay.TouchInput> recovered = SessionReplay.inputOf(new FlightRecordReader(file));
+        assertEquals(1, recovered.size());
+        SessionReplay.TouchInput input = recovered.get(0);
+        assertArrayEquals(ids, input.ids);
+        assertEquals(2, input.historySize());
+        assertEquals((input.time_ms - 8) * 1000000L, input.timeNanos(0));
+        assertEquals((input.time_ms - 4) * 1000000L, input.timeNanos(1));
+        assertEquals(input.time_ms * 1000000L, input.timeNanos(2));
+        assertEquals(90, input.x(0, 0), 0);
+        assertEquals(305, input.y(1, 1), 0);
+        assertEquals(1500, input.x(1, 2), 0);
+    }
+}
@@ -0,0 +1,121 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class TcpTransportTest {
+
+    @Test
+    public void write_deliversBytes() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            TcpTransport transport = new TcpTransport();
+            transport.connect("127.0.0.1", server.getLocalPort());
+            try (Socket peer = server.accept()) {
+                assertTrue(transport.isConnected());
+
+                byte[] payload = new byte[3000]; // larger than the internal buffer
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] = (byte)i;
+                }
+                transport.write(payload, 0, payload.length);
+
+                InputStream in = peer.getInputStream();
+                for (int i = 0; i < payload.length; i++) {
+                    assertEquals(payload[i] & 0xff, in.read());
+                }
+            } finally {
+                transport.close();
+            }
+            assertFalse(transport.isConnected());
+        }
+    }
+
+    @Test
+    public void read_returnsZeroOnTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            TcpTransport transport = new TcpTransport();
+            transport.connect("127.0.0.1", server.getLocalPort());
+            try (Socket peer = server.accept()) {
+                byte[] buf = new byte[16];
+                assertEquals(0, transport.read(buf, 0, buf.length, 50));
+
+                peer.getOutputStream().write(new byte[]{1, 2, 3});
+                assertEquals(3, transport.read(buf, 0, buf.length, 1000));
+                assertEquals(3, buf[2]);
+
+                // The peer closes its side
+                peer.shutdownOutput();
+                assertEquals(-1, transport.read(buf, 0, buf.length, 1000));
+            } finally {
+                transport.close();
+            }
+        }
+    }
+
+    @Test
+    public void write_timesOutWhenPeerStopsReading() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            TcpTransport transport = new TcpTransport(1000, 100);
+            transport.connect("127.0.0.1", server.getLocalPort());
+            // Accepted but never read from, until closed at the end
+            Socket peer = server.accept();
+            try {
+                byte[] chunk = new byte[64 * 1024];
+                long start = System.nanoTime();
+                try {
+                    // The peer never reads, so the socket buffers eventually fill up
+                    while (System.nanoTime() - start < 10000000000L) {
+                        transport.write(chunk, 0, chunk.length);
+                    }
+                    fail("write never blocked");
+                } catch (SocketTimeoutException e) {
+                    // expected
+                }
+            } finally {
+                transport.close();
+                peer.close();
+            }
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void write_withoutConnectFails() throws Exception {
+        new TcpTransport().write(new byte[1], 0, 1);
+    }
+
+    @Test
+    public void reconnect_reusesResolvedAddress() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            TcpTransport transport = new TcpTransport();
+            transport.connect("127.0.0.1", server.getLocalPort());
+            InetSocketAddress resolved = transport.resolvedAddress();
+            assertNotNull(resolved);
+
+            transport.connect("127.0.0.1", server.getLocalPort());
+            assertSame(resolved, transport.resolvedAddress());
+            transport.close();
+            assertSame(resolved, transport.resolvedAddress());
+
+            // Nobody listens there: resolved again on the next attempt
+            int closed_port;
+            try (ServerSocket closed = new ServerSocket(0)) {
+                closed_port = closed.getLocalPort();
+            }
+            try {
+                transport.connect("127.0.0.1", closed_port);
+                fail("connected to a closed port");
+            } catch (IOException e) {
+                // expected
+            }
+            assertNull(transport.resolvedAddress());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+public class TelemetryTest {
+
+    private RobotServerSimulator mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new RobotServerSimulator(true).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    private static byte[] ascii(String text) throws Exception {
+        return text.getBytes("US-ASCII");
+    }
+
+    private static LinkProbe reader(Telemetry telemetry) {
+        LinkProbe probe = new LinkProbe(new RttEstimator(), null);
+        probe.setTelemetry(telemetry);
+        return probe;
+    }
+
+    @Test
+    public void binaryFrame_isParsed() {
+        Telemetry telemetry = new Telemetry();
+        assertEquals(Telemetry.EMPTY, telemetry.snapshot());
+
+        byte[] frame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        BinaryCommandEncoder.encodeTelemetry(frame, 0, 7, 250, -1200, 11840, Telemetry.NO_RANGE);
+        reader(telemetry).feed(frame, 0, frame.length, true, 42);
+
+        long snapshot = telemetry.snapshot();
+        assertEquals(250, Telemetry.leftSpeedOf(snapshot));
+        assertEquals(-1200, Telemetry.rightSpeedOf(snapshot));
+        assertEquals(11840, Telemetry.batteryOf(snapshot));
+        assertEquals(Telemetry.NO_RANGE, Telemetry.rangeOf(snapshot));
+        assertEquals(1, telemetry.count());
+        assertEquals(42, telemetry.receivedNanos());
+    }
+
+    @Test
+    public void textLines_areParsedAcrossReads() throws Exception {
+        Telemetry telemetry = new Telemetry();
+        LinkProbe probe = reader(telemetry);
+        byte[] data = ascii("TM 1 -30 45 12010 800\r\nPONG 1 2 3\nTM 2 0 -0 9999 65535\n");
+        for (int i = 0; i < data.length; i++) {
+            probe.feed(data, i, 1, false, i);
+            if (i == 20) {
+                assertEquals(Telemetry.EMPTY, telemetry.snapshot());
+            }
+        }
+        assertEquals(Telemetry.pack(0, 0, 9999, 65535), telemetry.snapshot());
+        assertEquals(2, telemetry.count());
+        assertEquals(0, telemetry.malformedCount());
+    }
+
+    @Test
+    public void malformedLines_areCounted() throws Exception {
+        Telemetry telemetry = new Telemetry();
+        LinkProbe probe = reader(telemetry);
+        byte[] data = ascii("TM 1 2 3 4\nTM 1 2 3 4 5 6\nTM 1 2 x 4 5\nTM 1 - 3 4 5\nTM 1 2 3 4 1234567\nTM 3 1 2 3 4\n");
+        probe.feed(data, 0, data.length, false, 0);
+        assertEquals(5, telemetry.malformedCount());
+        assertEquals(1, telemetry.count());
+        assertEquals(Telemetry.pack(1, 2, 3, 4), telemetry.snapshot());
+    }
+
+    @Test
+    public void sequenceGaps_countAsLost() {
+        Telemetry telemetry = new Telemetry();
+        LinkProbe probe = reader(telemetry);
+        byte[] frame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        int[] seqs = {0xfffe, 0xffff, 2, 1, 3};
+        for (int seq : seqs) {
+            BinaryCommandEncoder.encodeTelemetry(frame, 0, seq, seq, 0, 12000, 0);
+            probe.feed(frame, 0, frame.length, true, 0);
+        }
+        // 0 and 1 missing, 1 arrived late and was dropped
+        assertEquals(2, telemetry.lostCount());
+        assertEquals(4, telemetry.count());
+        assertEquals(3, Telemetry.leftSpeedOf(telemetry.snapshot()));
+
+        // A new connection starts over
+        telemetry.reset();
+        BinaryCommandEncoder.encodeTelemetry(frame, 0, 0, 0, 0, 12000, 0);
+        probe.feed(frame, 0, frame.length, true, 0);
+        assertEquals(2, telemetry.lostCount());
+        assertEquals(5, telemetry.count());
+    }
+
+    @Test
+    public void parsing_doesNotAllocate() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+
+        Telemetry telemetry = new Telemetry();
+        LinkProbe probe = reader(telemetry);
+        byte[] text = ascii("TM 65535 -1200 1200 12000 3000\n");
+        byte[] binary = new byte[BinaryCommandEncoder.FRAME_SIZE * 16];
+        for (int i = 0; i < 16; i++) {
+            BinaryCommandEncoder.encodeTelemetry(binary, i * BinaryCommandEncoder.FRAME_SIZE, i, i, -i, 12000, i);
+        }
+
+        // Warm up, so the JIT is done
+        for (int i = 0; i < 20000; i++) {
+            probe.feed(text, 0, text.length, false, i);
+            probe.feed(binary, 0, binary.length, true, i);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            probe.feed(text, 0, text.length, false, i);
+            probe.feed(binary, 0, binary.length, true, i);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        assertTrue("allocated " + allocated + " B", allocated < 64 * 1024);
+        assertEquals(0, telemetry.malformedCount());
+    }
+
+    // Streams readings at 2 kHz from the stand-in robot and checks each one arrived
+    private void streamAndCheck(boolean binary) throws Exception {
+        Telemetry telemetry = new Telemetry();
+        ControlSender sender = new ControlSender(new TcpTransport(), false, new FixedRateScheduler(100));
+        sender.setBinaryProtocolEnabled(binary);
+        sender.setTelemetry(telemetry);
+        try {
+            assertTrue(sender.ensureConnected("127.0.0.1", mServer.getPort()));
+            assertEquals(binary, sender.encoder() instanceof BinaryCommandEncoder);
+
+            mServer.streamTelemetry(500);
+            Thread.sleep(500);
+            mServer.stopTelemetry();
+
+            long sent = mServer.telemetrySent();
+            long deadline = System.currentTimeMillis() + 2000;
+            while (telemetry.count() < sent && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue("sent " + sent, sent > 100);
+            assertEquals(sent, telemetry.count());
+            assertEquals(0, telemetry.lostCount());
+            assertEquals(0, telemetry.malformedCount());
+            assertEquals(RobotServerSimulator.telemetryReading(sent - 1), telemetry.snapshot());
+        } finally {
+            sender.close();
+        }
+    }
+
+    @Test
+    public void tcpText_highRateStream() throws Exception {
+        streamAndCheck(false);
+    }
+
+    @Test
+    public void tcpBinary_highRateStream() throws Exception {
+        streamAndCheck(true);
+    }
+}
@@ -0,0 +1,59 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class TextCommandEncoderTest {
+
+    private static byte[] expected(int left, int right) {
+        return String.format(Locale.US, "MV %d %d\n", left, right).getBytes();
+    }
+
+    private static void assertEncodes(CommandEncoder encoder, int left, int right) {
+        int len = encoder.encodeMove(left, right);
+        assertArrayEquals(expected(left, right), Arrays.copyOf(encoder.buffer(), len));
+    }
+
+    @Test
+    public void encodeMove_matchesTextFormat() {
+        TextCommandEncoder encoder = new TextCommandEncoder();
+        for (int left = -1100; left <= 1100; left += 7) {
+            for (int right = -1100; right <= 1100; right += 13) {
+                assertEncodes(encoder, left, right);
+            }
+        }
+    }
+
+    @Test
+    public void encodeMove_boundaryValues() {
+        TextCommandEncoder encoder = new TextCommandEncoder();
+        int[] values = {0, 1, -1, 9, 10, -10, 99, 100, 1023, 1024, -1024,
+                Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int left : values) {
+            for (int right : values) {
+                assertEncodes(encoder, left, right);
+            }
+        }
+    }
+
+    @Test
+    public void encodeMove_reusesBuffer() {
+        TextCommandEncoder encoder = new TextCommandEncoder();
+        byte[] buf = encoder.buffer();
+        encoder.encodeMove(Integer.MIN_VALUE, Integer.MIN_VALUE);
+        assertEncodes(encoder, 0, 0);
+        assertSame(buf, encoder.buffer());
+    }
+
+    @Test
+    public void encodePing_matchesTextFormat() {
+        TextCommandEncoder encoder = new TextCommandEncoder();
+        int len = encoder.encodePing(65535);
+        assertEquals("PING 65535\n", new String(encoder.buffer(), 0, len, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,193 @@
+package com.apr1129.kzk.rcclient;
+
+import android.view.MotionEvent;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TouchFilterTest {
+
+    private static final long SAMPLE_INTERVAL = 1000000000L / 240; // ns, 240 Hz panel
+
+    // One pointer with batched samples, oldest first
+    private static class Batch implements TouchMapping.Samples {
+        final float x;
+        final float[] y;
+        final long[] nanos;
+
+        Batch(float x, float[] y, long[] nanos) {
+            this.x = x;
+            this.y = y;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public int action() {
+            return MotionEvent.ACTION_DOWN;
+        }
+
+        @Override
+        public int actionIndex() {
+            return 0;
+        }
+
+        @Override
+        public int pointerCount() {
+            return 1;
+        }
+
+        @Override
+        public int pointerId(int pointer) {
+            return 0;
+        }
+
+        @Override
+        public int historySize() {
+            return y.length - 1;
+        }
+
+        @Override
+        public float x(int pointer, int h) {
+            return x;
+        }
+
+        @Override
+        public float y(int pointer, int h) {
+            return y[h];
+        }
+
+        @Override
+        public long timeNanos(int h) {
+            return nanos[h];
+        }
+    }
+
+    @Test
+    public void constantInput_passesUnchanged() {
+        TouchFilter filter = new TouchFilter();
+        for (int i = 0; i < 100; i++) {
+            filter.add(i * SAMPLE_INTERVAL, 300);
+        }
+        assertEquals(300, filter.value(), 0);
+        assertEquals(0, filter.speed(), 0);
+    }
+
+    @Test
+    public void restingThumb_jitterIsSmoothed() {
+        TouchFilter filter = new TouchFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, 0);
+        Random random = new Random(1);
+        double sum = 0, sum2 = 0;
+        int n = 0;
+        for (int i = 0; i < 480; i++) {
+            filter.add(i * SAMPLE_INTERVAL, (float)(500 + random.nextGaussian() * 5));
+            if (i >= 240) {
+                sum += filter.value();
+                sum2 += filter.value() * filter.value();
+                n++;
+            }
+        }
+        double mean = sum / n;
+        double sd = Math.sqrt(sum2 / n - mean * mean);
+        assertEquals(500, mean, 2);
+        assertTrue("sd " + sd, sd < 1.5);
+    }
+
+    @Test
+    public void movingThumb_followsWithLittleLag() {
+        // 1000 px/s sweep: the adaptive cutoff keeps the lag far below a fixed 1 Hz low pass
+        TouchFilter adaptive = new TouchFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, 0);
+        TouchFilter fixed = new TouchFilter(TouchFilter.DEFAULT_MIN_CUTOFF, 0, 0);
+        float y = 0;
+        for (int i = 0; i < 120; i++) {
+            y = i * 1000f / 240;
+            adaptive.add(i * SAMPLE_INTERVAL, y);
+            fixed.add(i * SAMPLE_INTERVAL, y);
+        }
+        double adaptive_lag = y - adaptive.value();
+        double fixed_lag = y - fixed.value();
+        assertTrue("lag " + adaptive_lag, adaptive_lag > 0 && adaptive_lag < 30);
+        assertTrue("lag " + fixed_lag, fixed_lag > 4 * adaptive_lag);
+        assertEquals(1000, adaptive.speed(), 50);
+    }
+
+    @Test
+    public void prediction_extrapolatesFilteredSpeed() {
+        TouchFilter plain = new TouchFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, 0);
+        TouchFilter predicting = new TouchFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, 16);
+        float y = 0;
+        for (int i = 0; i < 120; i++) {
+            y = 1000 - i * 1000f / 240;
+            plain.add(i * SAMPLE_INTERVAL, y);
+            predicting.add(i * SAMPLE_INTERVAL, y);
+        }
+        assertEquals(plain.value(), predicting.filteredValue(), 0);
+        assertEquals(predicting.filteredValue() + predicting.speed() * 0.016, predicting.value(), 0.01);
+        assertTrue(Math.abs(predicting.value() - y) < Math.abs(plain.value() - y));
+    }
+
+    @Test
+    public void reset_startsOverWithoutSmoothing() {
+        TouchFilter filter = new TouchFilter();
+        for (int i = 0; i < 10; i++) {
+            filter.add(i * SAMPLE_INTERVAL, 100);
+        }
+        filter.reset();
+        assertFalse(filter.hasValue());
+        filter.add(20 * SAMPLE_INTERVAL, 800);
+        assertEquals(800, filter.value(), 0);
+    }
+
+    @Test
+    public void mapping_feedsEveryBatchedSample() {
+        float[] y = {400, 380, 360, 340, 320};
+        long[] nanos = new long[y.length];
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = i * SAMPLE_INTERVAL;
+        }
+        Batch batch = new Batch(100, y, nanos);
+
+        TouchFilter reference = new TouchFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, 8);
+        for (int i = 0; i < y.length; i++) {
+            reference.add(nanos[i], y[i]);
+        }
+
+        TouchMapping mapping = new TouchMapping(1920, 1080);
+        mapping.setFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, 8);
+        mapping.update(batch);
+        assertEquals(PowerMapping.signedPower(reference.value(), 540), mapping.leftPower());
+        assertEquals(0, mapping.rightPower());
+
+        // Without a filter only the current sample counts
+        mapping.clearFilter();
+        mapping.update(batch);
+        assertEquals(PowerMapping.signedPower(320, 540), mapping.leftPower());
+    }
+
+    @Test
+    public void mapping_keepsPredictionOnScreen() {
+        // Fast swipe to the top edge: the extrapolation overshoots, the side stays touched
+        float[] y = new float[25];
+        long[] nanos = new long[y.length];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = 600 - 25 * i;
+            nanos[i] = i * SAMPLE_INTERVAL;
+        }
+        TouchMapping mapping = new TouchMapping(1920, 1080);
+        mapping.setFilter(TouchFilter.DEFAULT_MIN_CUTOFF, TouchFilter.DEFAULT_BETA, 50);
+        mapping.update(new Batch(1500, y, nanos));
+        assertEquals(PowerMapping.MAX_POWER, mapping.rightPower());
+    }
+
+    @Test
+    public void mapping_absolutePowerForRcClient() {
+        // Below the center drives forward too, as RcClient always did
+        TouchMapping mapping = new TouchMapping(1920, 1081, true);
+        mapping.update(new Batch(100, new float[]{810}, new long[]{0}));
+        assertEquals(PowerMapping.absolutePower(810, 1081 / 2), mapping.leftPower());
+        assertTrue(mapping.leftPower() > 0);
+        assertEquals(0, mapping.rightPower());
+    }
+}
@@ -0,0 +1,104 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TouchStateTest {
+
+    @Test
+    public void pack_roundTrip() {
+        float[] values = {0f, 1.5f, 539.25f, 2159f, -1f, Float.MAX_VALUE};
+        for (float x : values) {
+            for (float y : values) {
+                long state = TouchState.pack(x, y);
+                assertEquals(x, TouchState.xOf(state), 0f);
+                assertEquals(y, TouchState.yOf(state), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void clear_isNotTouched() {
+        TouchState state = new TouchState();
+        assertFalse(TouchState.isTouched(state.get()));
+
+        state.set(10, 20);
+        assertTrue(TouchState.isTouched(state.get()));
+
+        state.clear();
+        assertEquals(TouchState.NONE, state.get());
+        assertFalse(TouchState.isTouched(state.get()));
+    }
+
+    // Writers only ever publish pairs with y == x + 1 or the cleared state.
+    // Any other pair seen by a reader is a torn read.
+    @Test
+    public void stress_noTornReads() throws Exception {
+        final TouchState state = new TouchState();
+        final int writers = 3;
+        final int readers = 2;
+        final long duration_ms = 500;
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong torn = new AtomicLong(0);
+        final AtomicLong reads = new AtomicLong(0);
+        final CountDownLatch ready = new CountDownLatch(writers + readers);
+        Thread[] threads = new Thread[writers + readers];
+
+        for (int w = 0; w < writers; w++) {
+            final int seed = w;
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    float v = seed * 1000;
+                    while (!stop.get()) {
+                        state.set(v, v + 1);
+                        if (((int)v & 7) == 0) {
+                            state.clear();
+                        }
+                        v = (v + 1) % 4096;
+                    }
+                }
+            });
+        }
+
+        for (int r = 0; r < readers; r++) {
+            threads[writers + r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    long count = 0;
+                    while (!stop.get()) {
+                        long s = state.get();
+                        float x = TouchState.xOf(s);
+                        float y = TouchState.yOf(s);
+                        boolean cleared = x == -1 && y == -1;
+                        if (!cleared && y != x + 1) {
+                            torn.incrementAndGet();
+                        }
+                        count++;
+                    }
+                    reads.addAndGet(count);
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        ready.await();
+        Thread.sleep(duration_ms);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+
+        assertTrue(reads.get() > 0);
+        assertEquals(0, torn.get());
+    }
+}
@@ -0,0 +1,105 @@
+package com.apr1129.kzk.rcclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+// Reference robot-side receiver for the UDP transport mode.
+// Applies a frame only if its sequence number is newer than the last applied one.
+public class UdpCommandReceiver implements Runnable {
+
+    private final DatagramChannel mChannel;
+    private final Thread mThread;
+    private final byte[] mFrame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+
+    private volatile boolean mHasSequence = false;
+    private volatile int mLastSequence;
+    private volatile int mLeftPower;
+    private volatile int mRightPower;
+    private volatile long mAccepted = 0;
+    private volatile long mStale = 0;
+    private volatile long mMalformed = 0;
+
+    public UdpCommandReceiver() throws IOException {
+        mChannel = DatagramChannel.open();
+        mChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        mThread = new Thread(this, "UdpCommandReceiver");
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress)mChannel.getLocalAddress()).getPort();
+    }
+
+    public void close() throws InterruptedException, IOException {
+        mChannel.close();
+        mThread.join(1000);
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocate(1500);
+        try {
+            while (true) {
+                buf.clear();
+                mChannel.receive(buf);
+                buf.flip();
+                if (buf.remaining() != BinaryCommandEncoder.FRAME_SIZE) {
+                    mMalformed++;
+                    continue;
+                }
+                buf.get(mFrame);
+                accept(mFrame);
+            }
+        } catch (ClosedChannelException | SocketException e) {
+            // closed
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns true if the frame was applied, false if it was stale
+    synchronized boolean accept(byte[] frame) {
+        int seq = BinaryCommandEncoder.sequenceOf(frame, 0);
+        if (mHasSequence && !BinaryCommandEncoder.isNewer(seq, mLastSequence)) {
+            mStale++;
+            return false;
+        }
+        mHasSequence = true;
+        mLastSequence = seq;
+        mLeftPower = BinaryCommandEncoder.leftPowerOf(frame, 0);
+        mRightPower = BinaryCommandEncoder.rightPowerOf(frame, 0);
+        mAccepted++;
+        return true;
+    }
+
+    public int lastSequence() {
+        return mLastSequence;
+    }
+
+    public int leftPower() {
+        return mLeftPower;
+    }
+
+    public int rightPower() {
+        return mRightPower;
+    }
+
+    public long acceptedCount() {
+        return mAccepted;
+    }
+
+    public long staleCount() {
+        return mStale;
+    }
+
+    public long malformedCount() {
+        return mMalformed;
+    }
+}
@@ -0,0 +1,82 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.Test;
+
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+public class UdpTransportTest {
+
+    private static void waitFor(UdpCommandReceiver receiver, long accepted) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (receiver.acceptedCount() < accepted && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void write_deliversLatestCommand() throws Exception {
+        UdpCommandReceiver receiver = new UdpCommandReceiver();
+        receiver.start();
+        UdpTransport transport = new UdpTransport();
+        try {
+            transport.connect("127.0.0.1", receiver.getPort());
+            assertTrue(transport.isConnected());
+
+            BinaryCommandEncoder encoder = new BinaryCommandEncoder();
+            for (int i = 1; i <= 100; i++) {
+                int len = encoder.encodeMove(i, -i);
+                transport.write(encoder.buffer(), 0, len);
+            }
+            waitFor(receiver, 100 - transport.droppedWrites());
+
+            assertEquals(100, receiver.lastSequence());
+            assertEquals(100, receiver.leftPower());
+            assertEquals(-100, receiver.rightPower());
+            assertEquals(0, receiver.malformedCount());
+        } finally {
+            transport.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void unresolvedHost_throwsUnknownHost() throws Exception {
+        UdpTransport transport = new UdpTransport();
+        try {
+            transport.connect("no-such-robot.invalid", 9024);
+            fail("connected to an unresolved host");
+        } catch (UnknownHostException e) {
+            assertFalse(transport.isConnected());
+        }
+    }
+
+    @Test
+    public void receiver_dropsStaleAndReorderedFrames() throws Exception {
+        UdpCommandReceiver receiver = new UdpCommandReceiver();
+        byte[] frame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+
+        int[] arrival = {1, 2, 4, 3, 4, 5, 0xffff, 6};
+        boolean[] applied = {true, true, true, false, false, true, false, true};
+        for (int i = 0; i < arrival.length; i++) {
+            BinaryCommandEncoder.encode(frame, 0, BinaryCommandEncoder.OP_MOVE, arrival[i], arrival[i], 0, 0);
+            assertEquals("seq " + arrival[i], applied[i], receiver.accept(frame));
+        }
+        assertEquals(6, receiver.lastSequence());
+        assertEquals(3, receiver.staleCount());
+        receiver.close();
+    }
+
+    @Test
+    public void receiver_acceptsSequenceWrapAround() throws Exception {
+        UdpCommandReceiver receiver = new UdpCommandReceiver();
+        byte[] frame = new byte[BinaryCommandEncoder.FRAME_SIZE];
+        int[] arrival = {0xfffe, 0xffff, 0, 1};
+        for (int seq : arrival) {
+            BinaryCommandEncoder.encode(frame, 0, BinaryCommandEncoder.OP_MOVE, seq, 0, 0, 0);
+            assertTrue(receiver.accept(frame));
+        }
+        receiver.close();
+    }
+}
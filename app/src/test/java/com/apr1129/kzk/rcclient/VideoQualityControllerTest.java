@@ -0,0 +1,272 @@
+package com.apr1129.kzk.rcclient;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class VideoQualityControllerTest {
+
+    private static final long MS = 1000000L; // ns
+    private static final String TEMPLATE = "http://robot/stream?width={width}&height={height}&fps={fps}";
+
+    private final List<String> mSwitches = new ArrayList<>();
+    private MjpegServerSimulator mServer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    private VideoQualityController controller(String template, long degrade_hold_ms, long recover_hold_ms) {
+        VideoQualityController controller = new VideoQualityController(template,
+                VideoQualityController.ladder(640, 480, 30), degrade_hold_ms, recover_hold_ms,
+                VideoQualityController.DEFAULT_DECODE_BUDGET);
+        controller.setListener(new VideoQualityController.Listener() {
+            @Override
+            public void onVariantChanged(VideoQualityController.Variant variant, String url) {
+                synchronized (mSwitches) {
+                    mSwitches.add(url);
+                }
+            }
+        });
+        return controller;
+    }
+
+    // Frames every interval_ms from from_ms up to to_ms. Returns the time of the next frame.
+    private static long frames(VideoQualityController controller, long from_ms, long to_ms, long interval_ms) {
+        long t = from_ms;
+        for (; t < to_ms; t += interval_ms) {
+            controller.onFrameReceived(t * MS);
+        }
+        return t;
+    }
+
+    @Test
+    public void ladder_fillsInTemplate() {
+        VideoQualityController.Variant[] ladder = VideoQualityController.ladder(640, 480, 30);
+        assertEquals(4, ladder.length);
+        assertEquals("http://robot/stream?width=320&height=240&fps=15", ladder[2].url(TEMPLATE));
+        assertEquals("160x120@10", ladder[3].toString());
+        assertTrue(VideoQualityController.isTemplate(TEMPLATE));
+        assertFalse(VideoQualityController.isTemplate("http://robot/stream"));
+    }
+
+    @Test
+    public void steadyLink_keepsBestVariant() {
+        VideoQualityController controller = controller(TEMPLATE, 1000, 5000);
+        frames(controller, 1000, 20000, 33);
+        assertEquals(0, controller.variantIndex());
+        assertEquals(0, controller.switchCount());
+        assertEquals(33, controller.frameIntervalMillis());
+    }
+
+    @Test
+    public void slowFrames_stepDownAfterHold() {
+        VideoQualityController controller = controller(TEMPLATE, 1000, 5000);
+        long t = frames(controller, 1000, 2000, 33);
+
+        // A short burst of late frames is tolerated
+        t = frames(controller, t, t + 600, 150);
+        t = frames(controller, t, t + 1000, 33);
+        assertEquals(0, controller.variantIndex());
+
+        // Sustained, it is not
+        frames(controller, t, t + 2000, 150);
+        assertEquals(1, controller.variantIndex());
+        assertEquals(1, mSwitches.size());
+        assertEquals("http://robot/stream?width=320&height=240&fps=30", mSwitches.get(0));
+        assertEquals(controller.url(), mSwitches.get(0));
+    }
+
+    @Test
+    public void stalledLink_stepsDownWithoutFrames() {
+        VideoQualityController controller = controller(TEMPLATE, 1000, 5000);
+        long t = frames(controller, 1000, 2000, 33);
+
+        // Checked every 250 ms: a short gap is not a stall
+        assertFalse(controller.checkStall((t + 100) * MS));
+        t = frames(controller, t + 100, t + 1000, 33);
+
+        // No frame at all: bad from the first check past 5 intervals, then the degrade hold
+        long check = t;
+        while (check < t + 1000) {
+            check += 250;
+            assertFalse(controller.checkStall(check * MS));
+        }
+        assertTrue(controller.checkStall((check + 250) * MS));
+        assertEquals(1, controller.variantIndex());
+        assertEquals(controller.url(), mSwitches.get(0));
+
+        // The new stream gets time to start
+        assertFalse(controller.checkStall((check + 500) * MS));
+    }
+
+    @Test
+    public void slowDecoding_stepsDown() {
+        VideoQualityController controller = controller(TEMPLATE, 1000, 5000);
+        for (long t = 1000; t < 3000; t += 33) {
+            controller.onFrameReceived(t * MS);
+            controller.onFrameDecoded(t * MS, 80 * MS);
+        }
+        assertEquals(1, controller.variantIndex());
+    }
+
+    @Test
+    public void recovery_stepsUpWithHysteresis() {
+        VideoQualityController controller = controller(TEMPLATE, 1000, 5000);
+        long t = frames(controller, 1000, 3000, 150);
+        assertEquals(1, controller.variantIndex());
+
+        // Good again, but only for less than the recover hold time
+        t = frames(controller, t, t + 4000, 33);
+        assertEquals(1, controller.variantIndex());
+        t = frames(controller, t, t + 2000, 33);
+        assertEquals(0, controller.variantIndex());
+
+        // The better variant does not fit after all: down again, and the next probe waits twice as long
+        t = frames(controller, t, t + 1800, 150);
+        assertEquals(1, controller.variantIndex());
+        t = frames(controller, t, t + 9000, 33);
+        assertEquals(1, controller.variantIndex());
+        frames(controller, t, t + 3000, 33);
+        assertEquals(0, controller.variantIndex());
+        assertEquals(4, controller.switchCount());
+    }
+
+    @Test
+    public void cheapestVariant_isTheFloor() {
+        VideoQualityController controller = controller(TEMPLATE, 1000, 5000);
+        frames(controller, 1000, 30000, 500);
+        assertEquals(3, controller.variantIndex());
+        assertEquals(3, controller.switchCount());
+    }
+
+    // Reads the stream as MjpegClient does, reconnecting whenever the controller switches.
+    // Records the age of each frame (capture to arrival) of variant into ages.
+    private static class StreamReader extends Thread {
+        final VideoQualityController controller;
+        final List<List<Long>> ages = new ArrayList<>();
+        volatile boolean running = true;
+        volatile HttpURLConnection connection;
+
+        StreamReader(VideoQualityController controller) {
+            this.controller = controller;
+            for (int i = 0; i < 4; i++) {
+                ages.add(new ArrayList<Long>());
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[16 * 1024];
+            while (running) {
+                final int variant = controller.variantIndex();
+                try {
+                    connection = (HttpURLConnection)new URL(controller.url()).openConnection();
+                    connection.setReadTimeout(5000);
+                    InputStream in = connection.getInputStream();
+                    MjpegParser parser = new MjpegParser(MjpegParser.boundaryOf(connection.getContentType()),
+                            new MjpegParser.Listener() {
+                                @Override
+                                public void onFrame(byte[] data, int offset, int length) {
+                                    long now = System.nanoTime();
+                                    long age = now - MjpegServerSimulator.captureNanosOf(data, offset);
+                                    synchronized (ages) {
+                                        ages.get(variant).add(age / MS);
+                                    }
+                                    controller.onFrameReceived(now);
+                                }
+                            });
+                    controller.onConnected();
+                    int n;
+                    while (running && controller.variantIndex() == variant && (n = in.read(buf)) >= 0) {
+                        parser.feed(buf, 0, n);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        long medianAge(int variant) {
+            synchronized (ages) {
+                List<Long> list = new ArrayList<>(ages.get(variant));
+                // Skip the first frames, which came before the link filled up
+                list = list.subList(Math.min(list.size(), 5), list.size());
+                if (list.isEmpty()) {
+                    return -1;
+                }
+                java.util.Collections.sort(list);
+                return list.get(list.size() / 2);
+            }
+        }
+
+        void shutdown() throws InterruptedException {
+            running = false;
+            HttpURLConnection c = connection;
+            if (c != null) {
+                c.disconnect();
+            }
+            join(2000);
+        }
+    }
+
+    private static void awaitVariant(VideoQualityController controller, int variant, long timeout_ms)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        while (controller.variantIndex() != variant && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(controller.summary(), variant, controller.variantIndex());
+    }
+
+    @Test
+    public void throttledLink_prefersSmallFreshFrames() throws Exception {
+        mServer = new MjpegServerSimulator().start();
+
+        // 640x480 frames are 38 KB, 96 ms each at this rate, 3 times what 30 fps leave. 320x240
+        // ones are 9.6 KB and fit.
+        mServer.setBandwidth(400 * 1024);
+        VideoQualityController controller = controller(mServer.template(), 1000, 1500);
+        StreamReader reader = new StreamReader(controller);
+        reader.start();
+        try {
+            awaitVariant(controller, 1, 6000);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!mServer.lastPath().contains("width=320") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(mServer.lastPath(), mServer.lastPath().contains("width=320&height=240&fps=30"));
+            Thread.sleep(1200);
+
+            long big = reader.medianAge(0);
+            long small = reader.medianAge(1);
+            assertTrue("640x480 frames " + big + " ms old", big > 300);
+            assertTrue("320x240 frames " + small + " ms old", small >= 0 && small < 100);
+
+            // Probes of the big variant fail while the link stays slow
+            Thread.sleep(4000);
+            assertTrue(controller.variantIndex() >= 1);
+
+            // Link recovered: back to full size
+            mServer.setBandwidth(0);
+            awaitVariant(controller, 0, (int)TimeUnit.SECONDS.toMillis(15));
+            assertTrue(mServer.requests() >= 3);
+        } finally {
+            reader.shutdown();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.apr1129.kzk.rcclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// "MV <left> <right>\n" encoding. Compare the gc.alloc.rate.norm column of the gc profiler.
+@State(Scope.Thread)
+public class CommandEncodingBenchmark {
+
+    private final TextCommandEncoder mTextEncoder = new TextCommandEncoder();
+    private final BinaryCommandEncoder mBinaryEncoder = new BinaryCommandEncoder();
+    private int mPower = 0;
+
+    private int nextPower() {
+        mPower = (mPower + 37) % 2048;
+        return mPower - 1024;
+    }
+
+    // The encoding used before TextCommandEncoder
+    @Benchmark
+    public byte[] stringFormat() {
+        int power = nextPower();
+        String request = String.format("MV %d %d\n", power, -power);
+        return request.getBytes();
+    }
+
+    @Benchmark
+    public void textEncoder(Blackhole bh) {
+        int power = nextPower();
+        bh.consume(mTextEncoder.encodeMove(power, -power));
+        bh.consume(mTextEncoder.buffer());
+    }
+
+    @Benchmark
+    public void binaryEncoder(Blackhole bh) {
+        int power = nextPower();
+        bh.consume(mBinaryEncoder.encodeMove(power, -power));
+        bh.consume(mBinaryEncoder.buffer());
+    }
+}
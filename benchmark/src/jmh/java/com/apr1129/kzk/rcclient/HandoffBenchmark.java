@@ -0,0 +1,96 @@
+package com.apr1129.kzk.rcclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Hand-off of commands from the UI thread to the sender thread.
+// android.os.Handler can't run on a plain JVM. The "queue" group stands in for it:
+// like Handler#sendMessage it enqueues one object per event and the sender dequeues them in order.
+// The queue is bounded only to keep the benchmark from running out of memory when the sender falls behind.
+@State(Scope.Group)
+public class HandoffBenchmark {
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static final class Command {
+        final int left;
+        final int right;
+
+        Command(int left, int right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private final LinkedBlockingQueue<Command> mQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final CommandMailbox mMailbox = new CommandMailbox();
+    private final TouchState mTouch = new TouchState();
+    private int mPower = 0;
+
+    // Message per event
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public void queuePost() {
+        mPower++;
+        mQueue.offer(new Command(mPower, -mPower));
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public void queueTake(Blackhole bh) {
+        Command command = mQueue.poll();
+        if (command != null) {
+            bh.consume(command.left);
+            bh.consume(command.right);
+        }
+    }
+
+    // Latest-value slot (RcClient)
+
+    @Benchmark
+    @Group("mailbox")
+    @GroupThreads(1)
+    public boolean mailboxPost() {
+        mPower++;
+        return mMailbox.post(mPower, -mPower);
+    }
+
+    @Benchmark
+    @Group("mailbox")
+    @GroupThreads(1)
+    public void mailboxTake(Blackhole bh) {
+        long command = mMailbox.take();
+        if (command != CommandMailbox.EMPTY) {
+            bh.consume(CommandMailbox.leftPowerOf(command));
+            bh.consume(CommandMailbox.rightPowerOf(command));
+        }
+    }
+
+    // Packed touch position (RcClient2)
+
+    @Benchmark
+    @Group("touchState")
+    @GroupThreads(1)
+    public void touchStateSet() {
+        mPower++;
+        mTouch.set(mPower & 1023, mPower & 2047);
+    }
+
+    @Benchmark
+    @Group("touchState")
+    @GroupThreads(1)
+    public void touchStateGet(Blackhole bh) {
+        long state = mTouch.get();
+        bh.consume(TouchState.xOf(state));
+        bh.consume(TouchState.yOf(state));
+    }
+}
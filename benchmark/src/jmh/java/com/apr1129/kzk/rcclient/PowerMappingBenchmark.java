@@ -0,0 +1,56 @@
+package com.apr1129.kzk.rcclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+// Touch position to power as done by RcClient.touchEvent and RcClient2.onUpdate
+@State(Scope.Thread)
+public class PowerMappingBenchmark {
+
+    private static final int SAMPLES = 1024; // power of two
+    private static final int SCREEN_HEIGHT = 1080;
+
+    private final float[] mY = new float[SAMPLES];
+    private int mIndex = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1129);
+        for (int i = 0; i < SAMPLES; i++) {
+            mY[i] = random.nextFloat() * SCREEN_HEIGHT;
+        }
+    }
+
+    private float nextY() {
+        mIndex = (mIndex + 1) & (SAMPLES - 1);
+        return mY[mIndex];
+    }
+
+    @Benchmark
+    public int absolutePower() {
+        return PowerMapping.absolutePower(nextY(), SCREEN_HEIGHT / 2);
+    }
+
+    @Benchmark
+    public int signedPower() {
+        return PowerMapping.signedPower(nextY(), SCREEN_HEIGHT / 2f);
+    }
+
+    // Both sides from the packed touch state, as RcClient2.onUpdate reads it
+    @Benchmark
+    public void signedPowerFromTouchState(Blackhole bh) {
+        long left = TouchState.pack(100, nextY());
+        long right = TouchState.pack(1800, nextY());
+        if (TouchState.isTouched(left)) {
+            bh.consume(PowerMapping.signedPower(TouchState.yOf(left), SCREEN_HEIGHT / 2f));
+        }
+        if (TouchState.isTouched(right)) {
+            bh.consume(PowerMapping.signedPower(TouchState.yOf(right), SCREEN_HEIGHT / 2f));
+        }
+    }
+}